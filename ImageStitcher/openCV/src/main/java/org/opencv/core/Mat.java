@@ -423,6 +423,8 @@ public class Mat {
         if (addr == 0)
             throw new java.lang.UnsupportedOperationException("Native object address is NULL");
         nativeObj = addr;
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
     }
 
     //
@@ -446,6 +448,9 @@ public class Mat {
 
         nativeObj = n_Mat();
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -476,6 +481,9 @@ public class Mat {
 
         nativeObj = n_Mat(rows, cols, type);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -507,6 +515,9 @@ public class Mat {
 
         nativeObj = n_Mat(size.width, size.height, type);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -540,6 +551,9 @@ public class Mat {
 
         nativeObj = n_Mat(rows, cols, type, s.val[0], s.val[1], s.val[2], s.val[3]);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -574,6 +588,9 @@ public class Mat {
 
         nativeObj = n_Mat(size.width, size.height, type, s.val[0], s.val[1], s.val[2], s.val[3]);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -611,6 +628,9 @@ public class Mat {
 
         nativeObj = n_Mat(m.nativeObj, rowRange.start, rowRange.end, colRange.start, colRange.end);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -642,6 +662,9 @@ public class Mat {
 
         nativeObj = n_Mat(m.nativeObj, rowRange.start, rowRange.end);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -675,6 +698,9 @@ public class Mat {
 
         nativeObj = n_Mat(m.nativeObj, roi.y, roi.y + roi.height, roi.x, roi.x + roi.width);
 
+        if (MatTracker.enabled)
+            MatTracker.onAllocate(this);
+
         return;
     }
 
@@ -1140,6 +1166,8 @@ public class Mat {
     {
 
         n_create(nativeObj, rows, cols, type);
+        if (MatTracker.enabled)
+            MatTracker.onCreate(this);
 
         return;
     }
@@ -1198,6 +1226,8 @@ public class Mat {
     {
 
         n_create(nativeObj, size.width, size.height, type);
+        if (MatTracker.enabled)
+            MatTracker.onCreate(this);
 
         return;
     }
@@ -1891,6 +1921,8 @@ public class Mat {
     {
 
         n_release(nativeObj);
+        if (MatTracker.enabled)
+            MatTracker.onRelease(this);
 
         return;
     }
@@ -2472,10 +2504,17 @@ public class Mat {
 
     @Override
     protected void finalize() throws Throwable {
+        if (MatTracker.enabled)
+            MatTracker.onFinalize(this);
         n_delete(nativeObj);
         super.finalize();
     }
 
+    // Returns the size of the data of a native Mat, or 0 for a submatrix, see MatTracker.
+    static long nativeBytes(long addr) {
+        return n_isSubmatrix(addr) ? 0 : n_total(addr) * n_elemSize(addr);
+    }
+
     @Override
     public String toString() {
         return "Mat [ " +
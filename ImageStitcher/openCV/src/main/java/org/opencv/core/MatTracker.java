@@ -0,0 +1,273 @@
+package org.opencv.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional accounting of the native memory held by Mat objects.
+ *
+ * <p>While tracking is enabled, every Mat constructed records where it was allocated and the
+ * size of its data, <code>total() * elemSize()</code>. Submatrices share the data of their
+ * parent and count as zero bytes. The sizes are refreshed by create() and release() and, since
+ * native functions may reallocate their output matrices, by sample(). The live bytes are also
+ * kept as a high-water mark per stage, see beginStage().</p>
+ *
+ * <p>A Mat that still holds data when it is finalized was not released explicitly. Such leaks
+ * are counted and, with leak reporting enabled, e.g. in debug builds, logged together with the
+ * allocation site.</p>
+ *
+ * <p>Mats created while tracking is disabled are not tracked.</p>
+ */
+public final class MatTracker {
+
+    private static final Logger logger = Logger.getLogger("MatTracker");
+
+    // Read by Mat without locking so that disabled tracking costs a single field access.
+    static volatile boolean enabled;
+
+    private static boolean reportLeaks;
+    private static long leakCount;
+    private static long liveBytes;
+    private static String stage = "";
+    private static final Map<Long, Record> records = new HashMap<Long, Record>();
+    private static final Map<String, Long> highWaterMarks = new LinkedHashMap<String, Long>();
+
+    private static final class Record {
+        long bytes;
+        Throwable site;
+    }
+
+    private MatTracker() {
+    }
+
+    /**
+     * Enables or disables tracking. Disabling forgets all tracked Mats.
+     */
+    public static synchronized void setEnabled(boolean enable) {
+        enabled = enable;
+
+        if (!enable) {
+            records.clear();
+            liveBytes = 0;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the logging of Mats that are finalized without release().
+     */
+    public static synchronized void setReportLeaks(boolean report) {
+        reportLeaks = report;
+    }
+
+    /**
+     * Returns the number of Mats finalized without release() since the last reset().
+     */
+    public static synchronized long getLeakCount() {
+        return leakCount;
+    }
+
+    /**
+     * Returns the number of tracked Mats that have not been finalized.
+     */
+    public static synchronized int getLiveCount() {
+        return records.size();
+    }
+
+    /**
+     * Returns the live native bytes as of the last allocation, create(), release() or sample().
+     */
+    public static synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Measures the data of all tracked Mats again and updates the high-water mark of the current
+     * stage.
+     *
+     * @return The live native bytes.
+     */
+    public static synchronized long sample() {
+        liveBytes = 0;
+
+        for (Map.Entry<Long, Record> entry : records.entrySet()) {
+            Record record = entry.getValue();
+            record.bytes = Mat.nativeBytes(entry.getKey());
+            liveBytes += record.bytes;
+        }
+
+        updateHighWaterMark();
+        return liveBytes;
+    }
+
+    /**
+     * Ends the current stage and starts a new one. The high-water mark of a stage is the
+     * largest amount of live native bytes seen while it was current; a stage that is begun
+     * again keeps its mark.
+     *
+     * @param name The name of the stage.
+     */
+    public static synchronized void beginStage(String name) {
+        sample();
+        stage = name;
+        updateHighWaterMark();
+    }
+
+    /**
+     * Returns the high-water marks of the stages in the order they were first begun.
+     */
+    public static synchronized Map<String, Long> getHighWaterMarks() {
+        return new LinkedHashMap<String, Long>(highWaterMarks);
+    }
+
+    /**
+     * Forgets the high-water marks and the leak count. The tracked Mats are kept.
+     */
+    public static synchronized void reset() {
+        highWaterMarks.clear();
+        leakCount = 0;
+        stage = "";
+    }
+
+    /**
+     * Describes the live native memory, the high-water marks and the largest live Mats.
+     *
+     * @param maxSites The maximum number of allocation sites to include.
+     */
+    public static synchronized String report(int maxSites) {
+        sample();
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(records.size()).append(" Mats, ").append(liveBytes)
+                .append(" bytes live, high-water marks ").append(highWaterMarks);
+
+        List<Record> largest = new ArrayList<Record>(records.values());
+        Collections.sort(largest, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a.bytes < b.bytes ? 1 : a.bytes > b.bytes ? -1 : 0;
+            }
+        });
+
+        for (int i = 0; i < Math.min(maxSites, largest.size()); ++i) {
+            Record record = largest.get(i);
+
+            if (record.bytes == 0) {
+                break;
+            }
+
+            builder.append("\n  ").append(record.bytes).append(" bytes ")
+                    .append(record.site.getMessage());
+
+            StackTraceElement[] trace = record.site.getStackTrace();
+
+            for (int j = 0; j < Math.min(4, trace.length); ++j) {
+                builder.append("\n    at ").append(trace[j]);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    // Called by the Mat constructors.
+    static synchronized void onAllocate(Mat m) {
+        if (!enabled) {
+            return;
+        }
+
+        Record record = new Record();
+        record.bytes = Mat.nativeBytes(m.nativeObj);
+        record.site = new Throwable("Mat allocated in stage '" + stage + "'");
+        trimSite(record.site);
+
+        Record previous = records.put(m.nativeObj, record);
+
+        if (previous != null) {
+            liveBytes -= previous.bytes;
+        }
+
+        liveBytes += record.bytes;
+        updateHighWaterMark();
+    }
+
+    // Called by Mat.create().
+    static synchronized void onCreate(Mat m) {
+        Record record = records.get(m.nativeObj);
+
+        if (record == null) {
+            onAllocate(m);
+            return;
+        }
+
+        liveBytes -= record.bytes;
+        record.bytes = Mat.nativeBytes(m.nativeObj);
+        liveBytes += record.bytes;
+        updateHighWaterMark();
+    }
+
+    // Called by Mat.release().
+    static synchronized void onRelease(Mat m) {
+        Record record = records.get(m.nativeObj);
+
+        if (record != null) {
+            liveBytes -= record.bytes;
+            record.bytes = 0;
+        }
+    }
+
+    // Called by Mat.finalize() before the native object is deleted.
+    static synchronized void onFinalize(Mat m) {
+        Record record = records.remove(m.nativeObj);
+
+        if (record == null) {
+            return;
+        }
+
+        liveBytes -= record.bytes;
+
+        // A Mat that was released, or never filled, holds no data any more.
+        long bytes = Mat.nativeBytes(m.nativeObj);
+
+        if (bytes > 0) {
+            ++leakCount;
+
+            if (reportLeaks) {
+                logger.log(Level.WARNING, "Mat of " + bytes + " bytes finalized without release()",
+                        record.site);
+            }
+        }
+    }
+
+    private static void updateHighWaterMark() {
+        Long mark = highWaterMarks.get(stage);
+
+        if (mark == null || mark < liveBytes) {
+            highWaterMarks.put(stage, liveBytes);
+        }
+    }
+
+    // Drops the frames of the tracker, Mat and its subclasses, so the site starts at the caller.
+    private static void trimSite(Throwable site) {
+        StackTraceElement[] trace = site.getStackTrace();
+        int first = 0;
+
+        while (first < trace.length
+                && trace[first].getClassName().startsWith("org.opencv.core.Mat")) {
+            ++first;
+        }
+
+        StackTraceElement[] trimmed = new StackTraceElement[trace.length - first];
+        System.arraycopy(trace, first, trimmed, 0, trimmed.length);
+        site.setStackTrace(trimmed);
+    }
+}
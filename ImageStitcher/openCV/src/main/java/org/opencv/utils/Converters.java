@@ -1,5 +1,9 @@
 package org.opencv.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -721,4 +725,482 @@ public class Converters {
             llb.add(lb);
         }
     }
+
+    // vector_float as a primitive array or buffer, one value per element
+
+    public static Mat vector_float_to_Mat(float[] fs) {
+        Mat res = new Mat();
+        vector_float_to_Mat(fs, fs.length, res);
+        return res;
+    }
+
+    public static void vector_float_to_Mat(float[] fs, int count, Mat m) {
+        if (fs.length < count)
+            throw new java.lang.IllegalArgumentException("fs.length < " + count);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_32FC1);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, fs);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_float_to_Mat(FloatBuffer fs) {
+        Mat res = new Mat();
+        vector_float_to_Mat(fs, res);
+        return res;
+    }
+
+    public static void vector_float_to_Mat(FloatBuffer fs, Mat m) {
+        int count = fs.remaining();
+        if (fs.hasArray() && fs.arrayOffset() + fs.position() == 0) {
+            vector_float_to_Mat(fs.array(), count, m);
+            fs.position(count);
+        } else {
+            float[] buff = new float[count];
+            fs.get(buff);
+            vector_float_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_float(Mat m, float[] fs) {
+        int count = checkVector(m, CvType.CV_32FC1);
+        if (fs.length < count)
+            throw new java.lang.IllegalArgumentException("fs.length < " + count);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, fs);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_float(Mat m, FloatBuffer fs) {
+        int count = checkVector(m, CvType.CV_32FC1);
+        if (fs.remaining() < count)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (fs.hasArray() && fs.arrayOffset() + fs.position() == 0) {
+            m.get(0, 0, fs.array());
+            fs.position(count);
+        } else {
+            float[] buff = new float[count];
+            m.get(0, 0, buff);
+            fs.put(buff);
+        }
+        return count;
+    }
+
+    // vector_uchar as a primitive array or buffer, one value per element
+
+    public static Mat vector_uchar_to_Mat(byte[] bs) {
+        Mat res = new Mat();
+        vector_uchar_to_Mat(bs, bs.length, res);
+        return res;
+    }
+
+    public static void vector_uchar_to_Mat(byte[] bs, int count, Mat m) {
+        if (bs.length < count)
+            throw new java.lang.IllegalArgumentException("bs.length < " + count);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_8UC1);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, bs);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_uchar_to_Mat(ByteBuffer bs) {
+        Mat res = new Mat();
+        vector_uchar_to_Mat(bs, res);
+        return res;
+    }
+
+    public static void vector_uchar_to_Mat(ByteBuffer bs, Mat m) {
+        int count = bs.remaining();
+        if (bs.hasArray() && bs.arrayOffset() + bs.position() == 0) {
+            vector_uchar_to_Mat(bs.array(), count, m);
+            bs.position(count);
+        } else {
+            byte[] buff = new byte[count];
+            bs.get(buff);
+            vector_uchar_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_uchar(Mat m, byte[] bs) {
+        int count = checkVector(m, CvType.CV_8UC1);
+        if (bs.length < count)
+            throw new java.lang.IllegalArgumentException("bs.length < " + count);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, bs);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_uchar(Mat m, ByteBuffer bs) {
+        int count = checkVector(m, CvType.CV_8UC1);
+        if (bs.remaining() < count)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (bs.hasArray() && bs.arrayOffset() + bs.position() == 0) {
+            m.get(0, 0, bs.array());
+            bs.position(count);
+        } else {
+            byte[] buff = new byte[count];
+            m.get(0, 0, buff);
+            bs.put(buff);
+        }
+        return count;
+    }
+
+    // vector_char as a primitive array or buffer, one value per element
+
+    public static Mat vector_char_to_Mat(byte[] bs) {
+        Mat res = new Mat();
+        vector_char_to_Mat(bs, bs.length, res);
+        return res;
+    }
+
+    public static void vector_char_to_Mat(byte[] bs, int count, Mat m) {
+        if (bs.length < count)
+            throw new java.lang.IllegalArgumentException("bs.length < " + count);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_8SC1);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, bs);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_char_to_Mat(ByteBuffer bs) {
+        Mat res = new Mat();
+        vector_char_to_Mat(bs, res);
+        return res;
+    }
+
+    public static void vector_char_to_Mat(ByteBuffer bs, Mat m) {
+        int count = bs.remaining();
+        if (bs.hasArray() && bs.arrayOffset() + bs.position() == 0) {
+            vector_char_to_Mat(bs.array(), count, m);
+            bs.position(count);
+        } else {
+            byte[] buff = new byte[count];
+            bs.get(buff);
+            vector_char_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_char(Mat m, byte[] bs) {
+        int count = checkVector(m, CvType.CV_8SC1);
+        if (bs.length < count)
+            throw new java.lang.IllegalArgumentException("bs.length < " + count);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, bs);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_char(Mat m, ByteBuffer bs) {
+        int count = checkVector(m, CvType.CV_8SC1);
+        if (bs.remaining() < count)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (bs.hasArray() && bs.arrayOffset() + bs.position() == 0) {
+            m.get(0, 0, bs.array());
+            bs.position(count);
+        } else {
+            byte[] buff = new byte[count];
+            m.get(0, 0, buff);
+            bs.put(buff);
+        }
+        return count;
+    }
+
+    // vector_int as a primitive array or buffer, one value per element
+
+    public static Mat vector_int_to_Mat(int[] is) {
+        Mat res = new Mat();
+        vector_int_to_Mat(is, is.length, res);
+        return res;
+    }
+
+    public static void vector_int_to_Mat(int[] is, int count, Mat m) {
+        if (is.length < count)
+            throw new java.lang.IllegalArgumentException("is.length < " + count);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_32SC1);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, is);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_int_to_Mat(IntBuffer is) {
+        Mat res = new Mat();
+        vector_int_to_Mat(is, res);
+        return res;
+    }
+
+    public static void vector_int_to_Mat(IntBuffer is, Mat m) {
+        int count = is.remaining();
+        if (is.hasArray() && is.arrayOffset() + is.position() == 0) {
+            vector_int_to_Mat(is.array(), count, m);
+            is.position(count);
+        } else {
+            int[] buff = new int[count];
+            is.get(buff);
+            vector_int_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_int(Mat m, int[] is) {
+        int count = checkVector(m, CvType.CV_32SC1);
+        if (is.length < count)
+            throw new java.lang.IllegalArgumentException("is.length < " + count);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, is);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_int(Mat m, IntBuffer is) {
+        int count = checkVector(m, CvType.CV_32SC1);
+        if (is.remaining() < count)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (is.hasArray() && is.arrayOffset() + is.position() == 0) {
+            m.get(0, 0, is.array());
+            is.position(count);
+        } else {
+            int[] buff = new int[count];
+            m.get(0, 0, buff);
+            is.put(buff);
+        }
+        return count;
+    }
+
+    // vector_double as a primitive array or buffer, one value per element
+
+    public static Mat vector_double_to_Mat(double[] ds) {
+        Mat res = new Mat();
+        vector_double_to_Mat(ds, ds.length, res);
+        return res;
+    }
+
+    public static void vector_double_to_Mat(double[] ds, int count, Mat m) {
+        if (ds.length < count)
+            throw new java.lang.IllegalArgumentException("ds.length < " + count);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_64FC1);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, ds);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_double_to_Mat(DoubleBuffer ds) {
+        Mat res = new Mat();
+        vector_double_to_Mat(ds, res);
+        return res;
+    }
+
+    public static void vector_double_to_Mat(DoubleBuffer ds, Mat m) {
+        int count = ds.remaining();
+        if (ds.hasArray() && ds.arrayOffset() + ds.position() == 0) {
+            vector_double_to_Mat(ds.array(), count, m);
+            ds.position(count);
+        } else {
+            double[] buff = new double[count];
+            ds.get(buff);
+            vector_double_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_double(Mat m, double[] ds) {
+        int count = checkVector(m, CvType.CV_64FC1);
+        if (ds.length < count)
+            throw new java.lang.IllegalArgumentException("ds.length < " + count);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, ds);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_double(Mat m, DoubleBuffer ds) {
+        int count = checkVector(m, CvType.CV_64FC1);
+        if (ds.remaining() < count)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (ds.hasArray() && ds.arrayOffset() + ds.position() == 0) {
+            m.get(0, 0, ds.array());
+            ds.position(count);
+        } else {
+            double[] buff = new double[count];
+            m.get(0, 0, buff);
+            ds.put(buff);
+        }
+        return count;
+    }
+
+    // vector_KeyPoint as a primitive array or buffer, 7 values per key point:
+    // x, y, size, angle, response, octave, class_id
+
+    public static Mat vector_KeyPoint_to_Mat(double[] kps) {
+        Mat res = new Mat();
+        vector_KeyPoint_to_Mat(kps, kps.length / 7, res);
+        return res;
+    }
+
+    public static void vector_KeyPoint_to_Mat(double[] kps, int count, Mat m) {
+        if (kps.length < count * 7)
+            throw new java.lang.IllegalArgumentException("kps.length < " + count * 7);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_64FC(7));
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, kps);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_KeyPoint_to_Mat(DoubleBuffer kps) {
+        Mat res = new Mat();
+        vector_KeyPoint_to_Mat(kps, res);
+        return res;
+    }
+
+    public static void vector_KeyPoint_to_Mat(DoubleBuffer kps, Mat m) {
+        int count = kps.remaining() / 7;
+        if (kps.hasArray() && kps.arrayOffset() + kps.position() == 0
+                && kps.array().length % 7 == 0) {
+            vector_KeyPoint_to_Mat(kps.array(), count, m);
+            kps.position(count * 7);
+        } else {
+            double[] buff = new double[count * 7];
+            kps.get(buff);
+            vector_KeyPoint_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_KeyPoint(Mat m, double[] kps) {
+        int count = checkVector(m, CvType.CV_64FC(7));
+        if (kps.length < count * 7)
+            throw new java.lang.IllegalArgumentException("kps.length < " + count * 7);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, kps);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_KeyPoint(Mat m, DoubleBuffer kps) {
+        int count = checkVector(m, CvType.CV_64FC(7));
+        if (kps.remaining() < count * 7)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (kps.hasArray() && kps.arrayOffset() + kps.position() == 0
+                && kps.array().length % 7 == 0) {
+            m.get(0, 0, kps.array());
+            kps.position(count * 7);
+        } else {
+            double[] buff = new double[count * 7];
+            m.get(0, 0, buff);
+            kps.put(buff);
+        }
+        return count;
+    }
+
+    // vector_DMatch as a primitive array or buffer, 4 values per match:
+    // queryIdx, trainIdx, imgIdx, distance
+
+    public static Mat vector_DMatch_to_Mat(double[] matches) {
+        Mat res = new Mat();
+        vector_DMatch_to_Mat(matches, matches.length / 4, res);
+        return res;
+    }
+
+    public static void vector_DMatch_to_Mat(double[] matches, int count, Mat m) {
+        if (matches.length < count * 4)
+            throw new java.lang.IllegalArgumentException("matches.length < " + count * 4);
+        if (count > 0) {
+            m.create(count, 1, CvType.CV_64FC4);
+            // put() copies only as many values as fit into m.
+            m.put(0, 0, matches);
+        } else {
+            m.release();
+        }
+    }
+
+    public static Mat vector_DMatch_to_Mat(DoubleBuffer matches) {
+        Mat res = new Mat();
+        vector_DMatch_to_Mat(matches, res);
+        return res;
+    }
+
+    public static void vector_DMatch_to_Mat(DoubleBuffer matches, Mat m) {
+        int count = matches.remaining() / 4;
+        if (matches.hasArray() && matches.arrayOffset() + matches.position() == 0
+                && matches.array().length % 4 == 0) {
+            vector_DMatch_to_Mat(matches.array(), count, m);
+            matches.position(count * 4);
+        } else {
+            double[] buff = new double[count * 4];
+            matches.get(buff);
+            vector_DMatch_to_Mat(buff, count, m);
+        }
+    }
+
+    public static int Mat_to_vector_DMatch(Mat m, double[] matches) {
+        int count = checkVector(m, CvType.CV_64FC4);
+        if (matches.length < count * 4)
+            throw new java.lang.IllegalArgumentException("matches.length < " + count * 4);
+        if (count > 0) {
+            // get() copies only as many values as m holds.
+            m.get(0, 0, matches);
+        }
+        return count;
+    }
+
+    public static int Mat_to_vector_DMatch(Mat m, DoubleBuffer matches) {
+        int count = checkVector(m, CvType.CV_64FC4);
+        if (matches.remaining() < count * 4)
+            throw new java.nio.BufferOverflowException();
+        if (count == 0)
+            return 0;
+        if (matches.hasArray() && matches.arrayOffset() + matches.position() == 0
+                && matches.array().length % 4 == 0) {
+            m.get(0, 0, matches.array());
+            matches.position(count * 4);
+        } else {
+            double[] buff = new double[count * 4];
+            m.get(0, 0, buff);
+            matches.put(buff);
+        }
+        return count;
+    }
+
+    // Returns the number of elements of an empty Mat or a column of the given type.
+    private static int checkVector(Mat m, int type) {
+        if (m.empty())
+            return 0;
+        if (type != m.type() || m.cols() != 1)
+            throw new java.lang.IllegalArgumentException(
+                    "CvType " + type + " != m.type() ||  m.cols()!=1\n" + m);
+        return m.rows();
+    }
 }
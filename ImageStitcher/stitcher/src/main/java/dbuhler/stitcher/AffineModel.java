@@ -0,0 +1,105 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.video.Video;
+
+/**
+ * This motion model is a 6-DOF affine transformation. It is defined by three matches.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class AffineModel extends MotionModel
+{
+    private static final double MIN_SINE = 0.05;
+
+    @Override
+    public Type getType()
+    {
+        return Type.AFFINE;
+    }
+
+    @Override
+    public int getSampleSize()
+    {
+        return 3;
+    }
+
+    /**
+     * Checks whether a sample can define a plausible affine transformation. This is the case if
+     * the three points are not nearly collinear in either image and their triangle has the same
+     * orientation in both images.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @return True if the sample is valid, false otherwise.
+     */
+    @Override
+    public boolean isSampleValid(float[] src, float[] dst, int[] sample)
+    {
+        int i = sample[0];
+        int j = sample[1];
+        int k = sample[2];
+
+        double crossSrc = cross(src, i, j, k);
+        double crossDst = cross(dst, i, j, k);
+
+        return !isCollinear(src, i, j, k, crossSrc, MIN_SINE)
+                && !isCollinear(dst, i, j, k, crossDst, MIN_SINE)
+                && (crossSrc > 0) == (crossDst > 0);
+    }
+
+    @Override
+    public boolean solve(float[] src, float[] dst, int[] sample, double[] h)
+    {
+        double[] a  = new double[3 * 3];
+        double[] bx = new double[3];
+        double[] by = new double[3];
+
+        for (int r = 0; r < 3; ++r)
+        {
+            a[3 * r]     = src[2 * sample[r]];
+            a[3 * r + 1] = src[2 * sample[r] + 1];
+            a[3 * r + 2] = 1;
+            bx[r] = dst[2 * sample[r]];
+            by[r] = dst[2 * sample[r] + 1];
+        }
+
+        double[] a2 = a.clone();
+
+        if (!solveLinear(a, bx, 3) || !solveLinear(a2, by, 3))
+        {
+            return false;
+        }
+
+        h[0] = bx[0];
+        h[1] = bx[1];
+        h[2] = bx[2];
+        h[3] = by[0];
+        h[4] = by[1];
+        h[5] = by[2];
+        h[6] = 0;
+        h[7] = 0;
+        h[8] = 1;
+
+        return true;
+    }
+
+    /**
+     * Fits the affine transformation to all inliers using Video.estimateRigidTransform.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined transformation as 3x3 matrix, or an empty matrix if the fit failed.
+     */
+    @Override
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        return toHomography(Video.estimateRigidTransform(selectInliers(src, inliers, count),
+                                                         selectInliers(dst, inliers, count),
+                                                         true));
+    }
+}
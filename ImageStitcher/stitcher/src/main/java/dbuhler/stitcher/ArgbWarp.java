@@ -0,0 +1,226 @@
+package dbuhler.stitcher;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class warps packed ARGB images with a homography in pure Java, for use without the native
+ * OpenCV library and where results must not depend on the platform. Pixels are interpolated
+ * bilinearly with 8-bit fixed-point weights, and pixels outside the source image count as
+ * transparent black, like Imgproc.warpPerspective with INTER_LINEAR and a constant border of 0.
+ * Since the native warp rounds the position to 1 / 32 of a pixel, the results agree within
+ * ArgbWarpCheck.TOLERANCE per channel, which ArgbWarpCheck verifies together with the speed of
+ * both. Each row steps the projective source coordinates incrementally, and bands of rows are
+ * warped in parallel on a fork-join pool.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class ArgbWarp
+{
+    // Rows per band below which a band is not split any further.
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE  = 1 << WEIGHT_BITS;
+    private static final int WEIGHT_MASK = WEIGHT_ONE - 1;
+
+    // The alpha and green channel lanes and the red and blue channel lanes of a packed pixel.
+    private static final int LANES = 0x00FF00FF;
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    private ArgbWarp()
+    {
+    }
+
+    /**
+     * Warps the source image with the given homography into the destination image. Destination
+     * pixels that do not map into the source image are set to 0.
+     *
+     * @param src        The packed ARGB pixels of the source image in row-major order.
+     * @param srcWidth   The width of the source image.
+     * @param srcHeight  The height of the source image.
+     * @param dst        The array that will contain the packed ARGB pixels of the result.
+     * @param dstWidth   The width of the result.
+     * @param dstHeight  The height of the result.
+     * @param homography The homography that maps the source image to the result.
+     * @return True if the image was warped, false if the homography is singular.
+     */
+    public static boolean warpPerspective(int[] src, int srcWidth, int srcHeight,
+                                          int[] dst, int dstWidth, int dstHeight,
+                                          double[] homography)
+    {
+        double[] inverse = Homography.invert(homography);
+
+        if (inverse == null)
+        {
+            return false;
+        }
+
+        pool.invoke(new Band(src, srcWidth, srcHeight, dst, dstWidth, inverse, 0, dstHeight));
+        return true;
+    }
+
+    /**
+     * Warps the destination rows y0 <= y < y1.
+     *
+     * @param src       The packed ARGB pixels of the source image.
+     * @param srcWidth  The width of the source image.
+     * @param srcHeight The height of the source image.
+     * @param dst       The packed ARGB pixels of the result.
+     * @param dstWidth  The width of the result.
+     * @param inverse   The homography that maps the result to the source image.
+     * @param y0        The first row to warp.
+     * @param y1        The row after the last row to warp.
+     */
+    private static void warpRows(int[] src, int srcWidth, int srcHeight,
+                                 int[] dst, int dstWidth, double[] inverse, int y0, int y1)
+    {
+        for (int y = y0; y < y1; ++y)
+        {
+            // Homogeneous source coordinates of the first pixel of the row; stepping one column
+            // adds the first column of the inverse homography.
+            double sx = inverse[1] * y + inverse[2];
+            double sy = inverse[4] * y + inverse[5];
+            double sw = inverse[7] * y + inverse[8];
+            int    i  = y * dstWidth;
+
+            for (int x = 0; x < dstWidth; ++x, ++i)
+            {
+                dst[i] = 0;
+
+                if (sw > 0)
+                {
+                    dst[i] = sample(src, srcWidth, srcHeight, sx / sw, sy / sw);
+                }
+
+                sx += inverse[0];
+                sy += inverse[3];
+                sw += inverse[6];
+            }
+        }
+    }
+
+    /**
+     * Samples the source image at the given position with bilinear interpolation, treating
+     * pixels outside the image as 0.
+     *
+     * @param src    The packed ARGB pixels of the image.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param x      The horizontal position.
+     * @param y      The vertical position.
+     * @return The interpolated packed ARGB pixel.
+     */
+    private static int sample(int[] src, int width, int height, double x, double y)
+    {
+        if (!(x > -1 && y > -1 && x < width && y < height))
+        {
+            return 0;
+        }
+
+        int fx = (int) Math.floor(x * WEIGHT_ONE + 0.5);
+        int fy = (int) Math.floor(y * WEIGHT_ONE + 0.5);
+        int x0 = fx >> WEIGHT_BITS;
+        int y0 = fy >> WEIGHT_BITS;
+        int wx = fx & WEIGHT_MASK;
+        int wy = fy & WEIGHT_MASK;
+
+        int p00 = pixel(src, width, height, x0,     y0);
+        int p01 = pixel(src, width, height, x0 + 1, y0);
+        int p10 = pixel(src, width, height, x0,     y0 + 1);
+        int p11 = pixel(src, width, height, x0 + 1, y0 + 1);
+
+        // Interpolate two channels at a time; each 16-bit lane holds at most 255 * 256.
+        int top0 = (p00 & LANES) * (WEIGHT_ONE - wx) + (p01 & LANES) * wx;
+        int top1 = (p00 >>> 8 & LANES) * (WEIGHT_ONE - wx) + (p01 >>> 8 & LANES) * wx;
+        int bot0 = (p10 & LANES) * (WEIGHT_ONE - wx) + (p11 & LANES) * wx;
+        int bot1 = (p10 >>> 8 & LANES) * (WEIGHT_ONE - wx) + (p11 >>> 8 & LANES) * wx;
+
+        int lo = lerp(top0, bot0, wy);
+        int hi = lerp(top1, bot1, wy);
+
+        return hi << 8 | lo;
+    }
+
+    /**
+     * Interpolates two pairs of horizontally interpolated lanes vertically.
+     *
+     * @param top The lanes of the upper row, scaled by WEIGHT_ONE.
+     * @param bot The lanes of the lower row, scaled by WEIGHT_ONE.
+     * @param wy  The weight of the lower row.
+     * @return The interpolated 8-bit lanes.
+     */
+    private static int lerp(int top, int bot, int wy)
+    {
+        int half = 1 << (2 * WEIGHT_BITS - 1);
+        int low  = ((top & 0xFFFF) * (WEIGHT_ONE - wy) + (bot & 0xFFFF) * wy + half)
+                >>> 2 * WEIGHT_BITS;
+        int high = ((top >>> 16) * (WEIGHT_ONE - wy) + (bot >>> 16) * wy + half)
+                >>> 2 * WEIGHT_BITS;
+        return high << 16 | low;
+    }
+
+    /**
+     * Returns the pixel at the given position, or 0 if the position is outside the image.
+     *
+     * @param src    The packed ARGB pixels of the image.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param x      The column.
+     * @param y      The row.
+     * @return The packed ARGB pixel.
+     */
+    private static int pixel(int[] src, int width, int height, int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+        {
+            return 0;
+        }
+
+        return src[y * width + x];
+    }
+
+    /**
+     * A band of destination rows that is split in halves until it is small enough.
+     */
+    private static final class Band extends RecursiveAction
+    {
+        private int[]    src;
+        private int      srcWidth;
+        private int      srcHeight;
+        private int[]    dst;
+        private int      dstWidth;
+        private double[] inverse;
+        private int      y0;
+        private int      y1;
+
+        private Band(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth,
+                     double[] inverse, int y0, int y1)
+        {
+            this.src       = src;
+            this.srcWidth  = srcWidth;
+            this.srcHeight = srcHeight;
+            this.dst       = dst;
+            this.dstWidth  = dstWidth;
+            this.inverse   = inverse;
+            this.y0        = y0;
+            this.y1        = y1;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (y1 - y0 <= MIN_BAND_ROWS)
+            {
+                warpRows(src, srcWidth, srcHeight, dst, dstWidth, inverse, y0, y1);
+                return;
+            }
+
+            int middle = (y0 + y1) >>> 1;
+            invokeAll(new Band(src, srcWidth, srcHeight, dst, dstWidth, inverse, y0, middle),
+                      new Band(src, srcWidth, srcHeight, dst, dstWidth, inverse, middle, y1));
+        }
+    }
+}
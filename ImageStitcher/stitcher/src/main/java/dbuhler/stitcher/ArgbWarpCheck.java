@@ -0,0 +1,195 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+/**
+ * This class compares ArgbWarp with Imgproc.warpPerspective using INTER_LINEAR and a transparent
+ * black constant border, and times both. The test image is noise, which is the worst case for
+ * interpolation differences. The homographies shift by fractions of a pixel, rotate, scale up and
+ * down and tilt the image, and all map part of the image past the edges of the result, so the
+ * pixels along the border of the image are compared as well. Debug builds run the check once per
+ * process, see ResultActivity.
+ *
+ * OpenCV rounds the interpolation position to 1 / 2^INTER_BITS = 1 / 32 of a pixel, while
+ * ArgbWarp rounds it to 1 / 256. Half a step of 1 / 32 in x and in y changes a channel by at most
+ * 255 / 64 per axis, and both round the interpolated value once, so the results may differ by up
+ * to TOLERANCE per channel; the mean difference is about one.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class ArgbWarpCheck
+{
+    // Two axes of at most ceil(255 / 2^(INTER_BITS + 1)) = 4 each, plus one for rounding.
+    public static final int TOLERANCE = 9;
+
+    // The shifts of the RGBA channels in a packed ARGB pixel.
+    private static final int[] SHIFTS = { 16, 8, 0, 24 };
+
+    private static final long SEED = 42;
+
+    private ArgbWarpCheck()
+    {
+    }
+
+    /**
+     * Warps a noise image of the given size with several homographies with both implementations,
+     * compares the results and times them.
+     *
+     * @param width       The width of the test image.
+     * @param height      The height of the test image.
+     * @param repetitions The number of times each warp is timed.
+     * @return A report of the largest and mean differences and the timings.
+     */
+    public static String run(int width, int height, int repetitions)
+    {
+        int[]      src          = createNoise(width, height);
+        int[]      dst          = new int[width * height];
+        byte[]     reference    = new byte[4 * width * height];
+        Mat        srcMat       = toMat(src, width, height);
+        Mat        dstMat       = new Mat();
+        Size       size         = new Size(width, height);
+        double[][] homographies = createHomographies(width, height);
+
+        StringBuilder report   = new StringBuilder();
+        int           maxDiff  = 0;
+        long          javaTime = 0;
+        long          cvTime   = 0;
+
+        for (double[] homography : homographies)
+        {
+            Mat matrix = Homography.toMat(homography);
+            ArgbWarp.warpPerspective(src, width, height, dst, width, height, homography);
+            Imgproc.warpPerspective(srcMat, dstMat, matrix, size, Imgproc.INTER_LINEAR,
+                                    Imgproc.BORDER_CONSTANT, Scalar.all(0));
+            dstMat.get(0, 0, reference);
+
+            long sum  = 0;
+            int  diff = 0;
+
+            for (int i = 0; i < dst.length; ++i)
+            {
+                for (int c = 0; c < 4; ++c)
+                {
+                    // The matrix holds RGBA bytes, the array packed ARGB pixels.
+                    int d = Math.abs((dst[i] >>> SHIFTS[c] & 0xFF) - (reference[4 * i + c] & 0xFF));
+                    sum += d;
+                    diff = Math.max(diff, d);
+                }
+            }
+
+            maxDiff = Math.max(maxDiff, diff);
+            report.append(String.format("max %d, mean %.3f; ", diff, 1.0 * sum / reference.length));
+
+            long start = System.nanoTime();
+
+            for (int r = 0; r < repetitions; ++r)
+            {
+                ArgbWarp.warpPerspective(src, width, height, dst, width, height, homography);
+            }
+
+            long middle = System.nanoTime();
+
+            for (int r = 0; r < repetitions; ++r)
+            {
+                Imgproc.warpPerspective(srcMat, dstMat, matrix, size, Imgproc.INTER_LINEAR,
+                                        Imgproc.BORDER_CONSTANT, Scalar.all(0));
+            }
+
+            cvTime   += System.nanoTime() - middle;
+            javaTime += middle - start;
+            matrix.release();
+        }
+
+        srcMat.release();
+        dstMat.release();
+
+        int count = homographies.length * repetitions;
+        return String.format("ArgbWarp %s (tolerance %d): %s%.2f ms per warp, native %.2f ms",
+                             maxDiff <= TOLERANCE ? "OK" : "FAILED", TOLERANCE, report,
+                             javaTime / 1e6 / count, cvTime / 1e6 / count);
+    }
+
+    /**
+     * Returns the homographies to compare with; all of them map part of the image outside the
+     * result.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The homographies in row-major order.
+     */
+    private static double[][] createHomographies(int width, int height)
+    {
+        double cx  = width / 2.0;
+        double cy  = height / 2.0;
+        double cos = Math.cos(Math.toRadians(10));
+        double sin = Math.sin(Math.toRadians(10));
+
+        return new double[][] {
+                // A shift by a fraction of a pixel.
+                Homography.translation(-20.3, 10.7),
+                // A rotation about the centre.
+                { cos, -sin, cx - cos * cx + sin * cy,
+                  sin,  cos, cy - sin * cx - cos * cy,
+                  0,    0,   1 },
+                // Scaling down and up.
+                Homography.multiply(Homography.translation(0.25, -0.4),
+                                    Homography.scaling(0.6, 0.55)),
+                Homography.multiply(Homography.translation(-cx * 0.7, -cy * 0.7),
+                                    Homography.scaling(1.7, 1.7)),
+                // A tilt.
+                { 1.05, 0.08, -12.5, 0.03, 0.98, 6.25, 2e-4, 1e-4, 1 }
+        };
+    }
+
+    /**
+     * Creates an image of opaque and translucent random pixels.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The packed ARGB pixels.
+     */
+    private static int[] createNoise(int width, int height)
+    {
+        Random random = new Random(SEED);
+        int[]  pixels = new int[width * height];
+
+        for (int i = 0; i < pixels.length; ++i)
+        {
+            pixels[i] = random.nextInt();
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Converts packed ARGB pixels to an RGBA matrix.
+     *
+     * @param pixels The packed ARGB pixels.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The CV_8UC4 matrix.
+     */
+    private static Mat toMat(int[] pixels, int width, int height)
+    {
+        byte[] bytes = new byte[4 * pixels.length];
+
+        for (int i = 0; i < pixels.length; ++i)
+        {
+            bytes[4 * i]     = (byte) (pixels[i] >> 16);
+            bytes[4 * i + 1] = (byte) (pixels[i] >> 8);
+            bytes[4 * i + 2] = (byte) pixels[i];
+            bytes[4 * i + 3] = (byte) (pixels[i] >>> 24);
+        }
+
+        Mat matrix = new Mat(height, width, CvType.CV_8UC4);
+        matrix.put(0, 0, bytes);
+        return matrix;
+    }
+}
@@ -0,0 +1,285 @@
+package dbuhler.stitcher;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * This class converts between bitmaps and matrices using pooled buffers, so that repeated stitches
+ * do not allocate a new bitmap on the Java heap and a new matrix on the native heap for every
+ * conversion. Matrices are leased from a MatPool. Bitmaps that were returned earlier are reused if
+ * their size matches, or otherwise reconfigured in place if their allocation is large enough. The
+ * bitmap pool is bounded by a total size in bytes; the least recently returned bitmaps are freed
+ * first.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class BitmapConverter
+{
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private MatPool            matPool;
+    private long               maxBytes;
+    private long               pooledBytes;
+    private LinkedList<Bitmap> bitmaps;
+
+    /**
+     * Creates a converter with its own matrix pool whose bitmap pool holds at most
+     * DEFAULT_MAX_BYTES.
+     */
+    public BitmapConverter()
+    {
+        this(new MatPool(), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a converter that leases matrices from the given pool and whose bitmap pool holds at
+     * most the given number of bytes.
+     *
+     * @param matPool  The pool of matrices.
+     * @param maxBytes The maximum total size of the pooled bitmaps.
+     */
+    public BitmapConverter(MatPool matPool, long maxBytes)
+    {
+        this.matPool  = matPool;
+        this.maxBytes = maxBytes;
+        bitmaps = new LinkedList<>();
+    }
+
+    /**
+     * Returns the pool the matrices are leased from.
+     *
+     * @return The matrix pool.
+     */
+    public MatPool getMatPool()
+    {
+        return matPool;
+    }
+
+    /**
+     * Converts the given bitmap to an RGBA matrix taken from the pool.
+     *
+     * @param bitmap The bitmap to convert.
+     * @return The matrix, which should be returned to the matrix pool when no longer needed.
+     */
+    public Mat toMat(Bitmap bitmap)
+    {
+        Mat matrix = matPool.lease(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
+        Utils.bitmapToMat(bitmap, matrix);
+        return matrix;
+    }
+
+    /**
+     * Converts the given bitmap to an RGBA matrix taken from the pool, scaled down to the given
+     * size and turned upright as the EXIF data says in a single pass. The bitmap is read row by
+     * row, and each pixel is added to the destination pixel it falls into like in LumaExtractor,
+     * so the matrix lines up exactly with the luminance the registration is computed on. The
+     * averages are written straight to their upright position.
+     *
+     * @param bitmap The bitmap to convert.
+     * @param width  The width of the result before it is turned upright, at most that of the
+     *               bitmap.
+     * @param height The height of the result before it is turned upright, at most that of the
+     *               bitmap.
+     * @param exif   The EXIF data of the bitmap.
+     * @return The matrix, which should be returned to the matrix pool when no longer needed.
+     */
+    public Mat toMat(Bitmap bitmap, int width, int height, ExifData exif)
+    {
+        int      srcWidth  = bitmap.getWidth();
+        int      srcHeight = bitmap.getHeight();
+        int      newWidth  = exif.isTransposed() ? height : width;
+        int      newHeight = exif.isTransposed() ? width  : height;
+        double[] t         = exif.getTransform(width, height, 1.0);
+
+        byte[] pixels = new byte[4 * width * height];
+        int[]  row    = new int[srcWidth];
+        int[]  sums   = new int[4 * width];
+        int[]  counts = new int[width];
+        int[]  column = new int[srcWidth];
+
+        // The destination column of every source column.
+        for (int x = 0; x < srcWidth; ++x)
+        {
+            column[x] = (int) ((long) x * width / srcWidth);
+        }
+
+        int current = 0;
+
+        for (int y = 0; y < srcHeight; ++y)
+        {
+            int target = (int) ((long) y * height / srcHeight);
+
+            if (target != current)
+            {
+                flush(sums, counts, pixels, current, t, newWidth);
+                current = target;
+            }
+
+            bitmap.getPixels(row, 0, srcWidth, 0, y, srcWidth, 1);
+
+            for (int x = 0; x < srcWidth; ++x)
+            {
+                int pixel = row[x];
+                int cell  = 4 * column[x];
+
+                sums[cell]     += pixel >> 16 & 0xFF;
+                sums[cell + 1] += pixel >> 8 & 0xFF;
+                sums[cell + 2] += pixel & 0xFF;
+                sums[cell + 3] += pixel >>> 24;
+                counts[column[x]] += 1;
+            }
+        }
+
+        flush(sums, counts, pixels, current, t, newWidth);
+
+        Mat matrix = matPool.lease(newHeight, newWidth, CvType.CV_8UC4);
+        matrix.put(0, 0, pixels);
+        return matrix;
+    }
+
+    /**
+     * Converts the given matrix to an ARGB bitmap taken from the pool.
+     *
+     * @param matrix The CV_8UC1, CV_8UC3 or CV_8UC4 matrix to convert.
+     * @return The bitmap, which should be returned with recycle when no longer needed.
+     */
+    public Bitmap toBitmap(Mat matrix)
+    {
+        Bitmap bitmap = obtainBitmap(matrix.cols(), matrix.rows());
+        Utils.matToBitmap(matrix, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Returns a mutable ARGB bitmap of the given size, reusing a pooled bitmap if possible. The
+     * contents of the bitmap are undefined.
+     *
+     * @param width  The width of the bitmap.
+     * @param height The height of the bitmap.
+     * @return The bitmap.
+     */
+    public synchronized Bitmap obtainBitmap(int width, int height)
+    {
+        long   size      = 4L * width * height;
+        Bitmap candidate = null;
+
+        // Prefer a bitmap of the same size, otherwise take one large enough to reconfigure.
+        for (Bitmap bitmap : bitmaps)
+        {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == Bitmap.Config.ARGB_8888)
+            {
+                candidate = bitmap;
+                break;
+            }
+
+            if (candidate == null && bitmap.getAllocationByteCount() >= size)
+            {
+                candidate = bitmap;
+            }
+        }
+
+        if (candidate == null)
+        {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        bitmaps.remove(candidate);
+        pooledBytes -= candidate.getAllocationByteCount();
+
+        if (candidate.getWidth() != width || candidate.getHeight() != height
+                || candidate.getConfig() != Bitmap.Config.ARGB_8888)
+        {
+            candidate.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        return candidate;
+    }
+
+    /**
+     * Returns a bitmap to the pool. Immutable and recycled bitmaps are ignored.
+     *
+     * @param bitmap The bitmap, which must not be used afterwards, or null.
+     */
+    public synchronized void recycle(Bitmap bitmap)
+    {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmaps.contains(bitmap))
+        {
+            return;
+        }
+
+        bitmaps.addLast(bitmap);
+        pooledBytes += bitmap.getAllocationByteCount();
+        trim();
+    }
+
+    /**
+     * Frees all pooled bitmaps.
+     */
+    public synchronized void clear()
+    {
+        for (Bitmap bitmap : bitmaps)
+        {
+            bitmap.recycle();
+        }
+
+        bitmaps.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Frees the least recently returned bitmaps until the pool fits into its size limit.
+     */
+    private void trim()
+    {
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+
+        while (pooledBytes > maxBytes && iterator.hasNext())
+        {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            pooledBytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Stores the averages of a destination row at their upright positions and resets the sums.
+     *
+     * @param sums     The sums of the RGBA channels per destination column.
+     * @param counts   The number of source pixels per destination column.
+     * @param pixels   The upright destination image.
+     * @param y        The destination row before turning.
+     * @param t        The transformation that turns the destination image upright.
+     * @param newWidth The width of the upright destination image.
+     */
+    private static void flush(int[] sums, int[] counts, byte[] pixels, int y, double[] t,
+                              int newWidth)
+    {
+        for (int x = 0; x < counts.length; ++x)
+        {
+            if (counts[x] > 0)
+            {
+                int u      = (int) Math.round(t[0] * x + t[1] * y + t[2]);
+                int v      = (int) Math.round(t[3] * x + t[4] * y + t[5]);
+                int offset = 4 * (v * newWidth + u);
+
+                for (int c = 0; c < 4; ++c)
+                {
+                    pixels[offset + c] = (byte) ((sums[4 * x + c] + counts[x] / 2) / counts[x]);
+                    sums[4 * x + c]    = 0;
+                }
+            }
+
+            counts[x] = 0;
+        }
+    }
+}
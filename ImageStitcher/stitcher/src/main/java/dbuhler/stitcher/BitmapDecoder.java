@@ -0,0 +1,135 @@
+package dbuhler.stitcher;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class decodes images close to the working resolution of the stitcher instead of at full
+ * resolution. It first reads only the image bounds and then lets the decoder subsample the image
+ * by the largest power of two that keeps it at least as large as the requested size. Images are
+ * decoded on a background executor, so several images can be decoded in parallel.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class BitmapDecoder
+{
+    private static final int THREADS = 2;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    private ContentResolver resolver;
+    private int             maxDimension;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param resolver     The content resolver to open images with.
+     * @param maxDimension The width or height the larger side of the images is reduced to later.
+     */
+    public BitmapDecoder(ContentResolver resolver, int maxDimension)
+    {
+        this.resolver     = resolver;
+        this.maxDimension = maxDimension;
+    }
+
+    /**
+     * Starts decoding the image with the given URI on the background executor.
+     *
+     * @param uri The URI of the image.
+     * @return The future result of decode(uri).
+     */
+    public Future<Bitmap> submit(final Uri uri)
+    {
+        return executor.submit(new Callable<Bitmap>()
+        {
+            @Override
+            public Bitmap call() throws IOException
+            {
+                return decode(uri);
+            }
+        });
+    }
+
+    /**
+     * Decodes the image with the given URI, subsampled towards maxDimension.
+     *
+     * @param uri The URI of the image.
+     * @return The decoded image, or null if it cannot be decoded.
+     * @throws IOException If the image cannot be read.
+     */
+    public Bitmap decode(Uri uri) throws IOException
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(uri, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize       = findSampleSize(options.outWidth, options.outHeight);
+        options.inPreferredConfig  = Bitmap.Config.ARGB_8888;
+
+        return decodeStream(uri, options);
+    }
+
+    /**
+     * Returns the largest power of two by which an image of the given size can be subsampled
+     * without its larger side falling below maxDimension.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The sample size.
+     */
+    private int findSampleSize(int width, int height)
+    {
+        int size       = Math.max(width, height);
+        int sampleSize = 1;
+
+        while (size / (2 * sampleSize) >= maxDimension)
+        {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the image with the given URI with the given options.
+     *
+     * @param uri     The URI of the image.
+     * @param options The options for the decoder.
+     * @return The decoded image, or null if only the bounds were decoded.
+     * @throws IOException If the image cannot be read.
+     */
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException
+    {
+        InputStream stream = resolver.openInputStream(uri);
+
+        if (stream == null)
+        {
+            throw new IOException("Cannot open " + uri);
+        }
+
+        try
+        {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
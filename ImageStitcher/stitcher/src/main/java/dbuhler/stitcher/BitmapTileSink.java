@@ -0,0 +1,82 @@
+package dbuhler.stitcher;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * This tile sink assembles the tiles of an RGBA canvas into a single ARGB bitmap for display. The
+ * tiles are packed straight into the bitmap, so no full-size matrix is needed in addition to it.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class BitmapTileSink implements TiledCompositor.TileSink
+{
+    private Bitmap bitmap;
+    private byte[] tileBytes;
+    private int[]  tilePixels;
+
+    /**
+     * Creates a new sink for a canvas of the given size.
+     *
+     * @param width  The width of the canvas.
+     * @param height The height of the canvas.
+     */
+    public BitmapTileSink(int width, int height)
+    {
+        this(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Creates a new sink that assembles the tiles into the given bitmap, e.g. one taken from a
+     * BitmapConverter. All pixels of the bitmap are overwritten.
+     *
+     * @param bitmap The mutable ARGB bitmap with the size of the canvas.
+     */
+    public BitmapTileSink(Bitmap bitmap)
+    {
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * Returns the bitmap the tiles have been assembled into.
+     *
+     * @return The canvas bitmap.
+     */
+    public Bitmap getBitmap()
+    {
+        return bitmap;
+    }
+
+    /**
+     * Copies an RGBA tile into the bitmap.
+     *
+     * @param rect The position and size of the tile in the canvas.
+     * @param tile The pixels of the tile.
+     */
+    @Override
+    public void onTile(Rect rect, Mat tile)
+    {
+        int n = rect.width * rect.height;
+
+        if (tilePixels == null || tilePixels.length < n)
+        {
+            tileBytes  = new byte[4 * n];
+            tilePixels = new int[n];
+        }
+
+        tile.get(0, 0, tileBytes);
+
+        for (int i = 0; i < n; ++i)
+        {
+            tilePixels[i] = (tileBytes[4 * i + 3] & 0xFF) << 24
+                          | (tileBytes[4 * i]     & 0xFF) << 16
+                          | (tileBytes[4 * i + 1] & 0xFF) << 8
+                          | (tileBytes[4 * i + 2] & 0xFF);
+        }
+
+        bitmap.setPixels(tilePixels, 0, rect.width, rect.x, rect.y, rect.width, rect.height);
+    }
+}
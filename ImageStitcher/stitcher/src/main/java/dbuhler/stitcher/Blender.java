@@ -0,0 +1,33 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+
+/**
+ * A blender combines two overlapping layers of a TiledCompositor. It is only applied to the
+ * overlap rectangle of the two layers plus a border, so its cost does not depend on the size of
+ * the canvas; all other pixels are copied straight through from the warped layers.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public interface Blender
+{
+    /**
+     * Returns the number of pixels by which the overlap rectangle is extended on each side before
+     * blending, e.g. to give filters enough context.
+     *
+     * @return The border in pixels.
+     */
+    int getBorder();
+
+    /**
+     * Blends two warped layers. The masks partition the valid pixels of both layers, i.e. they
+     * say which layer would be drawn at each pixel without blending; e.g. according to a seam.
+     *
+     * @param images The two warped RGBA layers of the same size.
+     * @param masks  The two 8-bit masks, 255 where the respective layer is assigned.
+     * @param dst    The matrix that will contain the blended RGBA pixels, of the same size.
+     * @param pool   The pool to lease temporary matrices from.
+     */
+    void blend(Mat[] images, Mat[] masks, Mat dst, MatPool pool);
+}
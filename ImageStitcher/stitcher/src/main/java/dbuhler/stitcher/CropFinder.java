@@ -0,0 +1,129 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * This class finds the largest axis-aligned rectangle of a TiledCompositor's canvas that is
+ * covered by its layers everywhere. The coverage is computed at reduced resolution, and the
+ * rectangle is shrunk to whole low-resolution cells so that it never includes an uncovered pixel.
+ * Cropping the compositor to the rectangle before rendering removes the black wedges of the
+ * canvas without ever warping, blending or encoding them.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class CropFinder
+{
+    private static final int MAX_DIMENSION = 256;
+
+    /**
+     * Finds the largest covered rectangle of the canvas of the given compositor.
+     *
+     * @param compositor The compositor holding the layers.
+     * @return The rectangle in canvas coordinates, or null if no part of the canvas is covered.
+     */
+    public Rect find(TiledCompositor compositor)
+    {
+        int    width  = compositor.getWidth();
+        int    height = compositor.getHeight();
+        Rect   canvas = new Rect(0, 0, width, height);
+        double scale  = Math.min(1.0, 1.0 * MAX_DIMENSION / Math.max(width, height));
+
+        // Only valid pixels count as covered.
+        Mat warped   = compositor.lease(canvas, scale, CvType.CV_8UC4);
+        Mat alpha    = compositor.lease(canvas, scale, CvType.CV_8UC1);
+        Mat coverage = compositor.lease(canvas, scale, CvType.CV_8UC1);
+
+        for (int k = 0; k < compositor.getLayerCount(); ++k)
+        {
+            compositor.warpLayer(k, canvas, scale, warped);
+            TiledCompositor.findValid(warped, alpha);
+
+            if (k == 0)
+            {
+                alpha.copyTo(coverage);
+            }
+            else
+            {
+                Core.bitwise_or(coverage, alpha, coverage);
+            }
+        }
+
+        int    cols  = coverage.cols();
+        int    rows  = coverage.rows();
+        byte[] cells = new byte[cols * rows];
+        coverage.get(0, 0, cells);
+        compositor.recycle(warped);
+        compositor.recycle(alpha);
+        compositor.recycle(coverage);
+
+        int[] best = findLargestRectangle(cells, cols, rows);
+
+        if (best == null)
+        {
+            return null;
+        }
+
+        // Cells at the edge of the rectangle may be partly uncovered unless they lie on the
+        // border of the canvas, so drop them.
+        int x0 = best[0] == 0    ? 0      : (int) Math.ceil((best[0] + 1) / scale);
+        int y0 = best[1] == 0    ? 0      : (int) Math.ceil((best[1] + 1) / scale);
+        int x1 = best[2] == cols ? width  : (int) Math.floor((best[2] - 1) / scale);
+        int y1 = best[3] == rows ? height : (int) Math.floor((best[3] - 1) / scale);
+
+        return x0 < x1 && y0 < y1 ? new Rect(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+
+    /**
+     * Finds the rectangle of largest area that contains only non-zero cells, using the largest
+     * rectangle under the histogram of consecutive non-zero cells above each row.
+     *
+     * @param cells The cells in row-major order.
+     * @param cols  The number of columns.
+     * @param rows  The number of rows.
+     * @return The left, top, right and bottom cell of the rectangle, exclusive on the right and
+     *         bottom, or null if all cells are zero.
+     */
+    private static int[] findLargestRectangle(byte[] cells, int cols, int rows)
+    {
+        int[] heights = new int[cols];
+        int[] stack   = new int[cols + 1];
+        int[] best    = null;
+        long  area    = 0;
+
+        for (int y = 0; y < rows; ++y)
+        {
+            for (int x = 0; x < cols; ++x)
+            {
+                heights[x] = cells[y * cols + x] != 0 ? heights[x] + 1 : 0;
+            }
+
+            // Each column is popped when a lower column ends the rectangles it can extend.
+            int top = 0;
+
+            for (int x = 0; x <= cols; ++x)
+            {
+                int h = x < cols ? heights[x] : 0;
+
+                while (top > 0 && heights[stack[top - 1]] >= h)
+                {
+                    int height = heights[stack[--top]];
+                    int left   = top > 0 ? stack[top - 1] + 1 : 0;
+
+                    if ((long) height * (x - left) > area)
+                    {
+                        area = (long) height * (x - left);
+                        best = new int[] { left, y + 1 - height, x, y + 1 };
+                    }
+                }
+
+                stack[top++] = x;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,38 @@
+package dbuhler.stitcher;
+
+/**
+ * This warper projects images onto a vertical cylinder around the camera centre. Images taken by
+ * a camera rotating about its vertical axis then only differ by a horizontal translation, and the
+ * width of the panorama grows linearly with the covered angle.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class CylindricalWarper extends Warper
+{
+    /**
+     * Creates a new cylindrical warper.
+     *
+     * @param focalLength The focal length of the camera in pixels.
+     */
+    public CylindricalWarper(double focalLength)
+    {
+        super(focalLength);
+    }
+
+    @Override
+    protected boolean unproject(double u, double v, double[] point)
+    {
+        // u is the angle around the cylinder axis and v the height on the cylinder.
+        double cos = Math.cos(u);
+
+        if (cos <= 0)
+        {
+            return false;
+        }
+
+        point[0] = Math.tan(u);
+        point[1] = v / cos;
+        return true;
+    }
+}
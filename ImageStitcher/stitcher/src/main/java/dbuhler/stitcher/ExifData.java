@@ -0,0 +1,379 @@
+package dbuhler.stitcher;
+
+import android.content.ContentResolver;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class holds the EXIF data of an input image that matters for stitching: the orientation
+ * the image has to be turned by to be upright and the 35 mm equivalent focal length. Since
+ * ExifInterface can only read files, only the head of the image, i.e. the JPEG segments up to the
+ * start of the compressed data, is copied to a temporary file. If the head holds no EXIF segment,
+ * e.g. because the image is not a JPEG file, the whole image is copied instead.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class ExifData
+{
+    // The JPEG markers of the start and end of the image, the start of the scan and the EXIF
+    // segment.
+    private static final int MARKER_SOI  = 0xFFD8;
+    private static final int MARKER_EOI  = 0xFFD9;
+    private static final int MARKER_SOS  = 0xFFDA;
+    private static final int MARKER_APP1 = 0xFFE1;
+
+    // The identifier at the start of an APP1 segment that holds EXIF data.
+    private static final byte[] EXIF_ID = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    // The width of a 35 mm film frame in millimetres.
+    private static final double FILM_WIDTH = 36.0;
+
+    private static final String TAG_FOCAL_LENGTH_35MM = "FocalLengthIn35mmFilm";
+
+    private int orientation = ExifInterface.ORIENTATION_NORMAL;
+    private int focalLength35mm;
+
+    /**
+     * Creates EXIF data for an upright image with unknown focal length.
+     */
+    public ExifData()
+    {
+    }
+
+    /**
+     * Creates EXIF data with the given values.
+     *
+     * @param orientation     The EXIF orientation, one of ExifInterface.ORIENTATION_*.
+     * @param focalLength35mm The 35 mm equivalent focal length in millimetres, or 0 if unknown.
+     */
+    public ExifData(int orientation, int focalLength35mm)
+    {
+        this.orientation     = orientation;
+        this.focalLength35mm = focalLength35mm;
+    }
+
+    /**
+     * Reads the EXIF data of the image with the given URI. Missing or unreadable EXIF data
+     * results in an upright image with unknown focal length.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @param cacheDir The directory for the temporary copy of the head of the image.
+     * @return The EXIF data.
+     */
+    public static ExifData read(ContentResolver resolver, Uri uri, File cacheDir)
+    {
+        File head = null;
+
+        try
+        {
+            head = File.createTempFile("exif", ".jpg", cacheDir);
+            copyHead(resolver, uri, head);
+
+            ExifInterface exif = new ExifInterface(head.getPath());
+            return new ExifData(
+                    exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                                         ExifInterface.ORIENTATION_NORMAL),
+                    exif.getAttributeInt(TAG_FOCAL_LENGTH_35MM, 0));
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return new ExifData();
+        }
+        finally
+        {
+            if (head != null)
+            {
+                head.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the EXIF orientation of the image.
+     *
+     * @return The orientation, one of ExifInterface.ORIENTATION_*.
+     */
+    public int getOrientation()
+    {
+        return orientation;
+    }
+
+    /**
+     * Returns whether the width and height of the image are swapped when it is turned upright.
+     *
+     * @return True if the image is stored sideways, false otherwise.
+     */
+    public boolean isTransposed()
+    {
+        return orientation >= ExifInterface.ORIENTATION_TRANSPOSE
+            && orientation <= ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * Returns the focal length in pixels for the image at the given size. The 35 mm equivalent
+     * focal length relates to the width of a film frame, which the longer side of the image
+     * corresponds to.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @return The focal length in pixels, or 0 if it is unknown.
+     */
+    public double getFocalLength(int width, int height)
+    {
+        return focalLength35mm * Math.max(width, height) / FILM_WIDTH;
+    }
+
+    /**
+     * Returns the affine transformation that turns an image with the given stored size upright
+     * and scales it by the given factor.
+     *
+     * @param width  The stored width of the image.
+     * @param height The stored height of the image.
+     * @param scale  The scale factor.
+     * @return The 2 x 3 transformation in row-major order.
+     */
+    public double[] getTransform(int width, int height, double scale)
+    {
+        // Each orientation maps (x, y) to (a x + b y + c, d x + e y + f) before scaling.
+        double w = width - 1;
+        double h = height - 1;
+        double[] t;
+
+        switch (orientation)
+        {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+
+                t = new double[] { -1, 0, w, 0, 1, 0 };
+                break;
+
+            case ExifInterface.ORIENTATION_ROTATE_180:
+
+                t = new double[] { -1, 0, w, 0, -1, h };
+                break;
+
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+
+                t = new double[] { 1, 0, 0, 0, -1, h };
+                break;
+
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+
+                t = new double[] { 0, 1, 0, 1, 0, 0 };
+                break;
+
+            case ExifInterface.ORIENTATION_ROTATE_90:
+
+                t = new double[] { 0, -1, h, 1, 0, 0 };
+                break;
+
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+
+                t = new double[] { 0, -1, h, -1, 0, w };
+                break;
+
+            case ExifInterface.ORIENTATION_ROTATE_270:
+
+                t = new double[] { 0, 1, 0, -1, 0, w };
+                break;
+
+            default:
+
+                t = new double[] { 1, 0, 0, 0, 1, 0 };
+                break;
+        }
+
+        for (int i = 0; i < t.length; ++i)
+        {
+            t[i] *= scale;
+        }
+
+        return t;
+    }
+
+    /**
+     * Copies the head of the image with the given URI to a file, or the whole image if its head
+     * holds no EXIF segment.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @param file     The file to copy to.
+     * @throws IOException If the image cannot be read or the file cannot be written.
+     */
+    private static void copyHead(ContentResolver resolver, Uri uri, File file) throws IOException
+    {
+        InputStream  input  = open(resolver, uri);
+        OutputStream output = new FileOutputStream(file);
+        boolean      found;
+
+        try
+        {
+            found = copySegments(new DataInputStream(new BufferedInputStream(input)), output);
+        }
+        finally
+        {
+            input.close();
+            output.close();
+        }
+
+        if (found)
+        {
+            return;
+        }
+
+        input  = open(resolver, uri);
+        output = new FileOutputStream(file);
+
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int    count;
+
+            while ((count = input.read(buffer)) > 0)
+            {
+                output.write(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            input.close();
+            output.close();
+        }
+    }
+
+    /**
+     * Copies the segments of a JPEG stream up to and including the start of the scan, followed by
+     * the end of the image so that the copy is a complete file without image data. Every segment
+     * before the scan starts with a marker and a length that includes the length bytes.
+     *
+     * @param input  The JPEG stream.
+     * @param output The stream to copy to.
+     * @return True if an EXIF segment was copied, false if the stream is not a JPEG file or its
+     *         head holds no EXIF segment.
+     * @throws IOException If the image cannot be read or the file cannot be written.
+     */
+    private static boolean copySegments(DataInputStream input, OutputStream output)
+            throws IOException
+    {
+        boolean exif = false;
+
+        try
+        {
+            if (input.readUnsignedShort() != MARKER_SOI)
+            {
+                return false;
+            }
+
+            writeShort(output, MARKER_SOI);
+
+            while (true)
+            {
+                int marker = input.readUnsignedShort();
+
+                // Any number of 0xFF fill bytes may precede a marker.
+                while (marker == 0xFFFF)
+                {
+                    marker = 0xFF00 | input.readUnsignedByte();
+                }
+
+                int length = input.readUnsignedShort();
+
+                if ((marker & 0xFF00) != 0xFF00 || length < 2)
+                {
+                    return false;
+                }
+
+                byte[] data = new byte[length - 2];
+                input.readFully(data);
+                writeShort(output, marker);
+                writeShort(output, length);
+                output.write(data);
+
+                if (marker == MARKER_APP1 && startsWith(data, EXIF_ID))
+                {
+                    exif = true;
+                }
+
+                if (marker == MARKER_SOS)
+                {
+                    writeShort(output, MARKER_EOI);
+                    return exif;
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            // The stream ends before the scan, so it is not a complete JPEG file.
+            return false;
+        }
+    }
+
+    /**
+     * Opens the image with the given URI.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @return The stream of the image.
+     * @throws IOException If the image cannot be opened.
+     */
+    private static InputStream open(ContentResolver resolver, Uri uri) throws IOException
+    {
+        InputStream input = resolver.openInputStream(uri);
+
+        if (input == null)
+        {
+            throw new IOException("Cannot open " + uri);
+        }
+
+        return input;
+    }
+
+    /**
+     * Writes a 16-bit value in big-endian byte order, like all values in a JPEG file.
+     *
+     * @param output The stream to write to.
+     * @param value  The value.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void writeShort(OutputStream output, int value) throws IOException
+    {
+        output.write(value >> 8);
+        output.write(value);
+    }
+
+    /**
+     * Returns whether the given data starts with the given prefix.
+     *
+     * @param data   The data.
+     * @param prefix The prefix.
+     * @return True if the data starts with the prefix, false otherwise.
+     */
+    private static boolean startsWith(byte[] data, byte[] prefix)
+    {
+        if (data.length < prefix.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; ++i)
+        {
+            if (data[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,260 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This tile sink collects the tiles of each row of tiles into a band and hands finished bands to
+ * an ImageEncoder running on its own thread. The bands are passed through a bounded queue, so the
+ * encoder works on one band while the compositor renders the next ones, and at most a few bands
+ * of the canvas exist in memory at a time. If encoding fails, the encoder thread keeps draining
+ * the queue so that the compositor never blocks, and the next tile stops the rendering.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class ExportSink implements TiledCompositor.TileSink
+{
+    // The number of finished bands that may wait for the encoder.
+    private static final int QUEUE_CAPACITY = 2;
+
+    private static final Band END = new Band(new byte[0], 0);
+
+    private int                 width;
+    private Band                band;
+    private byte[]              pixels;
+    private BlockingQueue<Band> queue;
+    private BlockingQueue<Band> free;
+    private Thread              thread;
+    private volatile Throwable  error;
+
+    /**
+     * The RGBA pixels of a band of rows.
+     */
+    private static final class Band
+    {
+        private byte[] data;
+        private int    rows;
+
+        private Band(byte[] data, int rows)
+        {
+            this.data = data;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Creates a new sink and starts encoding an image of the given size to the given stream.
+     *
+     * @param encoder The encoder of the image.
+     * @param output  The stream to write the image to, e.g. opened for a MediaStore URI.
+     * @param width   The width of the canvas.
+     * @param height  The height of the canvas.
+     */
+    public ExportSink(final ImageEncoder encoder, final OutputStream output,
+                      final int width, final int height)
+    {
+        this.width = width;
+        queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        free  = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                encode(encoder, output, width, height);
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Copies the tile into the current band and passes finished bands to the encoder.
+     *
+     * @param rect The position and size of the tile in the canvas.
+     * @param tile The pixels of the tile.
+     * @throws IllegalStateException If encoding has failed, to stop the rendering; finish()
+     *                               reports the cause.
+     */
+    @Override
+    public void onTile(Rect rect, Mat tile)
+    {
+        if (error != null)
+        {
+            throw new IllegalStateException("Encoding failed", error);
+        }
+
+        if (band == null)
+        {
+            band = takeBand(rect.height);
+        }
+
+        int length = 4 * rect.width * rect.height;
+
+        if (pixels == null || pixels.length < length)
+        {
+            pixels = new byte[length];
+        }
+
+        tile.get(0, 0, pixels);
+
+        for (int y = 0; y < rect.height; ++y)
+        {
+            System.arraycopy(pixels, 4 * y * rect.width,
+                             band.data, 4 * (y * width + rect.x), 4 * rect.width);
+        }
+
+        // The last tile of a row of tiles finishes the band.
+        if (rect.x + rect.width == width)
+        {
+            put(band);
+            band = null;
+        }
+    }
+
+    /**
+     * Waits until all bands are encoded and the image is finished.
+     *
+     * @throws IOException If the image could not be written.
+     */
+    public void finish() throws IOException
+    {
+        put(END);
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding", e);
+        }
+
+        if (error instanceof IOException)
+        {
+            throw (IOException) error;
+        }
+
+        if (error != null)
+        {
+            throw new IOException("Encoding failed", error);
+        }
+    }
+
+    /**
+     * Encodes the bands from the queue until the end marker arrives. Any error of the encoder,
+     * including runtime exceptions, is recorded, and the remaining bands are drained so that
+     * the compositor and finish() do not block.
+     *
+     * @param encoder The encoder of the image.
+     * @param output  The stream to write the image to.
+     * @param width   The width of the image.
+     * @param height  The height of the image.
+     */
+    private void encode(ImageEncoder encoder, OutputStream output, int width, int height)
+    {
+        try
+        {
+            encoder.begin(output, width, height);
+        }
+        catch (Throwable e)
+        {
+            error = e;
+        }
+
+        while (true)
+        {
+            Band next;
+
+            try
+            {
+                next = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                // Keep draining; the end marker is still to come.
+                if (error == null)
+                {
+                    error = new IOException("Interrupted while encoding", e);
+                }
+
+                continue;
+            }
+
+            if (next == END)
+            {
+                break;
+            }
+
+            try
+            {
+                if (error == null)
+                {
+                    encoder.writeRows(next.data, next.rows);
+                }
+            }
+            catch (Throwable e)
+            {
+                error = e;
+            }
+
+            free.offer(next);
+        }
+
+        try
+        {
+            if (error == null)
+            {
+                encoder.end();
+            }
+        }
+        catch (Throwable e)
+        {
+            error = e;
+        }
+    }
+
+    /**
+     * Returns a band for the given number of rows, reusing an encoded band if possible.
+     *
+     * @param rows The number of rows.
+     * @return The band.
+     */
+    private Band takeBand(int rows)
+    {
+        Band reused = free.poll();
+
+        if (reused != null && reused.data.length >= 4 * width * rows)
+        {
+            reused.rows = rows;
+            return reused;
+        }
+
+        return new Band(new byte[4 * width * rows], rows);
+    }
+
+    /**
+     * Passes a band to the encoder thread, waiting while the queue is full.
+     *
+     * @param next The band.
+     */
+    private void put(Band next)
+    {
+        try
+        {
+            queue.put(next);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while exporting", e);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class caches detected features on disk, so that images which are stitched again, e.g.
+ * against another neighbour, do not have to be searched for features again. Each entry is a file
+ * named after a hash of the image, the detection mask and the detector and extractor types, and
+ * holds the key points and the binary descriptors in the layout OpenCV stores them in, so that a
+ * file is mapped into memory and copied into the matrices in one go:
+ *
+ *   int   magic, version, key point count, descriptor rows, descriptor columns, descriptor type
+ *   float key points[count][7]   (x, y, size, angle, response, octave, class id)
+ *   byte  descriptors[rows][columns * element size]
+ *
+ * All values are in native byte order. When the total size of the entries exceeds the limit, the
+ * least recently used entries are deleted.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class FeatureCache
+{
+    private static final int MAGIC       = 0x46454154;
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+
+    // MatOfKeyPoint stores every key point as seven floats.
+    private static final int KEY_POINT_FLOATS = 7;
+
+    private static final String SUFFIX = ".feat";
+
+    private File directory;
+    private long maxBytes;
+
+    /**
+     * Creates a feature cache in the given directory.
+     *
+     * @param directory The directory of the cache files; it is created if necessary.
+     * @param maxBytes  The maximum total size of the cache files.
+     */
+    public FeatureCache(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes  = maxBytes;
+
+        directory.mkdirs();
+    }
+
+    /**
+     * Computes the key of the features detected in the given image with the given mask and the
+     * given detector and extractor. Since the pixels are hashed, the key also covers the working
+     * resolution, the orientation and any projection of the image.
+     *
+     * @param image         The greyscale image.
+     * @param mask          The detection mask.
+     * @param detectorType  The FeatureDetector type.
+     * @param extractorType The DescriptorExtractor type.
+     * @return The key as a hexadecimal string.
+     */
+    public static String createKey(Mat image, Mat mask, int detectorType, int extractorType)
+    {
+        MessageDigest digest;
+
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer params = ByteBuffer.allocate(4 * 4);
+        params.putInt(detectorType).putInt(extractorType).putInt(image.cols()).putInt(image.rows());
+        digest.update(params.array());
+        digest.update(getBytes(image));
+        digest.update(getBytes(mask));
+
+        StringBuilder key = new StringBuilder();
+
+        for (byte b : digest.digest())
+        {
+            key.append(String.format("%02x", b));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Loads the features with the given key into the given matrices.
+     *
+     * @param key         The key of the features, see createKey.
+     * @param keyPoints   The matrix to receive the key points.
+     * @param descriptors The matrix to receive the descriptors.
+     * @return True if the features were found, false otherwise.
+     */
+    public synchronized boolean load(String key, MatOfKeyPoint keyPoints, Mat descriptors)
+    {
+        File file = getFile(key);
+
+        if (!file.isFile())
+        {
+            return false;
+        }
+
+        try
+        {
+            FileInputStream input = new FileInputStream(file);
+
+            try
+            {
+                FileChannel      channel = input.getChannel();
+                MappedByteBuffer buffer  = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                       0, channel.size());
+                buffer.order(ByteOrder.nativeOrder());
+
+                if (!read(buffer, keyPoints, descriptors))
+                {
+                    file.delete();
+                    return false;
+                }
+            }
+            finally
+            {
+                input.close();
+            }
+
+            // The modification time records the last use for the eviction.
+            file.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Stores the given features under the given key and evicts the least recently used entries
+     * if the cache has grown too large.
+     *
+     * @param key         The key of the features, see createKey.
+     * @param keyPoints   The key points.
+     * @param descriptors The descriptors.
+     */
+    public synchronized void store(String key, MatOfKeyPoint keyPoints, Mat descriptors)
+    {
+        // Only binary descriptors such as FREAK are cached.
+        if (descriptors.depth() != CvType.CV_8U)
+        {
+            return;
+        }
+
+        int     count          = (int) keyPoints.total();
+        float[] points         = new float[count * KEY_POINT_FLOATS];
+        byte[]  descriptorData = new byte[(int) (descriptors.total() * descriptors.elemSize())];
+
+        if (count > 0)
+        {
+            keyPoints.get(0, 0, points);
+        }
+
+        if (descriptorData.length > 0)
+        {
+            descriptors.get(0, 0, descriptorData);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * points.length
+                                                + descriptorData.length);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+        buffer.putInt(descriptors.rows()).putInt(descriptors.cols()).putInt(descriptors.type());
+        buffer.asFloatBuffer().put(points);
+        buffer.position(HEADER_SIZE + 4 * points.length);
+        buffer.put(descriptorData);
+        buffer.flip();
+
+        // Write to a temporary file first so that a partly written entry is never loaded.
+        File file = getFile(key);
+        File temp = new File(directory, key + ".tmp");
+
+        try
+        {
+            FileOutputStream output = new FileOutputStream(temp);
+
+            try
+            {
+                FileChannel channel = output.getChannel();
+
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+
+            if (!temp.renameTo(file))
+            {
+                throw new IOException("Cannot rename " + temp);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        evict();
+    }
+
+    /**
+     * Deletes all cache files.
+     */
+    public synchronized void clear()
+    {
+        for (File file : listEntries())
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads the features from a mapped cache file.
+     *
+     * @param buffer      The contents of the file.
+     * @param keyPoints   The matrix to receive the key points.
+     * @param descriptors The matrix to receive the descriptors.
+     * @return True if the file was valid, false otherwise.
+     */
+    private static boolean read(ByteBuffer buffer, MatOfKeyPoint keyPoints, Mat descriptors)
+    {
+        if (buffer.remaining() < HEADER_SIZE
+                || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        {
+            return false;
+        }
+
+        int count = buffer.getInt();
+        int rows  = buffer.getInt();
+        int cols  = buffer.getInt();
+        int type  = buffer.getInt();
+
+        long pointBytes      = 4L * count * KEY_POINT_FLOATS;
+        long descriptorBytes = (long) rows * cols * CvType.ELEM_SIZE(type);
+
+        if (count < 0 || rows < 0 || cols < 0
+                || buffer.remaining() != pointBytes + descriptorBytes)
+        {
+            return false;
+        }
+
+        float[] points = new float[count * KEY_POINT_FLOATS];
+        buffer.asFloatBuffer().get(points);
+        buffer.position((int) (HEADER_SIZE + pointBytes));
+
+        byte[] descriptorData = new byte[(int) descriptorBytes];
+        buffer.get(descriptorData);
+
+        keyPoints.create(count, 1, CvType.CV_32FC(KEY_POINT_FLOATS));
+        descriptors.create(rows, cols, type);
+
+        if (count > 0)
+        {
+            keyPoints.put(0, 0, points);
+        }
+
+        if (descriptorData.length > 0)
+        {
+            descriptors.put(0, 0, descriptorData);
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into its size limit.
+     */
+    private void evict()
+    {
+        File[] entries = listEntries();
+        long   total   = 0;
+
+        for (File entry : entries)
+        {
+            total += entry.length();
+        }
+
+        Arrays.sort(entries, new Comparator<File>()
+        {
+            @Override
+            public int compare(File a, File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (int i = 0; i < entries.length && total > maxBytes; ++i)
+        {
+            total -= entries[i].length();
+            entries[i].delete();
+        }
+    }
+
+    /**
+     * Returns the cache files.
+     *
+     * @return The cache files, possibly empty.
+     */
+    private File[] listEntries()
+    {
+        File[] entries = directory.listFiles();
+
+        if (entries == null)
+        {
+            return new File[0];
+        }
+
+        int count = 0;
+
+        for (File entry : entries)
+        {
+            if (entry.getName().endsWith(SUFFIX))
+            {
+                entries[count++] = entry;
+            }
+        }
+
+        return Arrays.copyOf(entries, count);
+    }
+
+    /**
+     * Returns the cache file for the given key.
+     *
+     * @param key The key of the features.
+     * @return The cache file.
+     */
+    private File getFile(String key)
+    {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Returns the pixels of a matrix as bytes.
+     *
+     * @param matrix The 8-bit matrix.
+     * @return The pixels.
+     */
+    private static byte[] getBytes(Mat matrix)
+    {
+        byte[] bytes = new byte[(int) (matrix.total() * matrix.elemSize())];
+
+        if (bytes.length > 0)
+        {
+            Mat continuous = matrix.isContinuous() ? matrix : matrix.clone();
+            continuous.get(0, 0, bytes);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * This class compensates exposure differences between the layers of a TiledCompositor. For every
+ * pair of overlapping layers, the mean intensities of both layers in their overlap are measured
+ * at thumbnail resolution. One gain per layer is then found by least squares so that the gained
+ * means agree, while keeping all gains close to 1. The compositor applies the gains while warping,
+ * so compensation costs no extra pass over the full-resolution images.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class GainCompensator
+{
+    private static final int MAX_DIMENSION = 128;
+
+    // Standard deviations of the intensity error and of the gains, see Brown and Lowe (2007).
+    private static final double SIGMA_INTENSITY = 10.0;
+    private static final double SIGMA_GAIN      = 0.1;
+
+    /**
+     * Estimates the gains of all layers of the given compositor and sets them in the compositor.
+     * The layers must not have gains set yet.
+     *
+     * @param compositor The compositor holding the layers.
+     * @return The gain of each layer.
+     */
+    public double[] compensate(TiledCompositor compositor)
+    {
+        int      n = compositor.getLayerCount();
+        double[] a = new double[n * n];
+        double[] b = new double[n];
+
+        for (int i = 0; i < n; ++i)
+        {
+            for (int j = i + 1; j < n; ++j)
+            {
+                double[] means = measureOverlap(compositor, i, j);
+
+                if (means == null)
+                {
+                    continue;
+                }
+
+                // Add the terms of the error for the pair in both directions.
+                double count = means[2];
+                addPair(a, b, n, i, j, count, means[0], means[1]);
+                addPair(a, b, n, j, i, count, means[1], means[0]);
+            }
+        }
+
+        // Layers without any overlap keep their exposure.
+        for (int i = 0; i < n; ++i)
+        {
+            if (a[i * n + i] == 0)
+            {
+                a[i * n + i] = 1;
+                b[i]         = 1;
+            }
+        }
+
+        if (!MotionModel.solveLinear(a, b, n))
+        {
+            return null;
+        }
+
+        for (int i = 0; i < n; ++i)
+        {
+            compositor.setGain(i, b[i]);
+        }
+
+        return b;
+    }
+
+    /**
+     * Adds the normal equation terms of the error between layers i and j to row i.
+     *
+     * @param a     The n x n matrix of the normal equations.
+     * @param b     The right-hand side of the normal equations.
+     * @param n     The number of layers.
+     * @param i     The index of the first layer.
+     * @param j     The index of the second layer.
+     * @param count The number of overlapping pixels.
+     * @param meanI The mean intensity of layer i in the overlap.
+     * @param meanJ The mean intensity of layer j in the overlap.
+     */
+    private static void addPair(double[] a, double[] b, int n, int i, int j,
+                                double count, double meanI, double meanJ)
+    {
+        double intensityWeight = 1.0 / (SIGMA_INTENSITY * SIGMA_INTENSITY);
+        double gainWeight      = 1.0 / (SIGMA_GAIN * SIGMA_GAIN);
+
+        // The intensity error of the pair appears in the error of both directions, so its
+        // derivative counts twice, while the prior on the gain of layer i only appears here.
+        a[i * n + i] += count * (2 * meanI * meanI * intensityWeight + gainWeight);
+        a[i * n + j] -= count * 2 * meanI * meanJ * intensityWeight;
+        b[i]         += count * gainWeight;
+    }
+
+    /**
+     * Measures the mean intensities of two layers where both are valid at thumbnail resolution.
+     *
+     * @param compositor The compositor holding the layers.
+     * @param i          The index of the first layer.
+     * @param j          The index of the second layer.
+     * @return The mean intensities of both layers and the number of pixels, or null if the layers
+     *         do not overlap.
+     */
+    private static double[] measureOverlap(TiledCompositor compositor, int i, int j)
+    {
+        Rect rect = compositor.findOverlap(i, j);
+
+        if (rect == null)
+        {
+            return null;
+        }
+
+        double scale = Math.min(1.0, 1.0 * MAX_DIMENSION / Math.max(rect.width, rect.height));
+        Mat    first  = compositor.lease(rect, scale, CvType.CV_8UC4);
+        Mat    second = compositor.lease(rect, scale, CvType.CV_8UC4);
+        compositor.warpLayer(i, rect, scale, first);
+        compositor.warpLayer(j, rect, scale, second);
+
+        byte[] firstPixels  = new byte[(int) (first.total() * first.channels())];
+        byte[] secondPixels = new byte[firstPixels.length];
+        first.get(0, 0, firstPixels);
+        second.get(0, 0, secondPixels);
+        compositor.recycle(first);
+        compositor.recycle(second);
+
+        long sumI  = 0;
+        long sumJ  = 0;
+        int  count = 0;
+
+        for (int p = 0; p < firstPixels.length; p += 4)
+        {
+            if (!TiledCompositor.isValid(firstPixels[p + 3])
+                    || !TiledCompositor.isValid(secondPixels[p + 3]))
+            {
+                continue;
+            }
+
+            for (int c = 0; c < 3; ++c)
+            {
+                sumI += firstPixels[p + c] & 0xFF;
+                sumJ += secondPixels[p + c] & 0xFF;
+            }
+
+            ++count;
+        }
+
+        if (count == 0)
+        {
+            return null;
+        }
+
+        return new double[] { sumI / (3.0 * count), sumJ / (3.0 * count), count };
+    }
+}
@@ -0,0 +1,146 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * This class provides arithmetic on 3x3 homographies stored as arrays in row-major order, which
+ * avoids a native call for every small matrix operation during compositing.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class Homography
+{
+    private Homography()
+    {
+    }
+
+    /**
+     * Returns the identity homography.
+     *
+     * @return The identity in row-major order.
+     */
+    public static double[] identity()
+    {
+        return new double[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+    }
+
+    /**
+     * Returns the homography of a translation.
+     *
+     * @param tx The horizontal translation.
+     * @param ty The vertical translation.
+     * @return The translation in row-major order.
+     */
+    public static double[] translation(double tx, double ty)
+    {
+        return new double[] { 1, 0, tx, 0, 1, ty, 0, 0, 1 };
+    }
+
+    /**
+     * Returns the homography of an anisotropic scaling about the origin.
+     *
+     * @param sx The horizontal scale factor.
+     * @param sy The vertical scale factor.
+     * @return The scaling in row-major order.
+     */
+    public static double[] scaling(double sx, double sy)
+    {
+        return new double[] { sx, 0, 0, 0, sy, 0, 0, 0, 1 };
+    }
+
+    /**
+     * Reads a 3x3 matrix into an array.
+     *
+     * @param matrix The 3x3 matrix.
+     * @return The matrix in row-major order.
+     */
+    public static double[] fromMat(Mat matrix)
+    {
+        Mat      converted = new Mat();
+        double[] h         = new double[9];
+        matrix.convertTo(converted, CvType.CV_64F);
+        converted.get(0, 0, h);
+        return h;
+    }
+
+    /**
+     * Creates a 3x3 matrix from an array.
+     *
+     * @param h The matrix in row-major order.
+     * @return The 3x3 matrix of type CV_64F.
+     */
+    public static Mat toMat(double[] h)
+    {
+        Mat matrix = new Mat(3, 3, CvType.CV_64F);
+        matrix.put(0, 0, h);
+        return matrix;
+    }
+
+    /**
+     * Returns the product a * b of two homographies, i.e. the homography that applies b first.
+     *
+     * @param a The left factor.
+     * @param b The right factor.
+     * @return The product in row-major order.
+     */
+    public static double[] multiply(double[] a, double[] b)
+    {
+        double[] c = new double[9];
+
+        for (int i = 0; i < 3; ++i)
+        {
+            for (int j = 0; j < 3; ++j)
+            {
+                c[3 * i + j] = a[3 * i] * b[j] + a[3 * i + 1] * b[3 + j] + a[3 * i + 2] * b[6 + j];
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * Returns the inverse of a homography using its adjugate.
+     *
+     * @param h The homography in row-major order.
+     * @return The inverse in row-major order, or null if the homography is singular.
+     */
+    public static double[] invert(double[] h)
+    {
+        double[] a = {
+                h[4] * h[8] - h[5] * h[7], h[2] * h[7] - h[1] * h[8], h[1] * h[5] - h[2] * h[4],
+                h[5] * h[6] - h[3] * h[8], h[0] * h[8] - h[2] * h[6], h[2] * h[3] - h[0] * h[5],
+                h[3] * h[7] - h[4] * h[6], h[1] * h[6] - h[0] * h[7], h[0] * h[4] - h[1] * h[3] };
+
+        double det = h[0] * a[0] + h[1] * a[3] + h[2] * a[6];
+
+        if (det == 0)
+        {
+            return null;
+        }
+
+        for (int i = 0; i < 9; ++i)
+        {
+            a[i] /= det;
+        }
+
+        return a;
+    }
+
+    /**
+     * Applies a homography to a point.
+     *
+     * @param h The homography in row-major order.
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @return The mapped x and y coordinates and the homogeneous weight, which is not positive if
+     *         the point is mapped behind the camera.
+     */
+    public static double[] transform(double[] h, double x, double y)
+    {
+        double w = h[6] * x + h[7] * y + h[8];
+        return new double[] {
+                (h[0] * x + h[1] * y + h[2]) / w, (h[3] * x + h[4] * y + h[5]) / w, w };
+    }
+}
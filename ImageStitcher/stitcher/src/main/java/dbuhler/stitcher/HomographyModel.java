@@ -0,0 +1,205 @@
+package dbuhler.stitcher;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * This motion model is a general 8-DOF homography, solved from four points using the normalized
+ * direct linear transform.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class HomographyModel extends MotionModel
+{
+    private static final double MIN_SINE = 0.05;
+
+    // Each row lists the three sample indices forming one of the four triangles of a sample.
+    private static final int[][] TRIANGLES = { {0, 1, 2}, {0, 1, 3}, {0, 2, 3}, {1, 2, 3} };
+
+    @Override
+    public Type getType()
+    {
+        return Type.HOMOGRAPHY;
+    }
+
+    @Override
+    public int getSampleSize()
+    {
+        return 4;
+    }
+
+    /**
+     * Checks whether a sample can define a plausible homography. This is the case if no three of
+     * its points are nearly collinear in either image and if every triangle of sample points has
+     * the same orientation in both images.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @return True if the sample is valid, false otherwise.
+     */
+    @Override
+    public boolean isSampleValid(float[] src, float[] dst, int[] sample)
+    {
+        for (int[] triangle : TRIANGLES)
+        {
+            int i = sample[triangle[0]];
+            int j = sample[triangle[1]];
+            int k = sample[triangle[2]];
+
+            double crossSrc = cross(src, i, j, k);
+            double crossDst = cross(dst, i, j, k);
+
+            if (isCollinear(src, i, j, k, crossSrc, MIN_SINE)
+                    || isCollinear(dst, i, j, k, crossDst, MIN_SINE)
+                    || (crossSrc > 0) != (crossDst > 0))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Solves for the homography through the four sample points using the normalized direct linear
+     * transform.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @param h      The array that will contain the homography in row-major order.
+     * @return True if the homography could be solved, false if the system was singular.
+     */
+    @Override
+    public boolean solve(float[] src, float[] dst, int[] sample, double[] h)
+    {
+        double[] srcNorm = normalization(src, sample);
+        double[] dstNorm = normalization(dst, sample);
+        double[] a       = new double[8 * 8];
+        double[] b       = new double[8];
+
+        for (int i = 0; i < sample.length; ++i)
+        {
+            double x = (src[2 * sample[i]]     - srcNorm[0]) * srcNorm[2];
+            double y = (src[2 * sample[i] + 1] - srcNorm[1]) * srcNorm[2];
+            double u = (dst[2 * sample[i]]     - dstNorm[0]) * dstNorm[2];
+            double v = (dst[2 * sample[i] + 1] - dstNorm[1]) * dstNorm[2];
+
+            int r = 16 * i;
+            a[r]      = x;
+            a[r + 1]  = y;
+            a[r + 2]  = 1;
+            a[r + 6]  = -u * x;
+            a[r + 7]  = -u * y;
+            a[r + 11] = x;
+            a[r + 12] = y;
+            a[r + 13] = 1;
+            a[r + 14] = -v * x;
+            a[r + 15] = -v * y;
+            b[2 * i]     = u;
+            b[2 * i + 1] = v;
+        }
+
+        if (!solveLinear(a, b, 8))
+        {
+            return false;
+        }
+
+        // Undo the normalization: h = inverse(T_dst) * h_norm * T_src.
+        double ss = srcNorm[2];
+        double sd = dstNorm[2];
+        double sx = srcNorm[0];
+        double sy = srcNorm[1];
+        double dx = dstNorm[0];
+        double dy = dstNorm[1];
+
+        double[] n = { b[0], b[1], b[2], b[3], b[4], b[5], b[6], b[7], 1 };
+
+        for (int r = 0; r < 3; ++r)
+        {
+            // Multiply row r of h_norm by T_src.
+            h[3 * r]     = n[3 * r]     * ss;
+            h[3 * r + 1] = n[3 * r + 1] * ss;
+            h[3 * r + 2] = n[3 * r + 2] - (n[3 * r] * sx + n[3 * r + 1] * sy) * ss;
+        }
+
+        for (int c = 0; c < 3; ++c)
+        {
+            // Multiply column c by inverse(T_dst).
+            h[c]     = h[c]     / sd + dx * h[6 + c];
+            h[3 + c] = h[3 + c] / sd + dy * h[6 + c];
+        }
+
+        if (h[8] == 0)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < 9; ++i)
+        {
+            h[i] /= h[8];
+        }
+
+        return true;
+    }
+
+    /**
+     * Fits a homography to all inliers using least squares.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined homography, or an empty matrix if the fit failed.
+     */
+    @Override
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        Mat homography = Calib3d.findHomography(selectInliers(src, inliers, count),
+                                                selectInliers(dst, inliers, count), 0, 0);
+
+        if (!homography.empty() && homography.type() != CvType.CV_64F)
+        {
+            homography.convertTo(homography, CvType.CV_64F);
+        }
+
+        return homography;
+    }
+
+    /**
+     * Computes the similarity normalization for the sample points, which moves their centroid to
+     * the origin and scales their mean distance from it to sqrt(2).
+     *
+     * @param p      The point coordinates.
+     * @param sample The sample indices.
+     * @return The centroid x, centroid y and scale factor.
+     */
+    private static double[] normalization(float[] p, int[] sample)
+    {
+        double cx = 0;
+        double cy = 0;
+
+        for (int i : sample)
+        {
+            cx += p[2 * i];
+            cy += p[2 * i + 1];
+        }
+
+        cx /= sample.length;
+        cy /= sample.length;
+
+        double distance = 0;
+
+        for (int i : sample)
+        {
+            distance += Math.hypot(p[2 * i] - cx, p[2 * i + 1] - cy);
+        }
+
+        distance /= sample.length;
+
+        return new double[] { cx, cy, distance > 0 ? Math.sqrt(2) / distance : 1 };
+    }
+}
@@ -0,0 +1,47 @@
+package dbuhler.stitcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An image encoder writes an image to a stream row by row, so that the image never has to exist
+ * in memory as a whole. Rows are passed in order from top to bottom, in any number per call.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public interface ImageEncoder
+{
+    /**
+     * Starts writing an image of the given size to the given stream.
+     *
+     * @param output The stream to write to; it is not closed by the encoder.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @throws IOException If the stream cannot be written.
+     */
+    void begin(OutputStream output, int width, int height) throws IOException;
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param rgba The RGBA pixels of the rows, 4 * width bytes per row.
+     * @param rows The number of rows.
+     * @throws IOException If the stream cannot be written.
+     */
+    void writeRows(byte[] rgba, int rows) throws IOException;
+
+    /**
+     * Finishes writing the image after all rows have been written.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    void end() throws IOException;
+
+    /**
+     * Returns the usual file name extension of the images written by this encoder.
+     *
+     * @return The extension without a dot, e.g. "jpg".
+     */
+    String getExtension();
+}
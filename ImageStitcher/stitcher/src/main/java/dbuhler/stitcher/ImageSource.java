@@ -0,0 +1,39 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * An image source provides the pixels of a layer of a TiledCompositor region by region, so that
+ * a source does not have to hold the whole image in memory.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public interface ImageSource
+{
+    /**
+     * Returns the width of the image.
+     *
+     * @return The width in pixels.
+     */
+    int getWidth();
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return The height in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Reads a region of the image, subsampled by the given factor. The result has
+     * ceil(width / sampleSize) x ceil(height / sampleSize) RGBA pixels. It belongs to the source
+     * and is only valid until the next call.
+     *
+     * @param region     The region to read, inside the image.
+     * @param sampleSize The subsampling factor, a power of two.
+     * @return The pixels of the region.
+     */
+    Mat read(Rect region, int sampleSize);
+}
@@ -0,0 +1,553 @@
+package dbuhler.stitcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This encoder writes baseline JPEG images with 4:2:0 chroma subsampling and the standard Huffman
+ * tables of the JPEG specification. Rows are collected until a full row of 16 x 16 pixel MCUs is
+ * available, which is then transformed with a floating-point AAN DCT and written right away, so
+ * at most 16 rows of the image are held at a time. The alpha channel is dropped.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class JpegEncoder implements ImageEncoder
+{
+    public static final int DEFAULT_QUALITY = 90;
+
+    private static final int MCU_SIZE = 16;
+
+    private static final int[] ZIGZAG = {
+             0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    private static final int[] LUMA_QUANT = {
+            16, 11, 10, 16,  24,  40,  51,  61, 12, 12, 14, 19,  26,  58,  60,  55,
+            14, 13, 16, 24,  40,  57,  69,  56, 14, 17, 22, 29,  51,  87,  80,  62,
+            18, 22, 37, 56,  68, 109, 103,  77, 24, 35, 55, 64,  81, 104, 113,  92,
+            49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103,  99 };
+
+    private static final int[] CHROMA_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99 };
+
+    // The standard Huffman tables as code counts per length and symbols.
+    private static final int[] DC_LUMA_BITS   = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_CHROMA_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] DC_VALUES      = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+    private static final int[] AC_LUMA_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D };
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08, 0x23, 0x42, 0xB1, 0xC1,
+            0x15, 0x52, 0xD1, 0xF0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16, 0x17, 0x18,
+            0x19, 0x1A, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6A, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8A, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+            0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+            0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8,
+            0xD9, 0xDA, 0xE1, 0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF1, 0xF2,
+            0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8, 0xF9, 0xFA };
+
+    private static final int[] AC_CHROMA_BITS = {
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xA1, 0xB1, 0xC1, 0x09,
+            0x23, 0x33, 0x52, 0xF0, 0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34, 0xE1, 0x25,
+            0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26, 0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4A, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6A, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+            0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA,
+            0xC2, 0xC3, 0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6,
+            0xD7, 0xD8, 0xD9, 0xDA, 0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF2,
+            0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8, 0xF9, 0xFA };
+
+    // The scale factors of the AAN DCT, cos(k * pi / 16) * sqrt(2) for k > 0.
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379 };
+
+    private int quality;
+
+    private OutputStream output;
+    private int          width;
+    private int          height;
+    private byte[]       rows;
+    private int          rowCount;
+
+    private int[][]   quantTables;
+    private float[][] divisors;
+    private int[][]   dcCodes;
+    private int[][]   acCodes;
+    private int[]     lastDc;
+
+    private byte[] buffer;
+    private int    bufferLength;
+    private int    bitBuffer;
+    private int    bitCount;
+
+    private float[] block;
+    private int[]   coefficients;
+    private float[] y;
+    private float[] cb;
+    private float[] cr;
+
+    /**
+     * Creates a new JPEG encoder with DEFAULT_QUALITY.
+     */
+    public JpegEncoder()
+    {
+        this(DEFAULT_QUALITY);
+    }
+
+    /**
+     * Creates a new JPEG encoder.
+     *
+     * @param quality The quality between 1 and 100 as in the IJG library.
+     */
+    public JpegEncoder(int quality)
+    {
+        this.quality = Math.max(1, Math.min(100, quality));
+    }
+
+    @Override
+    public void begin(OutputStream output, int width, int height) throws IOException
+    {
+        this.output = output;
+        this.width  = width;
+        this.height = height;
+        rowCount     = 0;
+        rows         = new byte[MCU_SIZE * 4 * width];
+        buffer       = new byte[8192];
+        bufferLength = 0;
+        bitBuffer    = 0;
+        bitCount     = 0;
+        lastDc       = new int[3];
+        block        = new float[64];
+        coefficients = new int[64];
+        y            = new float[4 * 64];
+        cb           = new float[64];
+        cr           = new float[64];
+
+        createTables();
+        writeHeaders();
+    }
+
+    @Override
+    public void writeRows(byte[] rgba, int count) throws IOException
+    {
+        int stride = 4 * width;
+
+        for (int r = 0; r < count; ++r)
+        {
+            System.arraycopy(rgba, r * stride, rows, rowCount * stride, stride);
+
+            if (++rowCount == MCU_SIZE)
+            {
+                encodeMcuRow();
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException
+    {
+        if (rowCount > 0)
+        {
+            encodeMcuRow();
+        }
+
+        // Pad the last byte with ones and write the end-of-image marker.
+        if (bitCount > 0)
+        {
+            writeBits(0x7F, 8 - bitCount);
+        }
+
+        flushBuffer();
+        output.write(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+        output.flush();
+    }
+
+    @Override
+    public String getExtension()
+    {
+        return "jpg";
+    }
+
+    /**
+     * Scales the standard quantization tables for the quality and prepares the divisors of the
+     * AAN DCT and the Huffman codes.
+     */
+    private void createTables()
+    {
+        int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+
+        quantTables = new int[][] { new int[64], new int[64] };
+        divisors    = new float[][] { new float[64], new float[64] };
+        int[][] base = { LUMA_QUANT, CHROMA_QUANT };
+
+        for (int t = 0; t < 2; ++t)
+        {
+            for (int i = 0; i < 64; ++i)
+            {
+                int q = Math.max(1, Math.min(255, (base[t][i] * scale + 50) / 100));
+                quantTables[t][i] = q;
+                divisors[t][i]    = (float) (1.0 / (q * AAN_SCALE[i / 8] * AAN_SCALE[i % 8] * 8));
+            }
+        }
+
+        dcCodes = new int[][] { createCodes(DC_LUMA_BITS, DC_VALUES),
+                                createCodes(DC_CHROMA_BITS, DC_VALUES) };
+        acCodes = new int[][] { createCodes(AC_LUMA_BITS, AC_LUMA_VALUES),
+                                createCodes(AC_CHROMA_BITS, AC_CHROMA_VALUES) };
+    }
+
+    /**
+     * Creates the canonical Huffman codes of a table.
+     *
+     * @param bits   The number of codes of each length from 1 to 16.
+     * @param values The symbols in order of increasing code length.
+     * @return The code of each symbol in the upper and its length in the lower 8 bits.
+     */
+    private static int[] createCodes(int[] bits, int[] values)
+    {
+        int[] codes = new int[256];
+        int   code  = 0;
+        int   k     = 0;
+
+        for (int length = 1; length <= 16; ++length)
+        {
+            for (int i = 0; i < bits[length - 1]; ++i)
+            {
+                codes[values[k++]] = code << 8 | length;
+                ++code;
+            }
+
+            code <<= 1;
+        }
+
+        return codes;
+    }
+
+    /**
+     * Writes the markers up to the start of the scan.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeHeaders() throws IOException
+    {
+        // Start of image and JFIF header.
+        writeBytes(0xFF, 0xD8, 0xFF, 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0);
+
+        // Quantization tables in zigzag order.
+        writeBytes(0xFF, 0xDB, 0, 2 + 2 * 65);
+
+        for (int t = 0; t < 2; ++t)
+        {
+            writeBytes(t);
+
+            for (int i = 0; i < 64; ++i)
+            {
+                writeBytes(quantTables[t][ZIGZAG[i]]);
+            }
+        }
+
+        // Start of frame: 8 bits, three components, luma sampled 2 x 2, chroma 1 x 1.
+        writeBytes(0xFF, 0xC0, 0, 17, 8, height >> 8, height & 0xFF, width >> 8, width & 0xFF, 3,
+                   1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+
+        // Huffman tables.
+        writeHuffmanTable(0x00, DC_LUMA_BITS, DC_VALUES);
+        writeHuffmanTable(0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMA_BITS, DC_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+        // Start of scan.
+        writeBytes(0xFF, 0xDA, 0, 12, 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0);
+    }
+
+    /**
+     * Writes a Huffman table marker.
+     *
+     * @param id     The table class and identifier.
+     * @param bits   The number of codes of each length.
+     * @param values The symbols.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeHuffmanTable(int id, int[] bits, int[] values) throws IOException
+    {
+        int length = 2 + 1 + 16 + values.length;
+        writeBytes(0xFF, 0xC4, length >> 8, length & 0xFF, id);
+        writeBytes(bits);
+        writeBytes(values);
+    }
+
+    /**
+     * Encodes the collected rows as one row of MCUs, repeating the last row and column of the
+     * image to fill partial MCUs.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    private void encodeMcuRow() throws IOException
+    {
+        for (int x0 = 0; x0 < width; x0 += MCU_SIZE)
+        {
+            // Convert the MCU to YCbCr and average the chroma of each 2 x 2 pixels.
+            for (int i = 0; i < 64; ++i)
+            {
+                cb[i] = 0;
+                cr[i] = 0;
+            }
+
+            for (int dy = 0; dy < MCU_SIZE; ++dy)
+            {
+                int row = Math.min(dy, rowCount - 1) * 4 * width;
+
+                for (int dx = 0; dx < MCU_SIZE; ++dx)
+                {
+                    int   p = row + 4 * Math.min(x0 + dx, width - 1);
+                    float r = rows[p] & 0xFF;
+                    float g = rows[p + 1] & 0xFF;
+                    float b = rows[p + 2] & 0xFF;
+
+                    int k = (dy / 8) * 2 + dx / 8;
+                    int c = (dy / 2) * 8 + dx / 2;
+
+                    y[k * 64 + (dy % 8) * 8 + dx % 8] = 0.299f * r + 0.587f * g + 0.114f * b
+                                                          - 128;
+                    cb[c] += 0.25f * (-0.168736f * r - 0.331264f * g + 0.5f * b);
+                    cr[c] += 0.25f * (0.5f * r - 0.418688f * g - 0.081312f * b);
+                }
+            }
+
+            for (int k = 0; k < 4; ++k)
+            {
+                System.arraycopy(y, k * 64, block, 0, 64);
+                encodeBlock(block, 0, 0);
+            }
+
+            encodeBlock(cb, 1, 1);
+            encodeBlock(cr, 1, 2);
+        }
+
+        rowCount = 0;
+        flushBuffer();
+    }
+
+    /**
+     * Transforms, quantizes and entropy codes an 8 x 8 block.
+     *
+     * @param data      The samples of the block, overwritten by the DCT.
+     * @param table     The index of the quantization and Huffman tables.
+     * @param component The index of the component, for the DC prediction.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void encodeBlock(float[] data, int table, int component) throws IOException
+    {
+        forwardDct(data);
+
+        for (int i = 0; i < 64; ++i)
+        {
+            int k = ZIGZAG[i];
+            coefficients[i] = Math.round(data[k] * divisors[table][k]);
+        }
+
+        // The DC coefficient is coded as the difference to the previous block.
+        int diff = coefficients[0] - lastDc[component];
+        lastDc[component] = coefficients[0];
+        writeValue(dcCodes[table], 0, diff);
+
+        int run = 0;
+
+        for (int i = 1; i < 64; ++i)
+        {
+            if (coefficients[i] == 0)
+            {
+                ++run;
+                continue;
+            }
+
+            while (run > 15)
+            {
+                writeCode(acCodes[table][0xF0]);
+                run -= 16;
+            }
+
+            writeValue(acCodes[table], run << 4, coefficients[i]);
+            run = 0;
+        }
+
+        if (run > 0)
+        {
+            writeCode(acCodes[table][0x00]);
+        }
+    }
+
+    /**
+     * Writes a coefficient as the Huffman code of its run and magnitude category followed by
+     * the bits of its value.
+     *
+     * @param codes The Huffman codes.
+     * @param run   The number of preceding zeros, shifted into the upper four bits.
+     * @param value The coefficient.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeValue(int[] codes, int run, int value) throws IOException
+    {
+        int magnitude = Math.abs(value);
+        int category  = 0;
+
+        while (magnitude >> category != 0)
+        {
+            ++category;
+        }
+
+        writeCode(codes[run | category]);
+
+        if (category > 0)
+        {
+            // Negative values are written as value - 1 in category bits.
+            writeBits(value < 0 ? value - 1 : value, category);
+        }
+    }
+
+    /**
+     * Writes a Huffman code.
+     *
+     * @param code The code in the upper and its length in the lower 8 bits.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeCode(int code) throws IOException
+    {
+        writeBits(code >>> 8, code & 0xFF);
+    }
+
+    /**
+     * Writes the lower bits of a value to the entropy-coded data, stuffing a zero byte after every
+     * 0xFF byte.
+     *
+     * @param value The value.
+     * @param count The number of bits, at most 16.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeBits(int value, int count) throws IOException
+    {
+        bitBuffer = bitBuffer << count | value & ((1 << count) - 1);
+        bitCount += count;
+
+        while (bitCount >= 8)
+        {
+            int b = bitBuffer >> (bitCount - 8) & 0xFF;
+            bitCount -= 8;
+
+            if (bufferLength + 2 > buffer.length)
+            {
+                flushBuffer();
+            }
+
+            buffer[bufferLength++] = (byte) b;
+
+            if (b == 0xFF)
+            {
+                buffer[bufferLength++] = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the given bytes to the stream directly.
+     *
+     * @param bytes The bytes as integers.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeBytes(int... bytes) throws IOException
+    {
+        for (int b : bytes)
+        {
+            output.write(b);
+        }
+    }
+
+    /**
+     * Writes the buffered entropy-coded bytes to the stream.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    private void flushBuffer() throws IOException
+    {
+        output.write(buffer, 0, bufferLength);
+        bufferLength = 0;
+    }
+
+    /**
+     * Computes the unscaled forward DCT of an 8 x 8 block in place with the AAN algorithm. The
+     * scale factors are folded into the quantization divisors.
+     *
+     * @param data The samples of the block.
+     */
+    private static void forwardDct(float[] data)
+    {
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            // Rows in the first pass, columns in the second.
+            int step   = pass == 0 ? 1 : 8;
+            int stride = pass == 0 ? 8 : 1;
+
+            for (int line = 0; line < 8; ++line)
+            {
+                int i = line * stride;
+
+                float tmp0 = data[i]            + data[i + 7 * step];
+                float tmp7 = data[i]            - data[i + 7 * step];
+                float tmp1 = data[i + step]     + data[i + 6 * step];
+                float tmp6 = data[i + step]     - data[i + 6 * step];
+                float tmp2 = data[i + 2 * step] + data[i + 5 * step];
+                float tmp5 = data[i + 2 * step] - data[i + 5 * step];
+                float tmp3 = data[i + 3 * step] + data[i + 4 * step];
+                float tmp4 = data[i + 3 * step] - data[i + 4 * step];
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[i]            = tmp10 + tmp11;
+                data[i + 4 * step] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[i + 2 * step] = tmp13 + z1;
+                data[i + 6 * step] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[i + 5 * step] = z13 + z2;
+                data[i + 3 * step] = z13 - z2;
+                data[i + step]     = z11 + z4;
+                data[i + 7 * step] = z11 - z4;
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Rect;
+
+import java.util.Arrays;
+
+/**
+ * This class holds key points as parallel arrays of their fields instead of KeyPoint objects, so
+ * that they can be ranked and filtered without creating an object per key point. A buffer is
+ * filled from a MatOfKeyPoint and written back to one with a single bulk copy each. Filtering
+ * keeps the order of the remaining key points and removes the others in place. Every key point
+ * remembers its index in the matrix it was read from, so that the matching descriptors can be
+ * selected after filtering. The arrays are reused when the buffer is filled again.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class KeyPointBuffer
+{
+    // MatOfKeyPoint stores every key point as seven floats.
+    private static final int KEY_POINT_FLOATS = 7;
+
+    private int       count;
+    private float[]   x;
+    private float[]   y;
+    private float[]   size;
+    private float[]   angle;
+    private float[]   response;
+    private int[]     octave;
+    private int[]     classId;
+    private int[]     index;
+    private float[]   packed;
+    private long[]    ranks;
+    private boolean[] keep;
+
+    /**
+     * Creates an empty buffer.
+     */
+    public KeyPointBuffer()
+    {
+        x        = new float[0];
+        y        = new float[0];
+        size     = new float[0];
+        angle    = new float[0];
+        response = new float[0];
+        octave   = new int[0];
+        classId  = new int[0];
+        index    = new int[0];
+        packed   = new float[0];
+        ranks    = new long[0];
+        keep     = new boolean[0];
+    }
+
+    /**
+     * Creates a buffer holding the given key points.
+     *
+     * @param keyPoints The key points.
+     */
+    public KeyPointBuffer(MatOfKeyPoint keyPoints)
+    {
+        this();
+        read(keyPoints);
+    }
+
+    /**
+     * Replaces the contents of the buffer with the given key points. The index of each key point
+     * is its row in the matrix.
+     *
+     * @param keyPoints The key points.
+     */
+    public void read(MatOfKeyPoint keyPoints)
+    {
+        count = (int) keyPoints.total();
+        ensureCapacity(count);
+
+        if (count == 0)
+        {
+            return;
+        }
+
+        keyPoints.get(0, 0, packed);
+
+        for (int i = 0, j = 0; i < count; ++i, j += KEY_POINT_FLOATS)
+        {
+            x[i]        = packed[j];
+            y[i]        = packed[j + 1];
+            size[i]     = packed[j + 2];
+            angle[i]    = packed[j + 3];
+            response[i] = packed[j + 4];
+            octave[i]   = (int) packed[j + 5];
+            classId[i]  = (int) packed[j + 6];
+            index[i]    = i;
+        }
+    }
+
+    /**
+     * Writes the key points of the buffer to the given matrix, replacing its contents.
+     *
+     * @param keyPoints The matrix to write to.
+     */
+    public void write(MatOfKeyPoint keyPoints)
+    {
+        if (count == 0)
+        {
+            keyPoints.release();
+            return;
+        }
+
+        for (int i = 0, j = 0; i < count; ++i, j += KEY_POINT_FLOATS)
+        {
+            packed[j]     = x[i];
+            packed[j + 1] = y[i];
+            packed[j + 2] = size[i];
+            packed[j + 3] = angle[i];
+            packed[j + 4] = response[i];
+            packed[j + 5] = octave[i];
+            packed[j + 6] = classId[i];
+        }
+
+        // The packed array may be longer than needed; put only copies what fits into the matrix.
+        keyPoints.create(count, 1, CvType.CV_32FC(KEY_POINT_FLOATS));
+        keyPoints.put(0, 0, packed);
+    }
+
+    /**
+     * Returns the number of key points.
+     *
+     * @return The number of key points.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the x coordinate of the given key point.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The x coordinate.
+     */
+    public float getX(int i)
+    {
+        return x[i];
+    }
+
+    /**
+     * Returns the y coordinate of the given key point.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The y coordinate.
+     */
+    public float getY(int i)
+    {
+        return y[i];
+    }
+
+    /**
+     * Returns the diameter of the neighbourhood of the given key point.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The diameter.
+     */
+    public float getSize(int i)
+    {
+        return size[i];
+    }
+
+    /**
+     * Returns the orientation of the given key point in degrees.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The orientation.
+     */
+    public float getAngle(int i)
+    {
+        return angle[i];
+    }
+
+    /**
+     * Returns the response of the given key point.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The response.
+     */
+    public float getResponse(int i)
+    {
+        return response[i];
+    }
+
+    /**
+     * Returns the octave the given key point was detected in.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The octave.
+     */
+    public int getOctave(int i)
+    {
+        return octave[i];
+    }
+
+    /**
+     * Returns the class id of the given key point.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The class id.
+     */
+    public int getClassId(int i)
+    {
+        return classId[i];
+    }
+
+    /**
+     * Returns the row of the given key point in the matrix the buffer was read from, which is
+     * also the row of its descriptor.
+     *
+     * @param i The position of the key point in the buffer.
+     * @return The original index of the key point.
+     */
+    public int getIndex(int i)
+    {
+        return index[i];
+    }
+
+    /**
+     * Keeps the given number of key points with the strongest response. Of key points with equal
+     * responses, the earlier ones are kept.
+     *
+     * @param maxCount The maximum number of key points to keep.
+     */
+    public void retainStrongest(int maxCount)
+    {
+        if (count <= maxCount)
+        {
+            return;
+        }
+
+        rankByResponse();
+        Arrays.fill(keep, 0, count, false);
+
+        for (int r = count - 1; r >= count - maxCount; --r)
+        {
+            keep[rankedPosition(r)] = true;
+        }
+
+        compact();
+    }
+
+    /**
+     * Divides the given area into a grid of equal cells and keeps at most the given number of
+     * key points with the strongest response in each cell, so that the key points are spread
+     * over the image instead of clustering in textured regions. Key points outside the area are
+     * removed.
+     *
+     * @param area       The area covered by the grid.
+     * @param columns    The number of columns of the grid.
+     * @param rows       The number of rows of the grid.
+     * @param maxPerCell The maximum number of key points to keep per cell.
+     */
+    public void retainPerCell(Rect area, int columns, int rows, int maxPerCell)
+    {
+        int[] cellCounts = new int[columns * rows];
+
+        rankByResponse();
+        Arrays.fill(keep, 0, count, false);
+
+        for (int r = count - 1; r >= 0; --r)
+        {
+            int i      = rankedPosition(r);
+            int column = (int) Math.floor((x[i] - area.x) * columns / area.width);
+            int row    = (int) Math.floor((y[i] - area.y) * rows / area.height);
+
+            if (column < 0 || column >= columns || row < 0 || row >= rows)
+            {
+                continue;
+            }
+
+            int cell = row * columns + column;
+
+            if (cellCounts[cell] < maxPerCell)
+            {
+                ++cellCounts[cell];
+                keep[i] = true;
+            }
+        }
+
+        compact();
+    }
+
+    /**
+     * Keeps the key points that lie inside the given rectangle and at least the given margin
+     * away from its edges, e.g. to drop key points whose descriptor would reach past the border.
+     *
+     * @param rect   The rectangle.
+     * @param margin The minimum distance to the edges.
+     */
+    public void retainInside(Rect rect, double margin)
+    {
+        double left   = rect.x + margin;
+        double top    = rect.y + margin;
+        double right  = rect.x + rect.width - margin;
+        double bottom = rect.y + rect.height - margin;
+
+        for (int i = 0; i < count; ++i)
+        {
+            keep[i] = x[i] >= left && x[i] < right && y[i] >= top && y[i] < bottom;
+        }
+
+        compact();
+    }
+
+    /**
+     * Copies the descriptors of the key points in the buffer, in the order of the buffer, from
+     * the given descriptors of the key points the buffer was read from. Afterwards, the index of
+     * each key point is its row in the selected descriptors.
+     *
+     * @param descriptors The CV_8U or CV_32F descriptors of the original key points.
+     * @param selected    The matrix that will contain the selected descriptors.
+     */
+    public void selectDescriptors(Mat descriptors, Mat selected)
+    {
+        int depth = CvType.depth(descriptors.type());
+
+        if (depth != CvType.CV_8U && depth != CvType.CV_32F)
+        {
+            throw new IllegalArgumentException("Unsupported descriptor type "
+                                               + CvType.typeToString(descriptors.type()));
+        }
+
+        if (count == 0)
+        {
+            selected.release();
+            return;
+        }
+
+        int width = descriptors.cols() * descriptors.channels();
+
+        if (depth == CvType.CV_8U)
+        {
+            byte[] source = new byte[descriptors.rows() * width];
+            byte[] target = new byte[count * width];
+            descriptors.get(0, 0, source);
+
+            for (int i = 0; i < count; ++i)
+            {
+                System.arraycopy(source, index[i] * width, target, i * width, width);
+            }
+
+            selected.create(count, descriptors.cols(), descriptors.type());
+            selected.put(0, 0, target);
+        }
+        else
+        {
+            float[] source = new float[descriptors.rows() * width];
+            float[] target = new float[count * width];
+            descriptors.get(0, 0, source);
+
+            for (int i = 0; i < count; ++i)
+            {
+                System.arraycopy(source, index[i] * width, target, i * width, width);
+            }
+
+            selected.create(count, descriptors.cols(), descriptors.type());
+            selected.put(0, 0, target);
+        }
+
+        for (int i = 0; i < count; ++i)
+        {
+            index[i] = i;
+        }
+    }
+
+    /**
+     * Fills ranks with the positions of the key points in increasing order of response. Of key
+     * points with equal responses, the later ones come first.
+     */
+    private void rankByResponse()
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            // Flip the bits of negative floats so that the integers order like the floats.
+            int bits = Float.floatToIntBits(response[i]);
+            bits ^= (bits >> 31) & 0x7FFFFFFF;
+
+            ranks[i] = (long) bits << 32 | (Integer.MAX_VALUE - i);
+        }
+
+        Arrays.sort(ranks, 0, count);
+    }
+
+    /**
+     * Returns the position of the key point with the given rank, see rankByResponse.
+     *
+     * @param rank The rank.
+     * @return The position in the buffer.
+     */
+    private int rankedPosition(int rank)
+    {
+        return Integer.MAX_VALUE - (int) ranks[rank];
+    }
+
+    /**
+     * Removes the key points that are not marked in keep, keeping the order of the others.
+     */
+    private void compact()
+    {
+        int n = 0;
+
+        for (int i = 0; i < count; ++i)
+        {
+            if (!keep[i])
+            {
+                continue;
+            }
+
+            x[n]        = x[i];
+            y[n]        = y[i];
+            size[n]     = size[i];
+            angle[n]    = angle[i];
+            response[n] = response[i];
+            octave[n]   = octave[i];
+            classId[n]  = classId[i];
+            index[n]    = index[i];
+            ++n;
+        }
+
+        count = n;
+    }
+
+    /**
+     * Grows the arrays to hold at least the given number of key points.
+     *
+     * @param capacity The number of key points.
+     */
+    private void ensureCapacity(int capacity)
+    {
+        if (x.length >= capacity)
+        {
+            return;
+        }
+
+        x        = new float[capacity];
+        y        = new float[capacity];
+        size     = new float[capacity];
+        angle    = new float[capacity];
+        response = new float[capacity];
+        octave   = new int[capacity];
+        classId  = new int[capacity];
+        index    = new int[capacity];
+        packed   = new float[capacity * KEY_POINT_FLOATS];
+        ranks    = new long[capacity];
+        keep     = new boolean[capacity];
+    }
+}
@@ -0,0 +1,171 @@
+package dbuhler.stitcher;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * This class extracts the luminance of a bitmap at the working resolution for registration. The
+ * bitmap is read row by row, and each pixel is converted to grey and added to the destination
+ * pixel it falls into in the same pass, so no colour matrix is created. The grey image is turned
+ * upright afterwards, which is cheap at the working resolution. The result matches the size and
+ * orientation of the colour matrix the Stitcher composites with.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class LumaExtractor
+{
+    // The BT.601 luminance weights in 14-bit fixed point, as used by Imgproc.cvtColor.
+    private static final int WEIGHT_R    = 4899;
+    private static final int WEIGHT_G    = 9617;
+    private static final int WEIGHT_B    = 1868;
+    private static final int WEIGHT_BITS = 14;
+
+    private LumaExtractor()
+    {
+    }
+
+    /**
+     * Returns the size of the working image for a bitmap of the given size, which is scaled down
+     * so that its longer side is at most the given maximum.
+     *
+     * @param width        The width of the bitmap.
+     * @param height       The height of the bitmap.
+     * @param maxDimension The maximum width and height of the working image.
+     * @return The width and height of the working image before it is turned upright.
+     */
+    public static int[] getWorkingSize(int width, int height, int maxDimension)
+    {
+        double scale = Math.min(1.0, 1.0 * maxDimension / Math.max(width, height));
+
+        return new int[] {
+                (int) Math.round(width * scale), (int) Math.round(height * scale) };
+    }
+
+    /**
+     * Extracts the luminance of the given bitmap, scaled down so that its longer side is at most
+     * the given maximum and turned upright as the EXIF data says.
+     *
+     * @param bitmap       The bitmap.
+     * @param exif         The EXIF data of the bitmap.
+     * @param maxDimension The maximum width and height of the result.
+     * @param pool         The pool to lease the result from.
+     * @return The CV_8UC1 luminance matrix.
+     */
+    public static Mat extract(Bitmap bitmap, ExifData exif, int maxDimension, MatPool pool)
+    {
+        int   width  = bitmap.getWidth();
+        int   height = bitmap.getHeight();
+        int[] size   = getWorkingSize(width, height, maxDimension);
+        int   w      = size[0];
+        int   h      = size[1];
+
+        byte[] gray   = new byte[w * h];
+        int[]  row    = new int[width];
+        int[]  sums   = new int[w];
+        int[]  counts = new int[w];
+        int[]  column = new int[width];
+
+        // The destination column of every source column.
+        for (int x = 0; x < width; ++x)
+        {
+            column[x] = (int) ((long) x * w / width);
+        }
+
+        int current = 0;
+
+        for (int y = 0; y < height; ++y)
+        {
+            int target = (int) ((long) y * h / height);
+
+            if (target != current)
+            {
+                flush(sums, counts, gray, current * w);
+                current = target;
+            }
+
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+
+            for (int x = 0; x < width; ++x)
+            {
+                int pixel = row[x];
+                int luma  = ((pixel >> 16 & 0xFF) * WEIGHT_R
+                           + (pixel >> 8 & 0xFF) * WEIGHT_G
+                           + (pixel & 0xFF) * WEIGHT_B
+                           + (1 << WEIGHT_BITS - 1)) >> WEIGHT_BITS;
+
+                sums[column[x]]   += luma;
+                counts[column[x]] += 1;
+            }
+        }
+
+        flush(sums, counts, gray, current * w);
+
+        if (exif.getOrientation() != ExifInterface.ORIENTATION_NORMAL)
+        {
+            return turn(gray, w, h, exif, pool);
+        }
+
+        Mat matrix = pool.lease(h, w, CvType.CV_8UC1);
+        matrix.put(0, 0, gray);
+        return matrix;
+    }
+
+    /**
+     * Stores the averages of a destination row and resets the sums.
+     *
+     * @param sums   The sums of the luminance per destination column.
+     * @param counts The number of source pixels per destination column.
+     * @param gray   The destination image.
+     * @param offset The offset of the destination row.
+     */
+    private static void flush(int[] sums, int[] counts, byte[] gray, int offset)
+    {
+        for (int x = 0; x < sums.length; ++x)
+        {
+            if (counts[x] > 0)
+            {
+                gray[offset + x] = (byte) ((sums[x] + counts[x] / 2) / counts[x]);
+            }
+
+            sums[x]   = 0;
+            counts[x] = 0;
+        }
+    }
+
+    /**
+     * Turns a grey image upright. The EXIF transformations only permute pixels, so each pixel is
+     * copied to its new position.
+     *
+     * @param gray   The grey image.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param exif   The EXIF data of the image.
+     * @param pool   The pool to lease the result from.
+     * @return The upright image.
+     */
+    private static Mat turn(byte[] gray, int width, int height, ExifData exif, MatPool pool)
+    {
+        double[] t         = exif.getTransform(width, height, 1.0);
+        int      newWidth  = exif.isTransposed() ? height : width;
+        int      newHeight = exif.isTransposed() ? width  : height;
+        byte[]   turned    = new byte[gray.length];
+
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                int u = (int) Math.round(t[0] * x + t[1] * y + t[2]);
+                int v = (int) Math.round(t[3] * x + t[4] * y + t[5]);
+                turned[v * newWidth + u] = gray[y * width + x];
+            }
+        }
+
+        Mat matrix = pool.lease(newHeight, newWidth, CvType.CV_8UC1);
+        matrix.put(0, 0, turned);
+        return matrix;
+    }
+}
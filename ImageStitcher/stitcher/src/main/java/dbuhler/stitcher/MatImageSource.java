@@ -0,0 +1,79 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * This image source reads from an RGBA matrix that is held in memory. Regions are returned as
+ * views into the matrix unless they have to be subsampled, in which case they are resized into a
+ * matrix leased from a pool.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class MatImageSource implements ImageSource
+{
+    private Mat     image;
+    private MatPool matPool;
+    private Mat     view;
+    private Mat     buffer;
+
+    /**
+     * Creates a new image source for the given matrix.
+     *
+     * @param image   The RGBA image.
+     * @param matPool The pool that subsampled regions are leased from.
+     */
+    public MatImageSource(Mat image, MatPool matPool)
+    {
+        this.image   = image;
+        this.matPool = matPool;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return image.cols();
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return image.rows();
+    }
+
+    @Override
+    public Mat read(Rect region, int sampleSize)
+    {
+        // The previous result is no longer valid, so release the header of the view instead of
+        // leaving it to the finalizer and return the subsampled region to the pool.
+        release();
+        view = new Mat(image, region);
+
+        if (sampleSize == 1)
+        {
+            return view;
+        }
+
+        buffer = matPool.lease((region.height + sampleSize - 1) / sampleSize,
+                               (region.width  + sampleSize - 1) / sampleSize, image.type());
+        Imgproc.resize(view, buffer, buffer.size(), 0, 0, Imgproc.INTER_AREA);
+        return buffer;
+    }
+
+    /**
+     * Releases the last region read. The image itself belongs to the caller.
+     */
+    public void release()
+    {
+        if (view != null)
+        {
+            view.release();
+        }
+
+        matPool.recycle(buffer);
+        view   = null;
+        buffer = null;
+    }
+}
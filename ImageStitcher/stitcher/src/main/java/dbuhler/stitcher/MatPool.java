@@ -0,0 +1,223 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class pools matrices by size and type, so that the intermediates of the pipeline, whose
+ * shapes only depend on the working resolution, are allocated once and reused by later stitches.
+ * A leased matrix is returned with recycle when it is no longer needed; only matrices leased from
+ * the pool may be returned to it. The pool keeps at most a given number of matrices per size and
+ * type and at most a given number of bytes in total; the least recently returned matrices are
+ * released first. The defaults hold all the matrices a stitch at Stitcher.MAX_DIMENSION leases
+ * for a typical overlap, so that a warmed-up pool allocates nothing for further stitches.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class MatPool
+{
+    public static final int  DEFAULT_CAPACITY  = 8;
+    public static final long DEFAULT_MAX_BYTES = 96 * 1024 * 1024;
+
+    private int                       capacity;
+    private long                      maxBytes;
+    private long                      pooledBytes;
+    private Map<Key, ArrayDeque<Mat>> pool;
+    private LinkedList<Mat>           order;
+    private Set<Mat>                  leased;
+    private int                       allocations;
+
+    /**
+     * The size and type of a matrix.
+     */
+    private static final class Key
+    {
+        private int rows;
+        private int cols;
+        private int type;
+
+        private Key(int rows, int cols, int type)
+        {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return rows == key.rows && cols == key.cols && type == key.type;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (rows * 31 + cols) * 31 + type;
+        }
+    }
+
+    /**
+     * Creates a pool with DEFAULT_CAPACITY and DEFAULT_MAX_BYTES.
+     */
+    public MatPool()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a pool with the given limits.
+     *
+     * @param capacity The maximum number of pooled matrices of each size and type.
+     * @param maxBytes The maximum total size of the pooled matrices.
+     */
+    public MatPool(int capacity, long maxBytes)
+    {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        pool   = new HashMap<>();
+        order  = new LinkedList<>();
+        leased = Collections.newSetFromMap(new IdentityHashMap<Mat, Boolean>());
+    }
+
+    /**
+     * Leases a matrix of the given size and type, reusing a pooled matrix if possible. The
+     * contents of the matrix are undefined.
+     *
+     * @param rows The number of rows.
+     * @param cols The number of columns.
+     * @param type The type of the matrix.
+     * @return The matrix, which should be returned with recycle when no longer needed.
+     */
+    public synchronized Mat lease(int rows, int cols, int type)
+    {
+        ArrayDeque<Mat> list = pool.get(new Key(rows, cols, type));
+
+        Mat             matrix;
+
+        if (list == null || list.isEmpty())
+        {
+            ++allocations;
+            matrix = new Mat(rows, cols, type);
+        }
+        else
+        {
+            matrix = list.removeLast();
+            order.remove(matrix);
+            pooledBytes -= getSize(matrix);
+        }
+
+        leased.add(matrix);
+        return matrix;
+    }
+
+    /**
+     * Returns a leased matrix to the pool. Matrices that no longer own continuous data and
+     * matrices beyond the capacity of their size and type are released.
+     *
+     * @param matrix The matrix, which must not be used afterwards, or null.
+     * @throws IllegalArgumentException If the matrix is not leased from this pool, e.g. because
+     *                                  it was already returned.
+     */
+    public synchronized void recycle(Mat matrix)
+    {
+        if (matrix == null)
+        {
+            return;
+        }
+
+        if (!leased.remove(matrix))
+        {
+            throw new IllegalArgumentException("The matrix is not leased from this pool");
+        }
+
+        if (matrix.empty())
+        {
+            return;
+        }
+
+        Key             key  = new Key(matrix.rows(), matrix.cols(), matrix.type());
+        ArrayDeque<Mat> list = pool.get(key);
+
+        if (!matrix.isContinuous() || matrix.isSubmatrix()
+                || (list != null && list.size() >= capacity))
+        {
+            matrix.release();
+            return;
+        }
+
+        if (list == null)
+        {
+            list = new ArrayDeque<>();
+            pool.put(key, list);
+        }
+
+        list.addLast(matrix);
+        order.addLast(matrix);
+        pooledBytes += getSize(matrix);
+
+        // Release the least recently returned matrices until the pool fits into its budget.
+        Iterator<Mat> iterator = order.iterator();
+
+        while (pooledBytes > maxBytes && iterator.hasNext())
+        {
+            Mat oldest = iterator.next();
+            iterator.remove();
+            pool.get(new Key(oldest.rows(), oldest.cols(), oldest.type())).remove(oldest);
+            pooledBytes -= getSize(oldest);
+            oldest.release();
+        }
+    }
+
+    /**
+     * Returns the number of matrices the pool had to allocate because no pooled matrix fit. Once
+     * the pool is warmed up, repeated stitches at the same working resolution do not increase it;
+     * Stitcher logs the increase of every stitch in debug builds.
+     *
+     * @return The number of allocations.
+     */
+    public synchronized int getAllocationCount()
+    {
+        return allocations;
+    }
+
+    /**
+     * Releases all pooled matrices.
+     */
+    public synchronized void clear()
+    {
+        for (Mat matrix : order)
+        {
+            matrix.release();
+        }
+
+        pool.clear();
+        order.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Returns the size of the data of a matrix.
+     *
+     * @param matrix The matrix.
+     * @return The size in bytes.
+     */
+    private static long getSize(Mat matrix)
+    {
+        return matrix.total() * matrix.elemSize();
+    }
+}
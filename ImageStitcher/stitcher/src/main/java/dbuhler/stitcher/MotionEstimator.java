@@ -0,0 +1,434 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint2f;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class estimates the motion between two sets of matched points using the RANSAC algorithm.
+ * Every random sample is checked for degeneracy before the model is solved, and every solved model
+ * is checked for plausibility before its inliers are counted, so that doomed samples cost only a
+ * few multiplications. Given several candidate models, the simplest one that explains the inliers
+ * is selected.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class MotionEstimator
+{
+    private static final int    MAX_ITERATIONS  = 2000;
+    private static final long   RANDOM_SEED     = 0x5EED;
+    private static final double CONFIDENCE      = 0.995;
+    private static final double SELECTION_RATIO = 0.95;
+
+    private double      threshold;
+    private Random      random;
+    private MotionModel selectedModel;
+
+    private int samplesDrawn;
+    private int samplesRejected;
+    private int modelsRejected;
+    private int modelsEvaluated;
+
+    /**
+     * Creates a new motion estimator.
+     *
+     * @param threshold The maximum reprojection error in pixels for a match to count as inlier.
+     */
+    public MotionEstimator(double threshold)
+    {
+        this.threshold = threshold;
+        random = new Random(RANDOM_SEED);
+    }
+
+    /**
+     * Returns the model chosen by the last estimation.
+     *
+     * @return The selected motion model, or null if nothing has been estimated yet.
+     */
+    public MotionModel getSelectedModel()
+    {
+        return selectedModel;
+    }
+
+    /**
+     * Returns the number of random samples drawn during the last estimation.
+     *
+     * @return The number of drawn samples.
+     */
+    public int getSamplesDrawn()
+    {
+        return samplesDrawn;
+    }
+
+    /**
+     * Returns the number of samples that were rejected as degenerate before solving for a model
+     * during the last estimation, e.g. samples with nearly collinear points or with point
+     * orderings that differ between the two images.
+     *
+     * @return The number of samples rejected early.
+     */
+    public int getSamplesRejected()
+    {
+        return samplesRejected;
+    }
+
+    /**
+     * Returns the number of solved models that were rejected as implausible before counting their
+     * inliers during the last estimation.
+     *
+     * @return The number of rejected models.
+     */
+    public int getModelsRejected()
+    {
+        return modelsRejected;
+    }
+
+    /**
+     * Returns the number of models whose inliers were counted during the last estimation.
+     *
+     * @return The number of evaluated models.
+     */
+    public int getModelsEvaluated()
+    {
+        return modelsEvaluated;
+    }
+
+    /**
+     * Returns a short summary of the counters of the last estimation.
+     *
+     * @return The counters as a string.
+     */
+    @Override
+    public String toString()
+    {
+        return "model: " + selectedModel
+                + ", samples: " + samplesDrawn
+                + ", rejected early: " + samplesRejected
+                + ", models rejected: " + modelsRejected
+                + ", models evaluated: " + modelsEvaluated;
+    }
+
+    /**
+     * Estimates and returns the homography of the given model that maps the source points onto the
+     * destination points. Stores the mask of inliers in the given mask matrix. Returns an empty
+     * matrix if no plausible model could be found.
+     *
+     * @param model     The motion model to fit.
+     * @param srcPoints The points in the source image.
+     * @param dstPoints The matching points in the destination image.
+     * @param mask      The matrix that will contain the mask of inliers.
+     * @return The 3x3 homography matrix.
+     */
+    public Mat estimate(MotionModel model, MatOfPoint2f srcPoints, MatOfPoint2f dstPoints,
+                        MatOfByte mask)
+    {
+        resetCounters();
+
+        float[] src = toArray(srcPoints);
+        float[] dst = toArray(dstPoints);
+        byte[]  inliers = new byte[src.length / 2];
+
+        Mat homography = estimate(model, src, dst, inliers);
+        selectedModel = model;
+        mask.fromArray(inliers);
+
+        return homography;
+    }
+
+    /**
+     * Estimates the given candidate models in order and returns the homography of the simplest
+     * one whose inliers number at least SELECTION_RATIO times the inliers of the best candidate.
+     * The candidates must be ordered by increasing number of degrees of freedom. Stores the mask
+     * of inliers in the given mask matrix. Returns an empty matrix if no plausible model could be
+     * found.
+     *
+     * @param candidates The motion models to choose from.
+     * @param srcPoints  The points in the source image.
+     * @param dstPoints  The matching points in the destination image.
+     * @param mask       The matrix that will contain the mask of inliers.
+     * @return The 3x3 homography matrix.
+     */
+    public Mat estimate(List<MotionModel> candidates, MatOfPoint2f srcPoints,
+                        MatOfPoint2f dstPoints, MatOfByte mask)
+    {
+        resetCounters();
+
+        float[] src = toArray(srcPoints);
+        float[] dst = toArray(dstPoints);
+        int     n   = src.length / 2;
+
+        Mat[]    homographies = new Mat[candidates.size()];
+        byte[][] inliers      = new byte[candidates.size()][n];
+        int[]    counts       = new int[candidates.size()];
+        int      maxCount     = 0;
+        int      estimated    = 0;
+
+        while (estimated < candidates.size())
+        {
+            int i = estimated++;
+            homographies[i] = estimate(candidates.get(i), src, dst, inliers[i]);
+            counts[i]       = homographies[i].empty() ? 0 : count(inliers[i]);
+            maxCount        = Math.max(maxCount, counts[i]);
+
+            // No later candidate can be preferred if this one already explains enough points.
+            if (counts[i] > 0 && counts[i] >= SELECTION_RATIO * n)
+            {
+                break;
+            }
+        }
+
+        int selected = estimated - 1;
+
+        for (int i = 0; i < estimated; ++i)
+        {
+            if (counts[i] > 0 && counts[i] >= SELECTION_RATIO * maxCount)
+            {
+                selected = i;
+                break;
+            }
+        }
+
+        selectedModel = candidates.get(selected);
+        mask.fromArray(inliers[selected]);
+
+        return homographies[selected];
+    }
+
+    /**
+     * Runs RANSAC for the given model and accumulates the counters.
+     *
+     * @param model   The motion model to fit.
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The array that will contain the inlier mask.
+     * @return The 3x3 homography matrix, or an empty matrix.
+     */
+    private Mat estimate(MotionModel model, float[] src, float[] dst, byte[] inliers)
+    {
+        int      n          = src.length / 2;
+        int      sampleSize = model.getSampleSize();
+        double[] bounds     = findBounds(src, n);
+        double[] bestModel  = new double[9];
+        int      bestCount  = 0;
+
+        if (n >= sampleSize)
+        {
+            double[] h          = new double[9];
+            byte[]   mask       = new byte[n];
+            int[]    sample     = new int[sampleSize];
+            int      iterations = MAX_ITERATIONS;
+
+            for (int i = 0; i < iterations && i < MAX_ITERATIONS; ++i)
+            {
+                drawSample(sample, n);
+                ++samplesDrawn;
+
+                if (!model.isSampleValid(src, dst, sample))
+                {
+                    ++samplesRejected;
+                    continue;
+                }
+
+                if (!model.solve(src, dst, sample, h) || !model.isModelValid(h, bounds))
+                {
+                    ++modelsRejected;
+                    continue;
+                }
+
+                ++modelsEvaluated;
+                int count = findInliers(src, dst, h, mask);
+
+                if (count > bestCount)
+                {
+                    bestCount = count;
+                    System.arraycopy(mask, 0, inliers, 0, n);
+                    System.arraycopy(h, 0, bestModel, 0, 9);
+                    iterations = updateIterations(count, n, sampleSize);
+                }
+            }
+        }
+
+        Mat homography = new Mat();
+
+        if (bestCount >= sampleSize)
+        {
+            homography = new Mat(3, 3, CvType.CV_64F);
+            homography.put(0, 0, bestModel);
+
+            Mat refined = model.refine(src, dst, inliers, bestCount);
+
+            // Keep the refined model if it is plausible and explains at least as many points.
+            if (!refined.empty())
+            {
+                double[] h    = new double[9];
+                byte[]   mask = new byte[n];
+                refined.get(0, 0, h);
+
+                if (model.isModelValid(h, bounds) && findInliers(src, dst, h, mask) >= bestCount)
+                {
+                    homography = refined;
+                    System.arraycopy(mask, 0, inliers, 0, n);
+                }
+            }
+        }
+
+        return homography;
+    }
+
+    /**
+     * Resets the counters before a new estimation.
+     */
+    private void resetCounters()
+    {
+        samplesDrawn    = 0;
+        samplesRejected = 0;
+        modelsRejected  = 0;
+        modelsEvaluated = 0;
+    }
+
+    /**
+     * Returns the coordinates of the given points as an array of alternating x and y values.
+     *
+     * @param points The points to convert.
+     * @return The point coordinates.
+     */
+    private static float[] toArray(MatOfPoint2f points)
+    {
+        float[] p = new float[2 * (int) points.total()];
+
+        if (p.length > 0)
+        {
+            points.get(0, 0, p);
+        }
+
+        return p;
+    }
+
+    /**
+     * Draws a random sample of distinct point indices.
+     *
+     * @param sample The array that will contain the sample indices.
+     * @param n      The number of points to draw from.
+     */
+    private void drawSample(int[] sample, int n)
+    {
+        for (int i = 0; i < sample.length; ++i)
+        {
+            boolean distinct;
+
+            do
+            {
+                sample[i] = random.nextInt(n);
+                distinct  = true;
+
+                for (int j = 0; j < i; ++j)
+                {
+                    distinct &= sample[j] != sample[i];
+                }
+            }
+            while (!distinct);
+        }
+    }
+
+    /**
+     * Returns the bounding box of the given points.
+     *
+     * @param p The point coordinates.
+     * @param n The number of points.
+     * @return The minimum x, minimum y, maximum x and maximum y.
+     */
+    private static double[] findBounds(float[] p, int n)
+    {
+        double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+        for (int i = 0; i < n; ++i)
+        {
+            bounds[0] = Math.min(bounds[0], p[2 * i]);
+            bounds[1] = Math.min(bounds[1], p[2 * i + 1]);
+            bounds[2] = Math.max(bounds[2], p[2 * i]);
+            bounds[3] = Math.max(bounds[3], p[2 * i + 1]);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Marks the points whose reprojection error under the given homography is at most the
+     * threshold and returns their number.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param h       The homography in row-major order.
+     * @param inliers The array that will contain 1 for every inlier and 0 otherwise.
+     * @return The number of inliers.
+     */
+    private int findInliers(float[] src, float[] dst, double[] h, byte[] inliers)
+    {
+        double maxError = threshold * threshold;
+        int    count    = 0;
+
+        for (int i = 0; i < inliers.length; ++i)
+        {
+            double x = src[2 * i];
+            double y = src[2 * i + 1];
+            double w = h[6] * x + h[7] * y + h[8];
+            double u = (h[0] * x + h[1] * y + h[2]) / w - dst[2 * i];
+            double v = (h[3] * x + h[4] * y + h[5]) / w - dst[2 * i + 1];
+
+            boolean inlier = w > 0 && u * u + v * v <= maxError;
+            inliers[i] = (byte) (inlier ? 1 : 0);
+            count += inlier ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of inliers in the given mask.
+     *
+     * @param inliers The inlier mask.
+     * @return The number of inliers.
+     */
+    private static int count(byte[] inliers)
+    {
+        int count = 0;
+
+        for (byte inlier : inliers)
+        {
+            count += inlier;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of iterations needed to find an all-inlier sample with probability
+     * CONFIDENCE given the current inlier ratio.
+     *
+     * @param inliers    The number of inliers of the best model so far.
+     * @param n          The total number of points.
+     * @param sampleSize The number of points in a minimal sample.
+     * @return The updated number of iterations.
+     */
+    private static int updateIterations(int inliers, int n, int sampleSize)
+    {
+        double p = Math.pow(1.0 * inliers / n, sampleSize);
+
+        if (p >= 1.0)
+        {
+            return 0;
+        }
+
+        if (p <= 0.0)
+        {
+            return MAX_ITERATIONS;
+        }
+
+        return (int) Math.ceil(Math.log(1.0 - CONFIDENCE) / Math.log(1.0 - p));
+    }
+}
@@ -0,0 +1,338 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * This class is the base for the motion models that can be fitted to matched points by the
+ * MotionEstimator. Every model is expressed as a 3x3 homography in row-major order, so that all
+ * models can be warped the same way, but models with fewer degrees of freedom need smaller minimal
+ * samples and thus far fewer RANSAC iterations.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public abstract class MotionModel
+{
+    /**
+     * The available motion models, ordered by increasing number of degrees of freedom.
+     */
+    public enum Type
+    {
+        TRANSLATION, ROTATION, SIMILARITY, AFFINE, HOMOGRAPHY
+    }
+
+    private static final double MIN_DETERMINANT = 0.1;
+    private static final double MAX_DETERMINANT = 10.0;
+
+    /**
+     * Creates and returns the motion model of the given type.
+     *
+     * @param type        The type of the motion model.
+     * @param focalLength The focal length in pixels, only used by the rotation model.
+     * @param srcSize     The width and height of the source image, only used by the rotation model.
+     * @param dstSize     The width and height of the destination image, only used by the rotation
+     *                    model.
+     * @return The motion model.
+     */
+    public static MotionModel create(Type type, double focalLength, int[] srcSize, int[] dstSize)
+    {
+        switch (type)
+        {
+            case TRANSLATION:
+                return new TranslationModel();
+
+            case ROTATION:
+                return new RotationModel(focalLength, srcSize, dstSize);
+
+            case SIMILARITY:
+                return new SimilarityModel();
+
+            case AFFINE:
+                return new AffineModel();
+
+            default:
+                return new HomographyModel();
+        }
+    }
+
+    /**
+     * Returns the type of this motion model.
+     *
+     * @return The model type.
+     */
+    public abstract Type getType();
+
+    /**
+     * Returns the number of point matches in a minimal sample for this model.
+     *
+     * @return The minimal sample size.
+     */
+    public abstract int getSampleSize();
+
+    /**
+     * Checks in constant time whether a sample can define a plausible model before solving it.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @return True if the sample is valid, false otherwise.
+     */
+    public boolean isSampleValid(float[] src, float[] dst, int[] sample)
+    {
+        return true;
+    }
+
+    /**
+     * Solves for the model through the points of a minimal sample.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @param h      The array that will contain the model as homography in row-major order.
+     * @return True if the model could be solved, false otherwise.
+     */
+    public abstract boolean solve(float[] src, float[] dst, int[] sample, double[] h);
+
+    /**
+     * Checks whether a solved model is plausible for stitching. The determinant of its affine part
+     * must lie between MIN_DETERMINANT and MAX_DETERMINANT, and the corners of the bounding box of
+     * all source points must be mapped onto a convex quadrilateral in front of the camera.
+     *
+     * @param h      The model as homography in row-major order.
+     * @param bounds The bounding box of the source points as minimum x, minimum y, maximum x and
+     *               maximum y.
+     * @return True if the model is plausible, false otherwise.
+     */
+    public boolean isModelValid(double[] h, double[] bounds)
+    {
+        double det = (h[0] * h[4] - h[1] * h[3]) / (h[8] * h[8]);
+
+        if (det < MIN_DETERMINANT || det > MAX_DETERMINANT)
+        {
+            return false;
+        }
+
+        double[] xs = { bounds[0], bounds[2], bounds[2], bounds[0] };
+        double[] ys = { bounds[1], bounds[1], bounds[3], bounds[3] };
+        double[] us = new double[4];
+        double[] vs = new double[4];
+
+        for (int i = 0; i < 4; ++i)
+        {
+            double w = h[6] * xs[i] + h[7] * ys[i] + h[8];
+
+            if (w <= 0)
+            {
+                return false;
+            }
+
+            us[i] = (h[0] * xs[i] + h[1] * ys[i] + h[2]) / w;
+            vs[i] = (h[3] * xs[i] + h[4] * ys[i] + h[5]) / w;
+        }
+
+        // The quadrilateral is convex if all consecutive edges turn in the same direction.
+        for (int i = 0; i < 4; ++i)
+        {
+            int j = (i + 1) % 4;
+            int k = (i + 2) % 4;
+
+            double turn = (us[j] - us[i]) * (vs[k] - vs[j]) - (vs[j] - vs[i]) * (us[k] - us[j]);
+
+            if (turn <= 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Fits the model to all inliers using least squares. Returns an empty matrix if the model
+     * found by RANSAC is to be kept as it is.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined model as 3x3 matrix, or an empty matrix.
+     */
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        return new Mat();
+    }
+
+    /**
+     * Returns the name of the model type.
+     *
+     * @return The model name.
+     */
+    @Override
+    public String toString()
+    {
+        return getType().name().toLowerCase();
+    }
+
+    /**
+     * Returns the cross product of the vectors from point i to points j and k.
+     *
+     * @param p The point coordinates.
+     * @param i The index of the first point.
+     * @param j The index of the second point.
+     * @param k The index of the third point.
+     * @return The cross product, i.e. twice the signed area of the triangle.
+     */
+    protected static double cross(float[] p, int i, int j, int k)
+    {
+        double ax = p[2 * j]     - p[2 * i];
+        double ay = p[2 * j + 1] - p[2 * i + 1];
+        double bx = p[2 * k]     - p[2 * i];
+        double by = p[2 * k + 1] - p[2 * i + 1];
+        return ax * by - ay * bx;
+    }
+
+    /**
+     * Checks whether three points are nearly collinear, i.e. whether the sine of the angle at
+     * point i is less than the given minimum.
+     *
+     * @param p       The point coordinates.
+     * @param i       The index of the first point.
+     * @param j       The index of the second point.
+     * @param k       The index of the third point.
+     * @param cross   The cross product of the vectors from point i to points j and k.
+     * @param minSine The minimum sine of the angle at point i.
+     * @return True if the points are nearly collinear, false otherwise.
+     */
+    protected static boolean isCollinear(float[] p, int i, int j, int k, double cross,
+                                         double minSine)
+    {
+        double ax = p[2 * j]     - p[2 * i];
+        double ay = p[2 * j + 1] - p[2 * i + 1];
+        double bx = p[2 * k]     - p[2 * i];
+        double by = p[2 * k + 1] - p[2 * i + 1];
+        return cross * cross <= minSine * minSine * (ax * ax + ay * ay) * (bx * bx + by * by);
+    }
+
+    /**
+     * Solves the linear system a * x = b in place using Gaussian elimination with partial
+     * pivoting. The solution is stored in b.
+     *
+     * @param a The n x n coefficient matrix in row-major order.
+     * @param b The right-hand side, which will contain the solution.
+     * @param n The dimension of the system.
+     * @return True if the system could be solved, false if it is singular.
+     */
+    protected static boolean solveLinear(double[] a, double[] b, int n)
+    {
+        for (int col = 0; col < n; ++col)
+        {
+            int pivot = col;
+
+            for (int row = col + 1; row < n; ++row)
+            {
+                if (Math.abs(a[row * n + col]) > Math.abs(a[pivot * n + col]))
+                {
+                    pivot = row;
+                }
+            }
+
+            if (Math.abs(a[pivot * n + col]) < 1e-12)
+            {
+                return false;
+            }
+
+            if (pivot != col)
+            {
+                for (int k = 0; k < n; ++k)
+                {
+                    double t = a[col * n + k];
+                    a[col * n + k]   = a[pivot * n + k];
+                    a[pivot * n + k] = t;
+                }
+
+                double t = b[col];
+                b[col]   = b[pivot];
+                b[pivot] = t;
+            }
+
+            for (int row = col + 1; row < n; ++row)
+            {
+                double f = a[row * n + col] / a[col * n + col];
+
+                for (int k = col; k < n; ++k)
+                {
+                    a[row * n + k] -= f * a[col * n + k];
+                }
+
+                b[row] -= f * b[col];
+            }
+        }
+
+        for (int row = n - 1; row >= 0; --row)
+        {
+            double sum = b[row];
+
+            for (int k = row + 1; k < n; ++k)
+            {
+                sum -= a[row * n + k] * b[k];
+            }
+
+            b[row] = sum / a[row * n + row];
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the inliers among the given points into a new point matrix.
+     *
+     * @param p       The point coordinates.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The matrix of inlier points.
+     */
+    protected static MatOfPoint2f selectInliers(float[] p, byte[] inliers, int count)
+    {
+        float[] selected = new float[2 * count];
+
+        for (int i = 0, j = 0; i < inliers.length; ++i)
+        {
+            if (inliers[i] == 1)
+            {
+                selected[2 * j]     = p[2 * i];
+                selected[2 * j + 1] = p[2 * i + 1];
+                ++j;
+            }
+        }
+
+        MatOfPoint2f points = new MatOfPoint2f();
+        points.alloc(count);
+        points.put(0, 0, selected);
+        return points;
+    }
+
+    /**
+     * Extends a 2x3 affine matrix as returned by OpenCV to a 3x3 homography matrix.
+     *
+     * @param affine The 2x3 affine matrix, which may be empty.
+     * @return The 3x3 matrix, or an empty matrix if the given matrix is empty.
+     */
+    protected static Mat toHomography(Mat affine)
+    {
+        if (affine.empty())
+        {
+            return affine;
+        }
+
+        double[] a = new double[6];
+        Mat      h = new Mat(3, 3, CvType.CV_64F);
+
+        affine.convertTo(affine, CvType.CV_64F);
+        affine.get(0, 0, a);
+        h.put(0, 0, a[0], a[1], a[2], a[3], a[4], a[5], 0, 0, 1);
+
+        return h;
+    }
+}
@@ -0,0 +1,206 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This blender blends two layers with Laplacian pyramids, so that low frequencies are blended over
+ * wide transitions and high frequencies over narrow ones. This hides exposure differences without
+ * ghosting fine detail. All pyramid levels are kept in 16-bit fixed point and built level by level,
+ * so only the blended pyramid and two levels of the inputs are held at a time.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class MultiBandBlender implements Blender
+{
+    public static final int DEFAULT_BANDS = 5;
+    public static final int MAX_BANDS     = 10;
+
+    // Pixel values are scaled by 2^FRACTION_BITS and weights by WEIGHT_ONE in fixed point.
+    private static final int FRACTION_BITS = 4;
+    private static final int WEIGHT_ONE    = 256;
+
+    private int bands;
+
+    /**
+     * Creates a new multi-band blender with DEFAULT_BANDS bands.
+     */
+    public MultiBandBlender()
+    {
+        this(DEFAULT_BANDS);
+    }
+
+    /**
+     * Creates a new multi-band blender.
+     *
+     * @param bands The number of frequency bands, from 1 to MAX_BANDS.
+     */
+    public MultiBandBlender(int bands)
+    {
+        this.bands = Math.max(1, Math.min(MAX_BANDS, bands));
+    }
+
+    /**
+     * Returns the border needed so that the coarsest band has context around the overlap. Each
+     * level halves the resolution, and the five-tap filters of pyrDown and pyrUp reach two pixels
+     * of a level, so the coarsest of n bands draws on pixels about 2^(n + 1) away.
+     *
+     * @return The border in pixels.
+     */
+    @Override
+    public int getBorder()
+    {
+        return 2 << bands;
+    }
+
+    @Override
+    public void blend(Mat[] images, Mat[] masks, Mat dst, MatPool pool)
+    {
+        // Bottom level of the Gaussian pyramids of both images and of both weight maps.
+        int   rows    = images[0].rows();
+        int   cols    = images[0].cols();
+        Mat[] gauss   = new Mat[2];
+        Mat[] weights = new Mat[2];
+
+        for (int k = 0; k < 2; ++k)
+        {
+            gauss[k]   = pool.lease(rows, cols, CvType.CV_16SC4);
+            weights[k] = pool.lease(rows, cols, CvType.CV_16SC1);
+            images[k].convertTo(gauss[k], CvType.CV_16S, 1 << FRACTION_BITS);
+            masks[k].convertTo(weights[k], CvType.CV_16S, 1.0 * WEIGHT_ONE / 255);
+        }
+
+        // Levels beyond log2 of the shorter side would be empty, so use fewer bands for small
+        // regions.
+        int levels = Math.min(bands, log2(Math.min(rows, cols)));
+        List<Mat> blended = new ArrayList<>();
+
+        for (int level = 0; level < levels; ++level)
+        {
+            boolean last      = level == levels - 1;
+            Mat[]   laplacian = new Mat[2];
+            Mat[]   nextGauss = new Mat[2];
+
+            // pyrDown halves the size, rounding up.
+            int nextRows = (gauss[0].rows() + 1) / 2;
+            int nextCols = (gauss[0].cols() + 1) / 2;
+
+            for (int k = 0; k < 2; ++k)
+            {
+                if (last)
+                {
+                    // The coarsest band is the remaining low-pass image.
+                    laplacian[k] = gauss[k];
+                }
+                else
+                {
+                    nextGauss[k] = pool.lease(nextRows, nextCols, CvType.CV_16SC4);
+                    laplacian[k] = pool.lease(gauss[k].rows(), gauss[k].cols(), CvType.CV_16SC4);
+                    Imgproc.pyrDown(gauss[k], nextGauss[k]);
+                    Imgproc.pyrUp(nextGauss[k], laplacian[k], gauss[k].size());
+                    Core.subtract(gauss[k], laplacian[k], laplacian[k]);
+                    pool.recycle(gauss[k]);
+                }
+            }
+
+            blended.add(blendLevel(laplacian, weights, pool));
+
+            if (last)
+            {
+                break;
+            }
+
+            for (int k = 0; k < 2; ++k)
+            {
+                pool.recycle(laplacian[k]);
+                gauss[k] = nextGauss[k];
+
+                Mat nextWeights = pool.lease(nextRows, nextCols, CvType.CV_16SC1);
+                Imgproc.pyrDown(weights[k], nextWeights);
+                pool.recycle(weights[k]);
+                weights[k] = nextWeights;
+            }
+        }
+
+        for (int k = 0; k < 2; ++k)
+        {
+            pool.recycle(gauss[k]);
+            pool.recycle(weights[k]);
+        }
+
+        // Collapse the blended pyramid from the coarsest level down.
+        Mat result = blended.get(blended.size() - 1);
+
+        for (int level = blended.size() - 2; level >= 0; --level)
+        {
+            Mat finer    = blended.get(level);
+            Mat expanded = pool.lease(finer.rows(), finer.cols(), CvType.CV_16SC4);
+            Imgproc.pyrUp(result, expanded, finer.size());
+            Core.add(expanded, finer, expanded);
+            pool.recycle(result);
+            pool.recycle(finer);
+            result = expanded;
+        }
+
+        result.convertTo(dst, CvType.CV_8U, 1.0 / (1 << FRACTION_BITS));
+        pool.recycle(result);
+    }
+
+    /**
+     * Returns the base 2 logarithm of the given size, rounded down, but at least 1.
+     *
+     * @param size The size.
+     * @return The logarithm.
+     */
+    private static int log2(int size)
+    {
+        return Math.max(1, 31 - Integer.numberOfLeadingZeros(size));
+    }
+
+    /**
+     * Blends one level of both Laplacian pyramids as their weighted average.
+     *
+     * @param laplacian The level of both Laplacian pyramids, with 4 channels.
+     * @param weights   The level of both weight pyramids, with 1 channel.
+     * @param pool      The pool to lease the matrices from.
+     * @return The blended level, leased from the pool.
+     */
+    private static Mat blendLevel(Mat[] laplacian, Mat[] weights, MatPool pool)
+    {
+        int rows     = laplacian[0].rows();
+        int cols     = laplacian[0].cols();
+        Mat weighted = pool.lease(rows, cols, CvType.CV_16SC4);
+        Mat sum      = pool.lease(rows, cols, CvType.CV_16SC1);
+        Mat term     = pool.lease(rows, cols, CvType.CV_16SC4);
+        Mat weight   = pool.lease(rows, cols, CvType.CV_16SC4);
+
+        for (int k = 0; k < 2; ++k)
+        {
+            Core.merge(Arrays.asList(weights[k], weights[k], weights[k], weights[k]), weight);
+            Core.multiply(laplacian[k], weight, k == 0 ? weighted : term, 1.0 / WEIGHT_ONE);
+
+            if (k > 0)
+            {
+                Core.add(weighted, term, weighted);
+            }
+        }
+
+        // Normalize by the total weight, which falls below one near the borders of both layers.
+        Core.add(weights[0], weights[1], sum);
+        Core.merge(Arrays.asList(sum, sum, sum, sum), weight);
+        Core.divide(weighted, weight, weighted, WEIGHT_ONE);
+
+        pool.recycle(sum);
+        pool.recycle(term);
+        pool.recycle(weight);
+
+        return weighted;
+    }
+}
@@ -0,0 +1,167 @@
+package dbuhler.stitcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This encoder writes 8-bit RGBA PNG images. Every row is filtered with the Sub filter and fed to
+ * a single Deflater, whose output is written as IDAT chunks as soon as it is available.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class PngEncoder implements ImageEncoder
+{
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private static final int  CHUNK_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+
+    private OutputStream output;
+    private int          width;
+    private Deflater     deflater;
+    private byte[]       row;
+    private byte[]       chunk;
+    private int          chunkLength;
+
+    @Override
+    public void begin(OutputStream output, int width, int height) throws IOException
+    {
+        this.output = output;
+        this.width  = width;
+        deflater    = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        row         = new byte[1 + 4 * width];
+        chunk       = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+
+        output.write(SIGNATURE);
+
+        // Width, height, bit depth 8, colour type 6 (RGBA), deflate, adaptive filtering, no
+        // interlacing.
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = 6;
+        writeChunk("IHDR", header, header.length);
+    }
+
+    @Override
+    public void writeRows(byte[] rgba, int rows) throws IOException
+    {
+        int stride = 4 * width;
+
+        for (int y = 0; y < rows; ++y)
+        {
+            int offset = y * stride;
+            row[0] = FILTER_SUB;
+
+            // The Sub filter stores the difference to the pixel on the left.
+            for (int i = 0; i < 4 && i < stride; ++i)
+            {
+                row[1 + i] = rgba[offset + i];
+            }
+
+            for (int i = 4; i < stride; ++i)
+            {
+                row[1 + i] = (byte) (rgba[offset + i] - rgba[offset + i - 4]);
+            }
+
+            deflater.setInput(row);
+
+            while (!deflater.needsInput())
+            {
+                drain();
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException
+    {
+        deflater.finish();
+
+        while (!deflater.finished())
+        {
+            drain();
+        }
+
+        if (chunkLength > 0)
+        {
+            writeChunk("IDAT", chunk, chunkLength);
+        }
+
+        writeChunk("IEND", chunk, 0);
+        deflater.end();
+        output.flush();
+    }
+
+    @Override
+    public String getExtension()
+    {
+        return "png";
+    }
+
+    /**
+     * Moves compressed data from the deflater into the IDAT chunk, writing the chunk when full.
+     *
+     * @throws IOException If the stream cannot be written.
+     */
+    private void drain() throws IOException
+    {
+        chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+
+        if (chunkLength == chunk.length)
+        {
+            writeChunk("IDAT", chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Writes a chunk with the given type and data.
+     *
+     * @param type   The four-letter chunk type.
+     * @param data   The chunk data.
+     * @param length The number of bytes of data.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeChunk(String type, byte[] data, int length) throws IOException
+    {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+
+        for (int i = 0; i < 4; ++i)
+        {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        crc.update(data, 0, length);
+
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+
+        output.write(head);
+        output.write(data, 0, length);
+        output.write(tail);
+    }
+
+    /**
+     * Stores an integer in big-endian byte order.
+     *
+     * @param buffer The buffer to store into.
+     * @param offset The offset of the first byte.
+     * @param value  The value to store.
+     */
+    private static void putInt(byte[] buffer, int offset, int value)
+    {
+        buffer[offset]     = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
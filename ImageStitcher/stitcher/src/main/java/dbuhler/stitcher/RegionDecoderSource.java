@@ -0,0 +1,294 @@
+package dbuhler.stitcher;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This image source decodes regions of a compressed image on demand with BitmapRegionDecoder.
+ * The image is split into fixed-size source tiles at each subsampling factor, and the most
+ * recently used tiles are kept decoded, so neighbouring output tiles rarely decode the same
+ * source pixels twice. Memory use depends on the tile size, not on the size of the image.
+ *
+ * If the EXIF orientation says that the image is not stored upright, the source presents the
+ * upright image like LumaExtractor does: each region is mapped back to the stored image, decoded
+ * there and turned upright. For flipped orientations, a subsampled region may be off by less than
+ * one subsampled pixel, since the subsampling grid is aligned to the stored image.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class RegionDecoderSource implements ImageSource
+{
+    private static final int TILE_SIZE        = 512;
+    private static final int MAX_CACHED_TILES = 8;
+
+    private BitmapRegionDecoder decoder;
+    private ExifData            exif;
+    private int                 storedWidth;
+    private int                 storedHeight;
+    private int                 width;
+    private int                 height;
+    private Map<Long, Mat>      tiles;
+    private Mat                 buffer;
+    private Mat                 storedBuffer;
+
+    /**
+     * Creates a new image source for the given decoder of an upright image.
+     *
+     * @param decoder The decoder of the image.
+     */
+    public RegionDecoderSource(BitmapRegionDecoder decoder)
+    {
+        this(decoder, new ExifData());
+    }
+
+    /**
+     * Creates a new image source for the given decoder that turns the image upright according to
+     * the given EXIF data.
+     *
+     * @param decoder The decoder of the image.
+     * @param exif    The EXIF data of the image.
+     */
+    public RegionDecoderSource(BitmapRegionDecoder decoder, ExifData exif)
+    {
+        this.decoder = decoder;
+        this.exif    = exif;
+        storedWidth  = decoder.getWidth();
+        storedHeight = decoder.getHeight();
+        width        = exif.isTransposed() ? storedHeight : storedWidth;
+        height       = exif.isTransposed() ? storedWidth  : storedHeight;
+        buffer       = new Mat();
+        storedBuffer = new Mat();
+        tiles  = new LinkedHashMap<Long, Mat>(MAX_CACHED_TILES, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Mat> eldest)
+            {
+                if (size() <= MAX_CACHED_TILES)
+                {
+                    return false;
+                }
+
+                eldest.getValue().release();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Opens the image with the given URI for decoding regions, assuming that it is upright.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @return The image source.
+     * @throws IOException If the image cannot be read or is not a JPEG or PNG image.
+     */
+    public static RegionDecoderSource open(ContentResolver resolver, Uri uri) throws IOException
+    {
+        return open(resolver, uri, new ExifData());
+    }
+
+    /**
+     * Opens the image with the given URI for decoding regions of the upright image, e.g. with the
+     * EXIF data of the image the stitcher was given, see ExifData.read.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @param exif     The EXIF data of the image.
+     * @return The image source.
+     * @throws IOException If the image cannot be read or is not a JPEG or PNG image.
+     */
+    public static RegionDecoderSource open(ContentResolver resolver, Uri uri, ExifData exif)
+            throws IOException
+    {
+        InputStream stream = resolver.openInputStream(uri);
+
+        if (stream == null)
+        {
+            throw new IOException("Cannot open " + uri);
+        }
+
+        try
+        {
+            return new RegionDecoderSource(BitmapRegionDecoder.newInstance(stream, false), exif);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public Mat read(Rect region, int sampleSize)
+    {
+        if (exif.getOrientation() == ExifInterface.ORIENTATION_NORMAL)
+        {
+            return readStored(region, sampleSize, buffer);
+        }
+
+        Mat stored = readStored(toStored(region), sampleSize, storedBuffer);
+
+        // The transformation only permutes pixels, so nearest neighbour copies them exactly.
+        Size turnedSize = exif.isTransposed() ? new Size(stored.rows(), stored.cols())
+                                              : stored.size();
+        Mat  turn       = new Mat(2, 3, CvType.CV_64F);
+        turn.put(0, 0, exif.getTransform(stored.cols(), stored.rows(), 1.0));
+        Imgproc.warpAffine(stored, buffer, turn, turnedSize, Imgproc.INTER_NEAREST);
+        turn.release();
+
+        return buffer;
+    }
+
+    /**
+     * Releases all decoded tiles and the decoder.
+     */
+    public void release()
+    {
+        for (Mat tile : tiles.values())
+        {
+            tile.release();
+        }
+
+        tiles.clear();
+        buffer.release();
+        storedBuffer.release();
+        decoder.recycle();
+    }
+
+    /**
+     * Maps a region of the upright image to the region of the stored image that holds its pixels.
+     *
+     * @param region The region of the upright image.
+     * @return The region of the stored image.
+     */
+    private Rect toStored(Rect region)
+    {
+        // The transformation to the upright image is a rotation or reflection, so its inverse is
+        // its transpose.
+        double[] t  = exif.getTransform(storedWidth, storedHeight, 1.0);
+        double   u0 = region.x - t[2];
+        double   v0 = region.y - t[5];
+        double   u1 = region.x + region.width  - 1 - t[2];
+        double   v1 = region.y + region.height - 1 - t[5];
+
+        int xa = (int) Math.round(t[0] * u0 + t[3] * v0);
+        int ya = (int) Math.round(t[1] * u0 + t[4] * v0);
+        int xb = (int) Math.round(t[0] * u1 + t[3] * v1);
+        int yb = (int) Math.round(t[1] * u1 + t[4] * v1);
+
+        return new Rect(Math.min(xa, xb), Math.min(ya, yb),
+                        Math.abs(xb - xa) + 1, Math.abs(yb - ya) + 1);
+    }
+
+    /**
+     * Reads a region of the stored image, subsampled by the given factor, see read.
+     *
+     * @param region     The region to read, inside the stored image.
+     * @param sampleSize The subsampling factor, a power of two.
+     * @param target     The matrix that will contain the pixels of the region.
+     * @return The target matrix.
+     */
+    private Mat readStored(Rect region, int sampleSize, Mat target)
+    {
+        // The region in subsampled pixels.
+        int x0 = region.x / sampleSize;
+        int y0 = region.y / sampleSize;
+        int x1 = (region.x + region.width  + sampleSize - 1) / sampleSize;
+        int y1 = (region.y + region.height + sampleSize - 1) / sampleSize;
+
+        // The decoder may round the size of a subsampled tile down, so start from transparent.
+        target.create(y1 - y0, x1 - x0, CvType.CV_8UC4);
+        target.setTo(Scalar.all(0));
+
+        for (int ty = y0 / TILE_SIZE; ty * TILE_SIZE < y1; ++ty)
+        {
+            for (int tx = x0 / TILE_SIZE; tx * TILE_SIZE < x1; ++tx)
+            {
+                Mat tile = getTile(tx, ty, sampleSize);
+
+                int ix0 = Math.max(x0, tx * TILE_SIZE);
+                int iy0 = Math.max(y0, ty * TILE_SIZE);
+                int ix1 = Math.min(x1, tx * TILE_SIZE + tile.cols());
+                int iy1 = Math.min(y1, ty * TILE_SIZE + tile.rows());
+
+                if (ix0 < ix1 && iy0 < iy1)
+                {
+                    Mat src = new Mat(tile, new Rect(ix0 - tx * TILE_SIZE, iy0 - ty * TILE_SIZE,
+                                                     ix1 - ix0, iy1 - iy0));
+                    Mat dst = new Mat(target, new Rect(ix0 - x0, iy0 - y0,
+                                                       ix1 - ix0, iy1 - iy0));
+                    src.copyTo(dst);
+                    src.release();
+                    dst.release();
+                }
+            }
+        }
+
+        return target;
+    }
+
+    /**
+     * Returns the given source tile, decoding it if it is not cached.
+     *
+     * @param tx         The column of the tile.
+     * @param ty         The row of the tile.
+     * @param sampleSize The subsampling factor.
+     * @return The RGBA pixels of the tile.
+     */
+    private Mat getTile(int tx, int ty, int sampleSize)
+    {
+        long key  = (long) sampleSize << 48 | (long) ty << 24 | tx;
+        Mat  tile = tiles.get(key);
+
+        if (tile != null)
+        {
+            return tile;
+        }
+
+        int step = TILE_SIZE * sampleSize;
+        android.graphics.Rect rect = new android.graphics.Rect(
+                tx * step, ty * step,
+                Math.min(storedWidth, (tx + 1) * step), Math.min(storedHeight, (ty + 1) * step));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize      = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap = decoder.decodeRegion(rect, options);
+        tile = new Mat();
+        Utils.bitmapToMat(bitmap, tile);
+        bitmap.recycle();
+
+        tiles.put(key, tile);
+        return tile;
+    }
+}
@@ -5,12 +5,17 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore.Images.Media;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ImageView;
+import android.widget.Toast;
 
 import org.opencv.android.OpenCVLoader;
+import org.opencv.core.MatTracker;
+
+import java.io.File;
+import java.util.concurrent.Future;
 
 /**
  * This activity performs the image stitching and presents the results to the user.
@@ -20,6 +25,22 @@ import org.opencv.android.OpenCVLoader;
  */
 public final class ResultActivity extends Activity implements SpinnerWaitDialog.OnNotifyListener
 {
+    // The maximum size of the feature cache, enough for well over a hundred images.
+    private static final long FEATURE_CACHE_SIZE = 16 * 1024 * 1024;
+
+    // The size of the test image and the repetitions of the ArgbWarp check in debug builds.
+    private static final int WARP_CHECK_WIDTH       = 640;
+    private static final int WARP_CHECK_HEIGHT      = 480;
+    private static final int WARP_CHECK_REPETITIONS = 4;
+
+    private static final String TAG = "ResultActivity";
+
+    // The buffers of the steps are reused by the stitches of later activities.
+    private static final BitmapConverter converter = new BitmapConverter();
+
+    private static FeatureCache featureCache;
+    private static boolean      warpChecked;
+
     private ImageView imageView;
     private Stitcher  stitcher;
     private Bitmap[]  images;
@@ -46,9 +67,29 @@ public final class ResultActivity extends Activity implements SpinnerWaitDialog.
 
         // Static OpenCV initialization.
         OpenCVLoader.initDebug();
+
+        // Account for the native memory of the matrices and report leaks in debug builds.
+        MatTracker.setEnabled(BuildConfig.DEBUG);
+        MatTracker.setReportLeaks(BuildConfig.DEBUG);
         stitchImages(imageUriLeft, imageUriRight);
     }
 
+    /**
+     * Called when the activity is destroyed. Returns the bitmaps of the steps to the converter.
+     */
+    @Override
+    protected void onDestroy()
+    {
+        imageView.setImageBitmap(null);
+
+        if (stitcher != null)
+        {
+            stitcher.release();
+        }
+
+        super.onDestroy();
+    }
+
     /**
      * Initialize the contents of the activity's options menu.
      *
@@ -99,7 +140,21 @@ public final class ResultActivity extends Activity implements SpinnerWaitDialog.
             images[i] = stitcher.getStep(i);
         }
 
-        updateActivity(Stitcher.NUM_STEPS - 1);
+        StitchQuality.Failure failure = stitcher.getFailure();
+
+        if (failure == null)
+        {
+            updateActivity(Stitcher.NUM_STEPS - 1);
+        }
+        else
+        {
+            // Show the matches used for the homography together with the reason for failing.
+            updateActivity(Stitcher.NUM_STEPS - 2);
+
+            Toast.makeText(this, getResources().getIdentifier(
+                    "failure_" + failure.name().toLowerCase(),
+                    "string", getPackageName()), Toast.LENGTH_LONG).show();
+        }
     }
 
     /**
@@ -117,15 +172,17 @@ public final class ResultActivity extends Activity implements SpinnerWaitDialog.
     }
 
     /**
-     * Initializes and runs the image stitcher for the two images with the given URIs.
+     * Decodes the two images with the given URIs in parallel and runs the image stitcher for
+     * them. The images are decoded close to the working resolution of the stitcher, see
+     * BitmapDecoder.
      *
      * @param imageUriLeft  The URI of the left image to stitch.
      * @param imageUriRight The URI of the right image to stitch.
      */
-    private void stitchImages(Uri imageUriLeft, Uri imageUriRight)
+    private void stitchImages(final Uri imageUriLeft, final Uri imageUriRight)
     {
-        final Bitmap bitmapLeft  = createBitmapFromUri(imageUriLeft);
-        final Bitmap bitmapRight = createBitmapFromUri(imageUriRight);
+        final BitmapDecoder decoder = new BitmapDecoder(getContentResolver(),
+                                                        Stitcher.MAX_DIMENSION);
 
         SpinnerWaitDialog<ResultActivity> dialog = new SpinnerWaitDialog<>(this);
         dialog.setTitle(R.string.dialog_wait_title);
@@ -135,22 +192,70 @@ public final class ResultActivity extends Activity implements SpinnerWaitDialog.
             @Override
             public void run()
             {
-                stitcher = new Stitcher(bitmapLeft, bitmapRight);
+                Future<Bitmap> bitmapLeft  = decoder.submit(imageUriLeft);
+                Future<Bitmap> bitmapRight = decoder.submit(imageUriRight);
+
+                if (BuildConfig.DEBUG)
+                {
+                    checkWarp();
+                }
+
+                // Read the orientation and focal length while the images are decoded.
+                StitchSettings settings = new StitchSettings();
+                settings.setExif(
+                        ExifData.read(getContentResolver(), imageUriLeft, getCacheDir()),
+                        ExifData.read(getContentResolver(), imageUriRight, getCacheDir()));
+                settings.setFeatureCache(getFeatureCache(getCacheDir()));
+                settings.setConverter(converter);
+
+                stitcher = new Stitcher(getBitmap(bitmapLeft), getBitmap(bitmapRight),
+                                        settings);
             }
         });
     }
 
     /**
-     * Creates and returns a bitmap from the image with the given URI.
+     * Returns the feature cache, which is shared by all stitches of the application.
+     *
+     * @param cacheDir The cache directory of the application.
+     * @return The feature cache.
+     */
+    private static synchronized FeatureCache getFeatureCache(File cacheDir)
+    {
+        if (featureCache == null)
+        {
+            featureCache = new FeatureCache(new File(cacheDir, "features"), FEATURE_CACHE_SIZE);
+        }
+
+        return featureCache;
+    }
+
+    /**
+     * Compares ArgbWarp with the native warp once per process and logs the result.
+     */
+    private static synchronized void checkWarp()
+    {
+        if (warpChecked)
+        {
+            return;
+        }
+
+        warpChecked = true;
+        Log.i(TAG, ArgbWarpCheck.run(WARP_CHECK_WIDTH, WARP_CHECK_HEIGHT,
+                                     WARP_CHECK_REPETITIONS));
+    }
+
+    /**
+     * Waits for the given image to be decoded and returns it.
      *
-     * @param uri The URI of the original image.
-     * @return The created bitmap.
+     * @param future The future result of decoding the image.
+     * @return The decoded bitmap.
      */
-    private Bitmap createBitmapFromUri(Uri uri)
+    private Bitmap getBitmap(Future<Bitmap> future)
     {
         try
         {
-            return Media.getBitmap(getContentResolver(), uri);
+            return future.get();
         }
         catch (Exception e)
         {
@@ -158,4 +263,4 @@ public final class ResultActivity extends Activity implements SpinnerWaitDialog.
             return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,220 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the registration of a camera rig that shoots the same two views again and
+ * again, so that new captures can be composited without detecting, matching and fitting features.
+ * To notice when the rig has moved, a few corners of the calibration images are tracked into each
+ * new capture at thumbnail resolution; if they do not stay in place, the images have to be
+ * registered again. The remap tables of a projection are cached by the Warper and reused as well.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class RigCalibration
+{
+    private static final int    MAX_DIMENSION = 320;
+    private static final int    MAX_POINTS    = 24;
+    private static final double QUALITY_LEVEL = 0.01;
+    private static final double MIN_DISTANCE  = 16.0;
+    private static final double MIN_TRACKED   = 0.75;
+    private static final double MAX_DRIFT     = 1.0;
+
+    private double[]       homography;
+    private StitchQuality  quality;
+    private Size           sizeL;
+    private Size           sizeR;
+    private Mat[]          references;
+    private MatOfPoint2f[] points;
+
+    /**
+     * Returns whether the rig has been calibrated.
+     *
+     * @return True if the rig is calibrated, false otherwise.
+     */
+    public boolean isCalibrated()
+    {
+        return homography != null;
+    }
+
+    /**
+     * Returns the calibrated homography that maps the right image onto the left image.
+     *
+     * @return The homography in row-major order.
+     */
+    public double[] getHomography()
+    {
+        return homography;
+    }
+
+    /**
+     * Returns the quality scores of the registration the rig was calibrated with.
+     *
+     * @return The quality scores.
+     */
+    public StitchQuality getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * Calibrates the rig with an accepted registration of two greyscale images.
+     *
+     * @param homography The homography that maps the right image onto the left image.
+     * @param quality    The quality scores of the registration.
+     * @param grayL      The left greyscale image.
+     * @param grayR      The right greyscale image.
+     */
+    public void calibrate(double[] homography, StitchQuality quality, Mat grayL, Mat grayR)
+    {
+        release();
+
+        this.homography = homography;
+        this.quality    = quality;
+        sizeL      = grayL.size();
+        sizeR      = grayR.size();
+        references = new Mat[] { shrink(grayL), shrink(grayR) };
+        points     = new MatOfPoint2f[2];
+
+        for (int k = 0; k < 2; ++k)
+        {
+            MatOfPoint corners = new MatOfPoint();
+            Imgproc.goodFeaturesToTrack(references[k], corners, MAX_POINTS, QUALITY_LEVEL,
+                                        MIN_DISTANCE);
+            points[k] = new MatOfPoint2f(corners.toArray());
+            corners.release();
+        }
+    }
+
+    /**
+     * Checks whether the rig has moved since it was calibrated by tracking the calibration
+     * corners into the given images.
+     *
+     * @param grayL The new left greyscale image.
+     * @param grayR The new right greyscale image.
+     * @return True if the rig has moved or the images cannot be compared, false otherwise.
+     */
+    public boolean hasDrifted(Mat grayL, Mat grayR)
+    {
+        if (!isCalibrated() || !grayL.size().equals(sizeL) || !grayR.size().equals(sizeR))
+        {
+            return true;
+        }
+
+        Mat[] images = { grayL, grayR };
+
+        for (int k = 0; k < 2; ++k)
+        {
+            Mat     image   = shrink(images[k]);
+            boolean drifted = hasDrifted(references[k], image, points[k]);
+            image.release();
+
+            if (drifted)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Releases the calibration images. The rig is no longer calibrated afterwards.
+     */
+    public void release()
+    {
+        if (references != null)
+        {
+            for (int k = 0; k < 2; ++k)
+            {
+                references[k].release();
+                points[k].release();
+            }
+        }
+
+        homography = null;
+        quality    = null;
+        sizeL      = null;
+        sizeR      = null;
+        references = null;
+        points     = null;
+    }
+
+    /**
+     * Tracks the given points from the reference image into the new image with pyramidal
+     * Lucas-Kanade optical flow and checks whether enough of them stayed in place.
+     *
+     * @param reference The reference thumbnail.
+     * @param image     The new thumbnail.
+     * @param tracked   The points to track in the reference thumbnail.
+     * @return True if the points moved or were lost, false otherwise.
+     */
+    private static boolean hasDrifted(Mat reference, Mat image, MatOfPoint2f tracked)
+    {
+        int n = (int) tracked.total();
+
+        if (n == 0)
+        {
+            return true;
+        }
+
+        MatOfPoint2f moved  = new MatOfPoint2f();
+        MatOfByte    status = new MatOfByte();
+        MatOfFloat   error  = new MatOfFloat();
+        Video.calcOpticalFlowPyrLK(reference, image, tracked, moved, status, error);
+
+        float[] before = new float[2 * n];
+        float[] after  = new float[2 * n];
+        byte[]  found  = status.toArray();
+        tracked.get(0, 0, before);
+        moved.get(0, 0, after);
+        moved.release();
+        status.release();
+        error.release();
+
+        double[] shifts = new double[n];
+        int      count  = 0;
+
+        for (int i = 0; i < n; ++i)
+        {
+            if (found[i] != 0)
+            {
+                shifts[count++] = Math.hypot(after[2 * i] - before[2 * i],
+                                             after[2 * i + 1] - before[2 * i + 1]);
+            }
+        }
+
+        if (count < MIN_TRACKED * n)
+        {
+            return true;
+        }
+
+        // The median ignores a few corners on moving objects.
+        Arrays.sort(shifts, 0, count);
+        return shifts[count / 2] > MAX_DRIFT;
+    }
+
+    /**
+     * Returns a copy of the given image scaled down to at most MAX_DIMENSION pixels.
+     *
+     * @param image The image to scale down.
+     * @return The scaled-down image.
+     */
+    private static Mat shrink(Mat image)
+    {
+        Mat    small = new Mat();
+        double scale = Math.min(1.0, 1.0 * MAX_DIMENSION / Math.max(image.rows(), image.cols()));
+        Imgproc.resize(image, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+        return small;
+    }
+}
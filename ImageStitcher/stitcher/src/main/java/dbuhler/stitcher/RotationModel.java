@@ -0,0 +1,303 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * This motion model is a pure 3-DOF camera rotation about its optical centre, e.g. for tripod
+ * pans. It is expressed as the homography K_dst * R * inverse(K_src), where the camera matrices
+ * use the known focal length and the image centres as principal points. Two matches define it.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class RotationModel extends MotionModel
+{
+    private static final double MIN_SINE        = 0.01;
+    private static final double ANGLE_TOLERANCE = 0.01;
+
+    private double focalLength;
+    private double srcCentreX;
+    private double srcCentreY;
+    private double dstCentreX;
+    private double dstCentreY;
+
+    /**
+     * Creates a new rotation model for a camera with the given focal length.
+     *
+     * @param focalLength The focal length in pixels.
+     * @param srcSize     The width and height of the source image.
+     * @param dstSize     The width and height of the destination image.
+     */
+    public RotationModel(double focalLength, int[] srcSize, int[] dstSize)
+    {
+        this.focalLength = focalLength;
+        srcCentreX = 0.5 * srcSize[0];
+        srcCentreY = 0.5 * srcSize[1];
+        dstCentreX = 0.5 * dstSize[0];
+        dstCentreY = 0.5 * dstSize[1];
+    }
+
+    @Override
+    public Type getType()
+    {
+        return Type.ROTATION;
+    }
+
+    @Override
+    public int getSampleSize()
+    {
+        return 2;
+    }
+
+    /**
+     * Checks whether a sample can define a plausible rotation. Since rotations preserve angles,
+     * the angle between the viewing rays of the two points must be the same in both images.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @return True if the sample is valid, false otherwise.
+     */
+    @Override
+    public boolean isSampleValid(float[] src, float[] dst, int[] sample)
+    {
+        double[] a1 = srcRay(src, sample[0]);
+        double[] a2 = srcRay(src, sample[1]);
+        double[] b1 = dstRay(dst, sample[0]);
+        double[] b2 = dstRay(dst, sample[1]);
+
+        double cosA = dot(a1, a2);
+        double cosB = dot(b1, b2);
+
+        return 1 - cosA * cosA > MIN_SINE * MIN_SINE && Math.abs(cosA - cosB) < ANGLE_TOLERANCE;
+    }
+
+    /**
+     * Solves for the rotation that maps the two source rays onto the destination rays using the
+     * TRIAD method, i.e. by aligning the orthonormal frames spanned by both pairs of rays.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @param h      The array that will contain the homography in row-major order.
+     * @return True if the rotation could be solved, false otherwise.
+     */
+    @Override
+    public boolean solve(float[] src, float[] dst, int[] sample, double[] h)
+    {
+        double[] frameA = frame(srcRay(src, sample[0]), srcRay(src, sample[1]));
+        double[] frameB = frame(dstRay(dst, sample[0]), dstRay(dst, sample[1]));
+
+        if (frameA == null || frameB == null)
+        {
+            return false;
+        }
+
+        // R = B * transpose(A), where the frames hold the basis vectors as columns.
+        double[] r = new double[9];
+
+        for (int i = 0; i < 3; ++i)
+        {
+            for (int j = 0; j < 3; ++j)
+            {
+                r[3 * i + j] = frameB[3 * i]     * frameA[3 * j]
+                             + frameB[3 * i + 1] * frameA[3 * j + 1]
+                             + frameB[3 * i + 2] * frameA[3 * j + 2];
+            }
+        }
+
+        return toHomography(r, h);
+    }
+
+    /**
+     * Fits the rotation to all inlier rays by solving the orthogonal Procrustes problem with a
+     * singular value decomposition.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined rotation as 3x3 homography, or an empty matrix if the fit failed.
+     */
+    @Override
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        double[] c = new double[9];
+
+        for (int k = 0; k < inliers.length; ++k)
+        {
+            if (inliers[k] == 1)
+            {
+                double[] a = srcRay(src, k);
+                double[] b = dstRay(dst, k);
+
+                for (int i = 0; i < 3; ++i)
+                {
+                    for (int j = 0; j < 3; ++j)
+                    {
+                        c[3 * i + j] += b[i] * a[j];
+                    }
+                }
+            }
+        }
+
+        Mat correlation = new Mat(3, 3, CvType.CV_64F);
+        Mat w           = new Mat();
+        Mat u           = new Mat();
+        Mat vt          = new Mat();
+        correlation.put(0, 0, c);
+        Core.SVDecomp(correlation, w, u, vt);
+
+        // Flip the last axis if necessary so that the result is a proper rotation.
+        Mat rotation = new Mat();
+        Core.gemm(u, vt, 1, new Mat(), 0, rotation);
+
+        if (Core.determinant(rotation) < 0)
+        {
+            Mat flip = Mat.eye(3, 3, CvType.CV_64F);
+            flip.put(2, 2, -1);
+            Core.gemm(u, flip, 1, new Mat(), 0, u);
+            Core.gemm(u, vt, 1, new Mat(), 0, rotation);
+        }
+
+        double[] r = new double[9];
+        double[] h = new double[9];
+        rotation.get(0, 0, r);
+
+        if (!toHomography(r, h))
+        {
+            return new Mat();
+        }
+
+        Mat homography = new Mat(3, 3, CvType.CV_64F);
+        homography.put(0, 0, h);
+        return homography;
+    }
+
+    /**
+     * Computes the homography K_dst * R * inverse(K_src) for the given rotation.
+     *
+     * @param r The rotation matrix in row-major order.
+     * @param h The array that will contain the homography in row-major order.
+     * @return True if the homography is finite, false otherwise.
+     */
+    private boolean toHomography(double[] r, double[] h)
+    {
+        double f = focalLength;
+
+        for (int i = 0; i < 3; ++i)
+        {
+            // Row i of R * inverse(K_src).
+            double m0 = r[3 * i] / f;
+            double m1 = r[3 * i + 1] / f;
+            double m2 = r[3 * i + 2] - (r[3 * i] * srcCentreX + r[3 * i + 1] * srcCentreY) / f;
+            h[3 * i]     = m0;
+            h[3 * i + 1] = m1;
+            h[3 * i + 2] = m2;
+        }
+
+        for (int j = 0; j < 3; ++j)
+        {
+            // Apply K_dst to column j.
+            h[j]     = f * h[j]     + dstCentreX * h[6 + j];
+            h[3 + j] = f * h[3 + j] + dstCentreY * h[6 + j];
+        }
+
+        if (h[8] == 0)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < 9; ++i)
+        {
+            h[i] /= h[8];
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the unit viewing ray through the given source point.
+     *
+     * @param p The point coordinates.
+     * @param i The index of the point.
+     * @return The unit ray.
+     */
+    private double[] srcRay(float[] p, int i)
+    {
+        return ray(p[2 * i] - srcCentreX, p[2 * i + 1] - srcCentreY);
+    }
+
+    /**
+     * Returns the unit viewing ray through the given destination point.
+     *
+     * @param p The point coordinates.
+     * @param i The index of the point.
+     * @return The unit ray.
+     */
+    private double[] dstRay(float[] p, int i)
+    {
+        return ray(p[2 * i] - dstCentreX, p[2 * i + 1] - dstCentreY);
+    }
+
+    /**
+     * Returns the unit viewing ray through the point with the given offset from the principal
+     * point.
+     *
+     * @param x The horizontal offset in pixels.
+     * @param y The vertical offset in pixels.
+     * @return The unit ray.
+     */
+    private double[] ray(double x, double y)
+    {
+        double norm = Math.sqrt(x * x + y * y + focalLength * focalLength);
+        return new double[] { x / norm, y / norm, focalLength / norm };
+    }
+
+    /**
+     * Returns the orthonormal frame spanned by two rays as a matrix whose columns are the first
+     * ray, the normal of both rays and their cross product.
+     *
+     * @param a The first ray.
+     * @param b The second ray.
+     * @return The frame in row-major order, or null if the rays are nearly parallel.
+     */
+    private static double[] frame(double[] a, double[] b)
+    {
+        double nx = a[1] * b[2] - a[2] * b[1];
+        double ny = a[2] * b[0] - a[0] * b[2];
+        double nz = a[0] * b[1] - a[1] * b[0];
+        double nn = Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+        if (nn < MIN_SINE)
+        {
+            return null;
+        }
+
+        nx /= nn;
+        ny /= nn;
+        nz /= nn;
+
+        double cx = a[1] * nz - a[2] * ny;
+        double cy = a[2] * nx - a[0] * nz;
+        double cz = a[0] * ny - a[1] * nx;
+
+        return new double[] { a[0], nx, cx,
+                              a[1], ny, cy,
+                              a[2], nz, cz };
+    }
+
+    /**
+     * Returns the dot product of two vectors.
+     *
+     * @param a The first vector.
+     * @param b The second vector.
+     * @return The dot product.
+     */
+    private static double dot(double[] a, double[] b)
+    {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
@@ -0,0 +1,116 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Rect;
+
+/**
+ * This class describes a seam between two overlapping layers of a TiledCompositor. The seam runs
+ * from top to bottom through the overlap rectangle and is stored as one canvas column per row, so
+ * it can be expanded into a full-resolution mask for any tile without storing the mask itself.
+ * Where both layers are valid, pixels left of the seam are taken from the left layer and all other
+ * pixels from the right layer.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class Seam
+{
+    private int   leftLayer;
+    private int   rightLayer;
+    private Rect  rect;
+    private int[] columns;
+
+    /**
+     * Creates a new seam.
+     *
+     * @param leftLayer  The index of the layer left of the seam.
+     * @param rightLayer The index of the layer right of the seam.
+     * @param rect       The overlap rectangle in the canvas.
+     * @param columns    The canvas column of the seam for every row of the rectangle.
+     */
+    public Seam(int leftLayer, int rightLayer, Rect rect, int[] columns)
+    {
+        this.leftLayer  = leftLayer;
+        this.rightLayer = rightLayer;
+        this.rect       = rect;
+        this.columns    = columns;
+    }
+
+    /**
+     * Returns the index of the layer left of the seam.
+     *
+     * @return The left layer index.
+     */
+    public int getLeftLayer()
+    {
+        return leftLayer;
+    }
+
+    /**
+     * Returns the index of the layer right of the seam.
+     *
+     * @return The right layer index.
+     */
+    public int getRightLayer()
+    {
+        return rightLayer;
+    }
+
+    /**
+     * Returns the overlap rectangle the seam runs through.
+     *
+     * @return The rectangle in canvas coordinates.
+     */
+    public Rect getRect()
+    {
+        return rect;
+    }
+
+    /**
+     * Returns the seam columns for all rows of the overlap rectangle.
+     *
+     * @return The canvas columns, indexed by row relative to the top of the rectangle.
+     */
+    public int[] getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Returns the canvas column of the seam in the given canvas row. Pixels in columns less than
+     * the returned value lie left of the seam.
+     *
+     * @param y The canvas row.
+     * @return The seam column, or -1 if the row does not intersect the overlap rectangle.
+     */
+    public int getColumn(int y)
+    {
+        return y >= rect.y && y < rect.y + rect.height ? columns[y - rect.y] : -1;
+    }
+
+    /**
+     * Returns this seam on a canvas that is shifted and scaled relative to this one, i.e. canvas
+     * point p maps to (p + offset) * scale.
+     *
+     * @param dx    The horizontal offset.
+     * @param dy    The vertical offset.
+     * @param scale The scale factor.
+     * @return The transformed seam.
+     */
+    public Seam transform(double dx, double dy, double scale)
+    {
+        int x      = (int) Math.round((rect.x + dx) * scale);
+        int y      = (int) Math.round((rect.y + dy) * scale);
+        int width  = Math.max(1, (int) Math.round(rect.width * scale));
+        int height = Math.max(1, (int) Math.round(rect.height * scale));
+
+        int[] newColumns = new int[height];
+
+        for (int i = 0; i < height; ++i)
+        {
+            int row = Math.min(columns.length - 1, (int) ((i + 0.5) / scale));
+            newColumns[i] = (int) Math.round((columns[row] + dx) * scale);
+        }
+
+        return new Seam(leftLayer, rightLayer, new Rect(x, y, width, height), newColumns);
+    }
+}
@@ -0,0 +1,185 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * This class finds an optimal seam between two overlapping layers of a TiledCompositor using
+ * dynamic programming. Both layers are warped only inside their overlap rectangle and at reduced
+ * resolution, and the seam minimizes the colour and gradient differences it crosses. The result
+ * is scaled back to full resolution as one seam column per canvas row.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class SeamFinder
+{
+    private static final int    MAX_DIMENSION   = 256;
+    private static final int    INVALID_COST    = 1 << 16;
+    private static final double GRADIENT_WEIGHT = 0.5;
+
+    /**
+     * Finds the seam between two layers of the given compositor.
+     *
+     * @param compositor The compositor holding the layers.
+     * @param leftLayer  The index of the layer that is to be used left of the seam.
+     * @param rightLayer The index of the layer that is to be used right of the seam.
+     * @return The seam, or null if the layers do not overlap.
+     */
+    public Seam find(TiledCompositor compositor, int leftLayer, int rightLayer)
+    {
+        Rect rect = compositor.findOverlap(leftLayer, rightLayer);
+
+        if (rect == null)
+        {
+            return null;
+        }
+
+        double scale = Math.min(1.0, 1.0 * MAX_DIMENSION / Math.max(rect.width, rect.height));
+        Mat    left  = compositor.lease(rect, scale, CvType.CV_8UC4);
+        Mat    right = compositor.lease(rect, scale, CvType.CV_8UC4);
+        compositor.warpLayer(leftLayer,  rect, scale, left);
+        compositor.warpLayer(rightLayer, rect, scale, right);
+
+        int    width       = left.cols();
+        int    height      = left.rows();
+        byte[] leftPixels  = new byte[4 * width * height];
+        byte[] rightPixels = new byte[4 * width * height];
+        left.get(0, 0, leftPixels);
+        right.get(0, 0, rightPixels);
+        compositor.recycle(left);
+        compositor.recycle(right);
+
+        int[] cost = findCosts(leftPixels, rightPixels, width, height);
+        int[] path = findPath(cost, width, height);
+
+        // Scale the seam back up to one column per canvas row.
+        int[] columns = new int[rect.height];
+
+        for (int y = 0; y < rect.height; ++y)
+        {
+            int x = path[Math.min(height - 1, (int) (y * scale))];
+            columns[y] = rect.x + (int) Math.round((x + 0.5) / scale);
+        }
+
+        return new Seam(leftLayer, rightLayer, rect, columns);
+    }
+
+    /**
+     * Computes the cost of the seam passing through each pixel, which is the colour difference of
+     * both layers plus the weighted difference of their horizontal and vertical gradients. Pixels
+     * where either layer is invalid get INVALID_COST.
+     *
+     * @param a      The RGBA pixels of the first layer.
+     * @param b      The RGBA pixels of the second layer.
+     * @param width  The width of the layers.
+     * @param height The height of the layers.
+     * @return The cost for each pixel.
+     */
+    private static int[] findCosts(byte[] a, byte[] b, int width, int height)
+    {
+        int[] cost = new int[width * height];
+
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                int i = y * width + x;
+
+                if (!TiledCompositor.isValid(a[4 * i + 3])
+                        || !TiledCompositor.isValid(b[4 * i + 3]))
+                {
+                    cost[i] = INVALID_COST;
+                    continue;
+                }
+
+                int right = x + 1 < width  ? i + 1     : i;
+                int below = y + 1 < height ? i + width : i;
+                int diff  = 0;
+                int grad  = 0;
+
+                for (int c = 0; c < 3; ++c)
+                {
+                    int d = (a[4 * i + c] & 0xFF) - (b[4 * i + c] & 0xFF);
+                    int dx = (a[4 * right + c] & 0xFF) - (a[4 * i + c] & 0xFF)
+                           - (b[4 * right + c] & 0xFF) + (b[4 * i + c] & 0xFF);
+                    int dy = (a[4 * below + c] & 0xFF) - (a[4 * i + c] & 0xFF)
+                           - (b[4 * below + c] & 0xFF) + (b[4 * i + c] & 0xFF);
+
+                    diff += Math.abs(d);
+                    grad += Math.abs(dx) + Math.abs(dy);
+                }
+
+                cost[i] = diff + (int) (GRADIENT_WEIGHT * grad);
+            }
+        }
+
+        return cost;
+    }
+
+    /**
+     * Finds the top-to-bottom path of minimal total cost that moves at most one column per row.
+     *
+     * @param cost   The cost for each pixel.
+     * @param width  The width of the cost map.
+     * @param height The height of the cost map.
+     * @return The column of the path in each row.
+     */
+    private static int[] findPath(int[] cost, int width, int height)
+    {
+        long[] total = new long[width * height];
+        byte[] step  = new byte[width * height];
+
+        for (int x = 0; x < width; ++x)
+        {
+            total[x] = cost[x];
+        }
+
+        for (int y = 1; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                int  i    = y * width + x;
+                long best = total[i - width];
+                int  move = 0;
+
+                if (x > 0 && total[i - width - 1] < best)
+                {
+                    best = total[i - width - 1];
+                    move = -1;
+                }
+
+                if (x + 1 < width && total[i - width + 1] < best)
+                {
+                    best = total[i - width + 1];
+                    move = 1;
+                }
+
+                total[i] = best + cost[i];
+                step[i]  = (byte) move;
+            }
+        }
+
+        // Trace the path back from the cheapest pixel in the last row.
+        int[] path = new int[height];
+        int   last = (height - 1) * width;
+        int   x    = 0;
+
+        for (int i = 1; i < width; ++i)
+        {
+            if (total[last + i] < total[last + x])
+            {
+                x = i;
+            }
+        }
+
+        for (int y = height - 1; y >= 0; --y)
+        {
+            path[y] = x;
+            x += step[y * width + x];
+        }
+
+        return path;
+    }
+}
@@ -0,0 +1,113 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.video.Video;
+
+/**
+ * This motion model is a 4-DOF similarity, i.e. rotation, uniform scaling and translation. It is
+ * defined by two matches.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class SimilarityModel extends MotionModel
+{
+    private static final double MIN_DISTANCE = 4.0;
+    private static final double MAX_SCALE    = 2.0;
+
+    @Override
+    public Type getType()
+    {
+        return Type.SIMILARITY;
+    }
+
+    @Override
+    public int getSampleSize()
+    {
+        return 2;
+    }
+
+    /**
+     * Checks whether a sample can define a plausible similarity. This is the case if the two
+     * points are at least MIN_DISTANCE apart in both images and their distance changes by less
+     * than a factor of MAX_SCALE.
+     *
+     * @param src    The coordinates of the source points.
+     * @param dst    The coordinates of the destination points.
+     * @param sample The sample indices.
+     * @return True if the sample is valid, false otherwise.
+     */
+    @Override
+    public boolean isSampleValid(float[] src, float[] dst, int[] sample)
+    {
+        double srcDistance = distance(src, sample[0], sample[1]);
+        double dstDistance = distance(dst, sample[0], sample[1]);
+
+        return srcDistance >= MIN_DISTANCE && dstDistance >= MIN_DISTANCE
+                && dstDistance < MAX_SCALE * srcDistance && srcDistance < MAX_SCALE * dstDistance;
+    }
+
+    @Override
+    public boolean solve(float[] src, float[] dst, int[] sample, double[] h)
+    {
+        int i = sample[0];
+        int j = sample[1];
+
+        // With z = x + iy, the similarity is z' = (a + ib) * z + t.
+        double sx = src[2 * j]     - src[2 * i];
+        double sy = src[2 * j + 1] - src[2 * i + 1];
+        double dx = dst[2 * j]     - dst[2 * i];
+        double dy = dst[2 * j + 1] - dst[2 * i + 1];
+        double n  = sx * sx + sy * sy;
+
+        if (n == 0)
+        {
+            return false;
+        }
+
+        double a = (dx * sx + dy * sy) / n;
+        double b = (dy * sx - dx * sy) / n;
+
+        h[0] = a;
+        h[1] = -b;
+        h[2] = dst[2 * i]     - a * src[2 * i] + b * src[2 * i + 1];
+        h[3] = b;
+        h[4] = a;
+        h[5] = dst[2 * i + 1] - b * src[2 * i] - a * src[2 * i + 1];
+        h[6] = 0;
+        h[7] = 0;
+        h[8] = 1;
+
+        return true;
+    }
+
+    /**
+     * Fits the similarity to all inliers using Video.estimateRigidTransform.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined similarity as 3x3 matrix, or an empty matrix if the fit failed.
+     */
+    @Override
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        return toHomography(Video.estimateRigidTransform(selectInliers(src, inliers, count),
+                                                         selectInliers(dst, inliers, count),
+                                                         false));
+    }
+
+    /**
+     * Returns the distance between two points.
+     *
+     * @param p The point coordinates.
+     * @param i The index of the first point.
+     * @param j The index of the second point.
+     * @return The distance between the points.
+     */
+    private static double distance(float[] p, int i, int j)
+    {
+        return Math.hypot(p[2 * j] - p[2 * i], p[2 * j + 1] - p[2 * i + 1]);
+    }
+}
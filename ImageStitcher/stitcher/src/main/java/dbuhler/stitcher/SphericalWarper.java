@@ -0,0 +1,40 @@
+package dbuhler.stitcher;
+
+/**
+ * This warper projects images onto a sphere around the camera centre, using longitude and
+ * latitude as coordinates. Unlike CylindricalWarper, it also keeps the vertical stretch bounded,
+ * which suits panoramas that cover a large vertical angle.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class SphericalWarper extends Warper
+{
+    /**
+     * Creates a new spherical warper.
+     *
+     * @param focalLength The focal length of the camera in pixels.
+     */
+    public SphericalWarper(double focalLength)
+    {
+        super(focalLength);
+    }
+
+    @Override
+    protected boolean unproject(double u, double v, double[] point)
+    {
+        // u is the longitude and v the latitude of the ray.
+        double x = Math.sin(u) * Math.cos(v);
+        double y = Math.sin(v);
+        double z = Math.cos(u) * Math.cos(v);
+
+        if (z <= 0)
+        {
+            return false;
+        }
+
+        point[0] = x / z;
+        point[1] = y / z;
+        return true;
+    }
+}
@@ -0,0 +1,394 @@
+package dbuhler.stitcher;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.opencv.core.Rect;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class records everything the image stitcher found out about two images, so that they can
+ * be composited again without registering them, e.g. with another blender or at another size.
+ * A project holds the URIs and content hashes of the inputs, the working resolution, the inlier
+ * matches, the homography and its quality scores, and the crop rectangle, gains and seam at the
+ * working resolution. Projects are written in a versioned binary format; see write for the
+ * layout. The stitching data is only accessed by the Stitcher.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class StitchProject
+{
+    private static final int MAGIC   = 0x5354504A;
+    private static final int VERSION = 1;
+
+    private String uriLeft   = "";
+    private String uriRight  = "";
+    private String hashLeft  = "";
+    private String hashRight = "";
+
+    // The stitching data, see Stitcher.getProject.
+    int[]                     workingSize;
+    StitchSettings.Projection projection;
+    double                    focalLength;
+    double[]                  homography;
+    int                       inlierCount;
+    double                    inlierRatio;
+    double                    rmse;
+    double                    condition;
+    float[]                   inliers;
+    Rect                      crop;
+    double[]                  gains;
+    Seam                      seam;
+
+    /**
+     * Creates an empty project, see Stitcher.getProject.
+     */
+    StitchProject()
+    {
+    }
+
+    /**
+     * Sets the inputs of the project.
+     *
+     * @param uriLeft   The URI of the left image.
+     * @param hashLeft  The content hash of the left image, see hash.
+     * @param uriRight  The URI of the right image.
+     * @param hashRight The content hash of the right image, see hash.
+     */
+    public void setInputs(Uri uriLeft, String hashLeft, Uri uriRight, String hashRight)
+    {
+        this.uriLeft   = uriLeft.toString();
+        this.hashLeft  = hashLeft;
+        this.uriRight  = uriRight.toString();
+        this.hashRight = hashRight;
+    }
+
+    /**
+     * Returns the URI of the left image.
+     *
+     * @return The URI, or null if the inputs were not set.
+     */
+    public Uri getUriLeft()
+    {
+        return uriLeft.isEmpty() ? null : Uri.parse(uriLeft);
+    }
+
+    /**
+     * Returns the URI of the right image.
+     *
+     * @return The URI, or null if the inputs were not set.
+     */
+    public Uri getUriRight()
+    {
+        return uriRight.isEmpty() ? null : Uri.parse(uriRight);
+    }
+
+    /**
+     * Returns whether the images with the given URIs still have the contents the project was
+     * created for.
+     *
+     * @param resolver The content resolver to open the images with.
+     * @return True if both images are unchanged, false otherwise.
+     */
+    public boolean isUpToDate(ContentResolver resolver)
+    {
+        Uri left  = getUriLeft();
+        Uri right = getUriRight();
+
+        try
+        {
+            return left != null && right != null
+                && hash(resolver, left).equals(hashLeft)
+                && hash(resolver, right).equals(hashRight);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the content hash of the image with the given URI.
+     *
+     * @param resolver The content resolver to open the image with.
+     * @param uri      The URI of the image.
+     * @return The SHA-1 of the file as a hexadecimal string.
+     * @throws IOException If the image cannot be read.
+     */
+    public static String hash(ContentResolver resolver, Uri uri) throws IOException
+    {
+        InputStream input = resolver.openInputStream(uri);
+
+        if (input == null)
+        {
+            throw new IOException("Cannot open " + uri);
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[]        buffer = new byte[64 * 1024];
+            int           count;
+
+            while ((count = input.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, count);
+            }
+
+            StringBuilder hash = new StringBuilder();
+
+            for (byte b : digest.digest())
+            {
+                hash.append(String.format("%02x", b));
+            }
+
+            return hash.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the project to the given stream. All values are big-endian:
+     *
+     *   int    magic, version
+     *   UTF    left URI, left hash, right URI, right hash
+     *   int    working width and height of the left and the right image
+     *   UTF    projection
+     *   double focal length, homography[9]
+     *   int    inlier count
+     *   double inlier ratio, reprojection error, condition
+     *   int    n, then float inliers[n][4]   (left x, left y, right x, right y)
+     *   bool   has crop, then int x, y, width, height
+     *   int    n, then double gains[n]
+     *   bool   has seam, then int left layer, right layer, x, y, width, height, columns[height]
+     *
+     * @param output The stream to write to; it is not closed.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void write(OutputStream output) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(output);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeUTF(uriLeft);
+        data.writeUTF(hashLeft);
+        data.writeUTF(uriRight);
+        data.writeUTF(hashRight);
+
+        for (int size : workingSize)
+        {
+            data.writeInt(size);
+        }
+
+        data.writeUTF(projection.name());
+        data.writeDouble(focalLength);
+
+        for (double h : homography)
+        {
+            data.writeDouble(h);
+        }
+
+        data.writeInt(inlierCount);
+        data.writeDouble(inlierRatio);
+        data.writeDouble(rmse);
+        data.writeDouble(condition);
+
+        data.writeInt(inliers.length / 4);
+
+        for (float value : inliers)
+        {
+            data.writeFloat(value);
+        }
+
+        data.writeBoolean(crop != null);
+
+        if (crop != null)
+        {
+            writeRect(data, crop);
+        }
+
+        data.writeInt(gains == null ? 0 : gains.length);
+
+        for (int i = 0; gains != null && i < gains.length; ++i)
+        {
+            data.writeDouble(gains[i]);
+        }
+
+        data.writeBoolean(seam != null);
+
+        if (seam != null)
+        {
+            data.writeInt(seam.getLeftLayer());
+            data.writeInt(seam.getRightLayer());
+            writeRect(data, seam.getRect());
+
+            for (int column : seam.getColumns())
+            {
+                data.writeInt(column);
+            }
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Reads a project from the given stream.
+     *
+     * @param input The stream to read from; it is not closed.
+     * @return The project.
+     * @throws IOException If the stream cannot be read or does not hold a supported project.
+     */
+    public static StitchProject read(InputStream input) throws IOException
+    {
+        DataInputStream data = new DataInputStream(input);
+
+        if (data.readInt() != MAGIC)
+        {
+            throw new IOException("Not a stitch project");
+        }
+
+        int version = data.readInt();
+
+        if (version < 1 || version > VERSION)
+        {
+            throw new IOException("Unsupported project version " + version);
+        }
+
+        StitchProject project = new StitchProject();
+        project.uriLeft   = data.readUTF();
+        project.hashLeft  = data.readUTF();
+        project.uriRight  = data.readUTF();
+        project.hashRight = data.readUTF();
+
+        project.workingSize = new int[4];
+
+        for (int i = 0; i < project.workingSize.length; ++i)
+        {
+            project.workingSize[i] = data.readInt();
+        }
+
+        try
+        {
+            project.projection = StitchSettings.Projection.valueOf(data.readUTF());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Unknown projection", e);
+        }
+
+        project.focalLength = data.readDouble();
+        project.homography  = new double[9];
+
+        for (int i = 0; i < project.homography.length; ++i)
+        {
+            project.homography[i] = data.readDouble();
+        }
+
+        project.inlierCount = data.readInt();
+        project.inlierRatio = data.readDouble();
+        project.rmse        = data.readDouble();
+        project.condition   = data.readDouble();
+        project.inliers     = new float[4 * readCount(data)];
+
+        for (int i = 0; i < project.inliers.length; ++i)
+        {
+            project.inliers[i] = data.readFloat();
+        }
+
+        if (data.readBoolean())
+        {
+            project.crop = readRect(data);
+        }
+
+        int gainCount = readCount(data);
+
+        if (gainCount > 0)
+        {
+            project.gains = new double[gainCount];
+
+            for (int i = 0; i < gainCount; ++i)
+            {
+                project.gains[i] = data.readDouble();
+            }
+        }
+
+        if (data.readBoolean())
+        {
+            int   leftLayer  = data.readInt();
+            int   rightLayer = data.readInt();
+            Rect  rect       = readRect(data);
+            int[] columns    = new int[Math.max(0, rect.height)];
+
+            for (int i = 0; i < columns.length; ++i)
+            {
+                columns[i] = data.readInt();
+            }
+
+            project.seam = new Seam(leftLayer, rightLayer, rect, columns);
+        }
+
+        return project;
+    }
+
+    /**
+     * Reads a non-negative count.
+     *
+     * @param data The stream to read from.
+     * @return The count.
+     * @throws IOException If the stream cannot be read or the count is negative.
+     */
+    private static int readCount(DataInputStream data) throws IOException
+    {
+        int count = data.readInt();
+
+        if (count < 0)
+        {
+            throw new IOException("Invalid count " + count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes a rectangle as four integers.
+     *
+     * @param data The stream to write to.
+     * @param rect The rectangle.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void writeRect(DataOutputStream data, Rect rect) throws IOException
+    {
+        data.writeInt(rect.x);
+        data.writeInt(rect.y);
+        data.writeInt(rect.width);
+        data.writeInt(rect.height);
+    }
+
+    /**
+     * Reads a rectangle written by writeRect.
+     *
+     * @param data The stream to read from.
+     * @return The rectangle.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static Rect readRect(DataInputStream data) throws IOException
+    {
+        return new Rect(data.readInt(), data.readInt(), data.readInt(), data.readInt());
+    }
+}
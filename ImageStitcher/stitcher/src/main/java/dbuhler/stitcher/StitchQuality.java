@@ -0,0 +1,334 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * This class scores the registration of two images before they are composited. It checks the
+ * number and ratio of inliers, their reprojection error, the conditioning of the homography and
+ * the shape of the warped image, and reports the first check that failed. Since the checks only
+ * use the matched points and the homography, a pair of images that does not overlap is rejected
+ * before any memory for warping is allocated.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class StitchQuality
+{
+    /**
+     * The reasons for rejecting a registration.
+     */
+    public enum Failure
+    {
+        NO_HOMOGRAPHY, TOO_FEW_INLIERS, LOW_INLIER_RATIO, HIGH_REPROJECTION_ERROR,
+        ILL_CONDITIONED, INVALID_CORNERS, NO_OVERLAP, CANVAS_TOO_LARGE
+    }
+
+    // The factor the reprojection error limit exceeds t / sqrt(2) by, see MIN_RMSE_RATIO.
+    public static final double DEFAULT_RMSE_FACTOR = 1.2;
+
+    private static final int    MIN_INLIERS      = 12;
+    private static final double MIN_INLIER_RATIO = 0.15;
+    private static final double MAX_CONDITION    = 1000.0;
+    private static final double MIN_AREA_RATIO   = 0.25;
+    private static final double MAX_AREA_RATIO   = 4.0;
+    private static final double MAX_EXTENT       = 3.0;
+
+    // The inliers of a RANSAC fit have residuals of at most the RANSAC threshold t, so their RMSE
+    // is below t. Residuals spread uniformly over the disc of radius t have an RMSE of t / sqrt(2),
+    // but corners at whole pixels with half a pixel of localization noise reach about 0.73 t
+    // against a refined model. Hence t / sqrt(2) is only the lower bound of the limit, which is
+    // raised by a factor of at least 1; an RMSE close to t means the model only grazes the inliers.
+    private static final double MIN_RMSE_RATIO = Math.sqrt(0.5);
+
+    private int     inlierCount;
+    private double  inlierRatio;
+    private double  rmse;
+    private double  condition;
+    private Failure failure;
+
+    /**
+     * Scores the given homography that maps the right image onto the left image.
+     *
+     * @param homography The homography to score, which may be empty.
+     * @param pointsL    The matched points in the left image.
+     * @param pointsR    The matched points in the right image.
+     * @param mask       The mask of inliers among the matches.
+     * @param threshold  The RANSAC threshold the inliers were selected with.
+     * @param rmseFactor The factor of at least 1 by which the limit of the reprojection error of
+     *                   the inliers exceeds threshold / sqrt(2), e.g. DEFAULT_RMSE_FACTOR.
+     * @param imageL     The left image.
+     * @param imageR     The right image.
+     */
+    public StitchQuality(Mat homography, MatOfPoint2f pointsL, MatOfPoint2f pointsR,
+                         MatOfByte mask, double threshold, double rmseFactor, Mat imageL,
+                         Mat imageR)
+    {
+        int n = (int) pointsL.total();
+
+        if (homography.empty())
+        {
+            failure = Failure.NO_HOMOGRAPHY;
+            return;
+        }
+
+        double[] h = new double[9];
+        homography.get(0, 0, h);
+
+        byte[]  inliers = mask.empty() ? new byte[0] : mask.toArray();
+        float[] l       = new float[2 * n];
+        float[] r       = new float[2 * n];
+
+        if (n > 0)
+        {
+            pointsL.get(0, 0, l);
+            pointsR.get(0, 0, r);
+        }
+
+        // Measure the reprojection error of the inliers.
+        double sum = 0;
+
+        for (int i = 0; i < inliers.length; ++i)
+        {
+            if (inliers[i] == 1)
+            {
+                double x = r[2 * i];
+                double y = r[2 * i + 1];
+                double w = h[6] * x + h[7] * y + h[8];
+                double u = (h[0] * x + h[1] * y + h[2]) / w - l[2 * i];
+                double v = (h[3] * x + h[4] * y + h[5]) / w - l[2 * i + 1];
+                sum += u * u + v * v;
+                ++inlierCount;
+            }
+        }
+
+        inlierRatio = n > 0 ? 1.0 * inlierCount / n : 0;
+        rmse        = inlierCount > 0 ? Math.sqrt(sum / inlierCount) : 0;
+        condition   = findCondition(h, imageL, imageR);
+
+        if (inlierCount < MIN_INLIERS)
+        {
+            failure = Failure.TOO_FEW_INLIERS;
+        }
+        else if (inlierRatio < MIN_INLIER_RATIO)
+        {
+            failure = Failure.LOW_INLIER_RATIO;
+        }
+        else if (rmse > Math.max(1.0, rmseFactor) * MIN_RMSE_RATIO * threshold)
+        {
+            failure = Failure.HIGH_REPROJECTION_ERROR;
+        }
+        else if (condition > MAX_CONDITION)
+        {
+            failure = Failure.ILL_CONDITIONED;
+        }
+        else
+        {
+            failure = checkCorners(h, imageL, imageR);
+        }
+    }
+
+    /**
+     * Restores the scores of a registration that passed all checks, e.g. from a StitchProject.
+     *
+     * @param inlierCount The number of inliers.
+     * @param inlierRatio The inlier ratio.
+     * @param rmse        The reprojection error of the inliers.
+     * @param condition   The condition number of the homography.
+     */
+    public StitchQuality(int inlierCount, double inlierRatio, double rmse, double condition)
+    {
+        this.inlierCount = inlierCount;
+        this.inlierRatio = inlierRatio;
+        this.rmse        = rmse;
+        this.condition   = condition;
+    }
+
+    /**
+     * Returns whether the registration passed all checks.
+     *
+     * @return True if the images can be composited, false otherwise.
+     */
+    public boolean isAcceptable()
+    {
+        return failure == null;
+    }
+
+    /**
+     * Returns the reason for rejecting the registration.
+     *
+     * @return The failed check, or null if all checks passed.
+     */
+    public Failure getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Returns the number of matches consistent with the homography.
+     *
+     * @return The number of inliers.
+     */
+    public int getInlierCount()
+    {
+        return inlierCount;
+    }
+
+    /**
+     * Returns the fraction of matches consistent with the homography.
+     *
+     * @return The inlier ratio between 0 and 1.
+     */
+    public double getInlierRatio()
+    {
+        return inlierRatio;
+    }
+
+    /**
+     * Returns the root mean square reprojection error of the inliers.
+     *
+     * @return The reprojection error in pixels.
+     */
+    public double getReprojectionError()
+    {
+        return rmse;
+    }
+
+    /**
+     * Returns the condition number of the homography in normalized image coordinates.
+     *
+     * @return The condition number.
+     */
+    public double getCondition()
+    {
+        return condition;
+    }
+
+    /**
+     * Returns a short summary of the scores.
+     *
+     * @return The scores as a string.
+     */
+    @Override
+    public String toString()
+    {
+        return "inliers: " + inlierCount
+                + ", ratio: " + inlierRatio
+                + ", rmse: " + rmse
+                + ", condition: " + condition
+                + ", failure: " + failure;
+    }
+
+    /**
+     * Computes the condition number of the homography after mapping both images to the unit
+     * square, so that translations within the canvas do not count as ill-conditioning.
+     *
+     * @param h      The homography in row-major order.
+     * @param imageL The left image.
+     * @param imageR The right image.
+     * @return The ratio of the largest to the smallest singular value.
+     */
+    private static double findCondition(double[] h, Mat imageL, Mat imageR)
+    {
+        double sl = Math.max(imageL.cols(), imageL.rows());
+        double sr = Math.max(imageR.cols(), imageR.rows());
+
+        // Normalized homography: scale(1 / sl) * h * scale(sr).
+        Mat normalized = new Mat(3, 3, CvType.CV_64F);
+        normalized.put(0, 0,
+                       h[0] * sr / sl, h[1] * sr / sl, h[2] / sl,
+                       h[3] * sr / sl, h[4] * sr / sl, h[5] / sl,
+                       h[6] * sr,      h[7] * sr,      h[8]);
+
+        Mat w = new Mat();
+        Mat u = new Mat();
+        Mat vt = new Mat();
+        Core.SVDecomp(normalized, w, u, vt);
+
+        double[] s = new double[3];
+        w.get(0, 0, s);
+
+        return s[2] > 0 ? s[0] / s[2] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Checks the corners of the right image after warping. They must lie in front of the camera
+     * and form a convex quadrilateral whose area is comparable to the original image, which must
+     * overlap the left image and must not stretch the canvas beyond MAX_EXTENT times its size.
+     *
+     * @param h      The homography in row-major order.
+     * @param imageL The left image.
+     * @param imageR The right image.
+     * @return The failed check, or null if the corners are sane.
+     */
+    private static Failure checkCorners(double[] h, Mat imageL, Mat imageR)
+    {
+        double[] xs = { 0, imageR.cols(), imageR.cols(), 0 };
+        double[] ys = { 0, 0, imageR.rows(), imageR.rows() };
+        double[] us = new double[4];
+        double[] vs = new double[4];
+
+        double minU = Double.MAX_VALUE;
+        double minV = Double.MAX_VALUE;
+        double maxU = -Double.MAX_VALUE;
+        double maxV = -Double.MAX_VALUE;
+
+        for (int i = 0; i < 4; ++i)
+        {
+            double w = h[6] * xs[i] + h[7] * ys[i] + h[8];
+
+            if (w <= 0)
+            {
+                return Failure.INVALID_CORNERS;
+            }
+
+            us[i] = (h[0] * xs[i] + h[1] * ys[i] + h[2]) / w;
+            vs[i] = (h[3] * xs[i] + h[4] * ys[i] + h[5]) / w;
+            minU  = Math.min(minU, us[i]);
+            minV  = Math.min(minV, vs[i]);
+            maxU  = Math.max(maxU, us[i]);
+            maxV  = Math.max(maxV, vs[i]);
+        }
+
+        double area = 0;
+
+        for (int i = 0; i < 4; ++i)
+        {
+            int j = (i + 1) % 4;
+            int k = (i + 2) % 4;
+
+            if ((us[j] - us[i]) * (vs[k] - vs[j]) - (vs[j] - vs[i]) * (us[k] - us[j]) <= 0)
+            {
+                return Failure.INVALID_CORNERS;
+            }
+
+            area += us[i] * vs[j] - us[j] * vs[i];
+        }
+
+        double areaRatio = 0.5 * area / (imageR.cols() * imageR.rows());
+
+        if (areaRatio < MIN_AREA_RATIO || areaRatio > MAX_AREA_RATIO)
+        {
+            return Failure.INVALID_CORNERS;
+        }
+
+        if (maxU <= 0 || maxV <= 0 || minU >= imageL.cols() || minV >= imageL.rows())
+        {
+            return Failure.NO_OVERLAP;
+        }
+
+        double width  = Math.max(maxU, imageL.cols()) - Math.min(minU, 0);
+        double height = Math.max(maxV, imageL.rows()) - Math.min(minV, 0);
+
+        if (width  > MAX_EXTENT * (imageL.cols() + imageR.cols())
+                || height > MAX_EXTENT * Math.max(imageL.rows(), imageR.rows()))
+        {
+            return Failure.CANVAS_TOO_LARGE;
+        }
+
+        return null;
+    }
+}
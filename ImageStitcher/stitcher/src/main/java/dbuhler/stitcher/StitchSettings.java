@@ -0,0 +1,347 @@
+package dbuhler.stitcher;
+
+/**
+ * This class holds the options of the image stitcher. A new instance holds the default options.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class StitchSettings
+{
+    /**
+     * The surfaces the images can be projected onto before they are registered.
+     */
+    public enum Projection
+    {
+        /** The images are registered on their own image planes. */
+        PLANE,
+        /** The images are projected onto a cylinder, see CylindricalWarper. */
+        CYLINDRICAL,
+        /** The images are projected onto a sphere, see SphericalWarper. */
+        SPHERICAL
+    }
+
+    /**
+     * The ways of combining the images where they overlap.
+     */
+    public enum BlendMode
+    {
+        /** The image in front is drawn over the other one. */
+        OVERWRITE,
+        /** Each image is weighted by its distance to its own border. */
+        FEATHER,
+        /** The overlap is blended with Laplacian pyramids. */
+        MULTI_BAND
+    }
+
+    private MotionModel.Type motionModel;
+    private double           focalLength;
+    private ExifData         exifLeft         = new ExifData();
+    private ExifData         exifRight        = new ExifData();
+    private Projection       projection       = Projection.PLANE;
+    private boolean          autoCrop         = true;
+    private boolean          seamFinding      = true;
+    private boolean          gainCompensation = true;
+    private BlendMode        blendMode        = BlendMode.FEATHER;
+    private int              blendBands       = MultiBandBlender.DEFAULT_BANDS;
+    private double           rmseFactor       = StitchQuality.DEFAULT_RMSE_FACTOR;
+    private RigCalibration   rig;
+    private FeatureCache     featureCache;
+    private BitmapConverter  converter        = new BitmapConverter();
+
+    /**
+     * Returns the motion model to fit between the images.
+     *
+     * @return The motion model type, or null if the model is selected automatically.
+     */
+    public MotionModel.Type getMotionModel()
+    {
+        return motionModel;
+    }
+
+    /**
+     * Sets the motion model to fit between the images. By default, the simplest model that
+     * explains the matches is selected automatically.
+     *
+     * @param motionModel The motion model type, or null to select the model automatically.
+     */
+    public void setMotionModel(MotionModel.Type motionModel)
+    {
+        this.motionModel = motionModel;
+    }
+
+    /**
+     * Returns the focal length of the camera at the working resolution.
+     *
+     * @return The focal length in pixels, or 0 if it is unknown.
+     */
+    public double getFocalLength()
+    {
+        return focalLength;
+    }
+
+    /**
+     * Sets the focal length of the camera at the working resolution. If it is unknown, the focal
+     * length from the EXIF data of the left image is used, if any. The rotation-only motion model
+     * and the cylindrical and spherical projections need the focal length.
+     *
+     * @param focalLength The focal length in pixels, or 0 if it is unknown.
+     */
+    public void setFocalLength(double focalLength)
+    {
+        this.focalLength = focalLength;
+    }
+
+    /**
+     * Returns the EXIF data of the left image.
+     *
+     * @return The EXIF data.
+     */
+    public ExifData getExifLeft()
+    {
+        return exifLeft;
+    }
+
+    /**
+     * Returns the EXIF data of the right image.
+     *
+     * @return The EXIF data.
+     */
+    public ExifData getExifRight()
+    {
+        return exifRight;
+    }
+
+    /**
+     * Sets the EXIF data of the images, which tells how to turn them upright and may provide the
+     * focal length. By default, the images are taken as upright with unknown focal length.
+     *
+     * @param exifLeft  The EXIF data of the left image.
+     * @param exifRight The EXIF data of the right image.
+     */
+    public void setExif(ExifData exifLeft, ExifData exifRight)
+    {
+        this.exifLeft  = exifLeft;
+        this.exifRight = exifRight;
+    }
+
+    /**
+     * Returns the surface the images are projected onto.
+     *
+     * @return The projection.
+     */
+    public Projection getProjection()
+    {
+        return projection;
+    }
+
+    /**
+     * Sets the surface the images are projected onto before they are registered. Cylindrical and
+     * spherical projections keep wide panoramas from stretching, but need the focal length and
+     * are ignored while it is unknown. PLANE by default.
+     *
+     * @param projection The projection.
+     */
+    public void setProjection(Projection projection)
+    {
+        this.projection = projection;
+    }
+
+    /**
+     * Returns whether the result is cropped to the largest rectangle covered by the images.
+     *
+     * @return True if auto-cropping is enabled, false otherwise.
+     */
+    public boolean isAutoCrop()
+    {
+        return autoCrop;
+    }
+
+    /**
+     * Sets whether the result is cropped to the largest rectangle covered by the images. If
+     * disabled, the parts of the canvas not covered by any image are transparent black. Enabled
+     * by default.
+     *
+     * @param autoCrop True to enable auto-cropping, false to disable it.
+     */
+    public void setAutoCrop(boolean autoCrop)
+    {
+        this.autoCrop = autoCrop;
+    }
+
+    /**
+     * Returns whether an optimal seam is searched in the overlap of the images.
+     *
+     * @return True if seam finding is enabled, false otherwise.
+     */
+    public boolean isSeamFinding()
+    {
+        return seamFinding;
+    }
+
+    /**
+     * Sets whether an optimal seam is searched in the overlap of the images. If disabled, the
+     * left image is simply drawn over the right image. Enabled by default.
+     *
+     * @param seamFinding True to enable seam finding, false to disable it.
+     */
+    public void setSeamFinding(boolean seamFinding)
+    {
+        this.seamFinding = seamFinding;
+    }
+
+    /**
+     * Returns whether exposure differences between the images are compensated.
+     *
+     * @return True if gain compensation is enabled, false otherwise.
+     */
+    public boolean isGainCompensation()
+    {
+        return gainCompensation;
+    }
+
+    /**
+     * Sets whether exposure differences between the images are compensated by estimating a gain
+     * per image from their overlap. Enabled by default.
+     *
+     * @param gainCompensation True to enable gain compensation, false to disable it.
+     */
+    public void setGainCompensation(boolean gainCompensation)
+    {
+        this.gainCompensation = gainCompensation;
+    }
+
+    /**
+     * Returns how the images are combined where they overlap.
+     *
+     * @return The blend mode.
+     */
+    public BlendMode getBlendMode()
+    {
+        return blendMode;
+    }
+
+    /**
+     * Sets how the images are combined where they overlap. Blending only touches the overlap,
+     * after the seam has decided which image is drawn where. FEATHER by default.
+     *
+     * @param blendMode The blend mode.
+     */
+    public void setBlendMode(BlendMode blendMode)
+    {
+        this.blendMode = blendMode;
+    }
+
+    /**
+     * Returns the number of frequency bands used by the multi-band blender.
+     *
+     * @return The number of bands.
+     */
+    public int getBlendBands()
+    {
+        return blendBands;
+    }
+
+    /**
+     * Sets the number of frequency bands used by the multi-band blender. More bands blend low
+     * frequencies over wider transitions but need a wider border around the overlap, which
+     * doubles with every band; hence at most MultiBandBlender.MAX_BANDS bands are used. The
+     * blender uses fewer bands where the overlap is too small for them.
+     *
+     * @param blendBands The number of bands, from 1 to MultiBandBlender.MAX_BANDS.
+     */
+    public void setBlendBands(int blendBands)
+    {
+        this.blendBands = Math.max(1, Math.min(MultiBandBlender.MAX_BANDS, blendBands));
+    }
+
+    /**
+     * Returns the factor by which the limit of the reprojection error of the inliers exceeds the
+     * RANSAC threshold divided by sqrt(2).
+     *
+     * @return The factor.
+     */
+    public double getRmseFactor()
+    {
+        return rmseFactor;
+    }
+
+    /**
+     * Sets the factor by which the limit of the reprojection error of the inliers exceeds the
+     * RANSAC threshold divided by sqrt(2), see StitchQuality. Features that are located less
+     * precisely need a larger factor; the limit reaches the threshold itself at sqrt(2), where the
+     * check never fails. StitchQuality.DEFAULT_RMSE_FACTOR by default.
+     *
+     * @param rmseFactor The factor, at least 1.
+     */
+    public void setRmseFactor(double rmseFactor)
+    {
+        this.rmseFactor = Math.max(1.0, rmseFactor);
+    }
+
+    /**
+     * Returns the calibration of the camera rig used in rig mode.
+     *
+     * @return The rig calibration, or null if rig mode is disabled.
+     */
+    public RigCalibration getRig()
+    {
+        return rig;
+    }
+
+    /**
+     * Enables rig mode for a camera rig that shoots the same two views again and again. While the
+     * rig is calibrated and has not moved, the stored registration is reused; otherwise the images
+     * are registered as usual and the rig is calibrated with the result. The same calibration
+     * object should be kept across stitches.
+     *
+     * @param rig The rig calibration, or null to disable rig mode.
+     */
+    public void setRig(RigCalibration rig)
+    {
+        this.rig = rig;
+    }
+
+    /**
+     * Returns the cache of detected features.
+     *
+     * @return The feature cache, or null if features are always detected.
+     */
+    public FeatureCache getFeatureCache()
+    {
+        return featureCache;
+    }
+
+    /**
+     * Sets the cache of detected features, which lets images that are stitched again skip the
+     * feature detection. The same cache should be kept across stitches. Disabled by default.
+     *
+     * @param featureCache The feature cache, or null to always detect features.
+     */
+    public void setFeatureCache(FeatureCache featureCache)
+    {
+        this.featureCache = featureCache;
+    }
+
+    /**
+     * Returns the converter between bitmaps and matrices.
+     *
+     * @return The converter.
+     */
+    public BitmapConverter getConverter()
+    {
+        return converter;
+    }
+
+    /**
+     * Sets the converter between bitmaps and matrices, whose pools let stitches reuse the buffers
+     * of earlier ones. The same converter should be kept across stitches. By default, every
+     * settings object has its own converter.
+     *
+     * @param converter The converter.
+     */
+    public void setConverter(BitmapConverter converter)
+    {
+        this.converter = converter;
+    }
+}
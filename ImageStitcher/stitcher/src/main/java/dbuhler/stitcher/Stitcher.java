@@ -1,9 +1,10 @@
 package dbuhler.stitcher;
 
 import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.util.Log;
 
 import org.opencv.android.Utils;
-import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -12,19 +13,21 @@ import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatTracker;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.features2d.DMatch;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 import org.opencv.features2d.Features2d;
-import org.opencv.features2d.KeyPoint;
-import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -35,45 +38,114 @@ import java.util.List;
  */
 public final class Stitcher
 {
-    public static final int NUM_STEPS = 5;
+    public static final int NUM_STEPS     = 5;
+    public static final int MAX_DIMENSION = 1024;
+
+    private static final String TAG = "Stitcher";
 
     private static final int    DETECTOR_TYPE    = FeatureDetector.GFTT;
     private static final int    EXTRACTOR_TYPE   = DescriptorExtractor.FREAK;
     private static final int    MATCHER_TYPE     = DescriptorMatcher.BRUTEFORCE;
-    private static final int    MAX_DIMENSION    = 1024;
     private static final double MATCH_THRESHOLD  = 3.0;
     private static final double RANSAC_THRESHOLD = 1.0;
+
+    // The descriptor buffers have a row for each of the at most 1000 corners GFTT detects by
+    // default, and a FREAK descriptor has 512 bits.
+    private static final int MAX_FEATURES    = 1000;
+    private static final int DESCRIPTOR_SIZE = 64;
+
+    // FREAK drops key points of the size GFTT reports within 23 pixels of the image border.
+    private static final int FREAK_BORDER = 24;
+
+    // The largest difference in working pixels between the height of a source scaled to the
+    // working width and the working height, allowing for the rounding of the working size.
+    private static final double MAX_SOURCE_ERROR = 2.0;
     private static final Scalar COLOR_MATCH      = new Scalar(255, 0, 0, 255);
 
-    private Bitmap   bitmapL;
-    private Bitmap   bitmapR;
-    private Bitmap[] steps;
+    private Bitmap         bitmapL;
+    private Bitmap         bitmapR;
+    private Bitmap[]       steps;
+    private StitchSettings settings;
+    private StitchQuality  quality;
+    private double[]       registration;
+    private int[]          workingSize;
+    private boolean        projected;
+    private double         focalLength;
+    private float[]        inliers;
+    private Rect           cropRect;
+    private double[]       gains;
+    private Seam           seam;
 
     private FeatureDetector     featureDetector;
     private DescriptorExtractor descriptorExtractor;
     private DescriptorMatcher   descriptorMatcher;
+    private MotionEstimator     motionEstimator;
+    private MatPool             matPool;
 
     /**
-     * Initializes and runs the image stitcher for the two given bitmaps.
+     * Initializes and runs the image stitcher for the two given bitmaps using the default
+     * settings.
      *
      * @param bitmapL The left image to stitch.
      * @param bitmapR The right image to stitch.
      */
     public Stitcher(Bitmap bitmapL, Bitmap bitmapR)
     {
-        this.bitmapL = bitmapL;
-        this.bitmapR = bitmapR;
+        this(bitmapL, bitmapR, new StitchSettings());
+    }
+
+    /**
+     * Initializes and runs the image stitcher for the two given bitmaps.
+     *
+     * @param bitmapL  The left image to stitch.
+     * @param bitmapR  The right image to stitch.
+     * @param settings The options for stitching.
+     */
+    public Stitcher(Bitmap bitmapL, Bitmap bitmapR, StitchSettings settings)
+    {
+        this.bitmapL  = bitmapL;
+        this.bitmapR  = bitmapR;
+        this.settings = settings;
+        matPool       = settings.getConverter().getMatPool();
         steps = new Bitmap[NUM_STEPS];
         featureDetector = FeatureDetector.create(DETECTOR_TYPE);
         descriptorExtractor = DescriptorExtractor.create(EXTRACTOR_TYPE);
         descriptorMatcher = DescriptorMatcher.create(MATCHER_TYPE);
+        motionEstimator = new MotionEstimator(RANSAC_THRESHOLD);
 
         run();
     }
 
+    /**
+     * Restores the image stitcher from the given project without registering the images again.
+     * No steps are available; the images are composited with render or export, using the
+     * blender and size given then and the crop rectangle, gains and seam of the project unless
+     * they are disabled in the settings.
+     *
+     * @param project  The project to restore.
+     * @param settings The options for compositing.
+     */
+    public Stitcher(StitchProject project, StitchSettings settings)
+    {
+        this.settings = settings;
+        matPool       = settings.getConverter().getMatPool();
+        steps         = new Bitmap[NUM_STEPS];
+        workingSize   = project.workingSize.clone();
+        projected     = project.projection != StitchSettings.Projection.PLANE;
+        focalLength   = project.focalLength;
+        registration  = project.homography.clone();
+        inliers       = project.inliers;
+        cropRect      = project.crop;
+        gains         = project.gains;
+        seam          = project.seam;
+        quality       = new StitchQuality(project.inlierCount, project.inlierRatio,
+                                          project.rmse, project.condition);
+    }
+
     /**
      * Returns the image from the i-th step of the stitching process as a bitmap. The final image
-     * is retrieved for i = NUM_STEPS - 1.
+     * is retrieved for i = NUM_STEPS - 1, which is null if the registration failed the quality
+     * checks. In rig mode, the registration steps are null if the stored registration was reused.
      *
      * @param i The step number between 0 and NUM_STEPS - 1.
      * @return The image from the i-th step.
@@ -83,84 +155,422 @@ public final class Stitcher
         return steps[i];
     }
 
+    /**
+     * Returns the bitmaps of the steps to the pool of the converter, so that the next stitch can
+     * reuse them. The bitmaps must not be used afterwards.
+     */
+    public void release()
+    {
+        for (int i = 0; i < steps.length; ++i)
+        {
+            settings.getConverter().recycle(steps[i]);
+            steps[i] = null;
+        }
+    }
+
+    /**
+     * Returns the reason why the images could not be stitched.
+     *
+     * @return The failed quality check, or null if the images were stitched.
+     */
+    public StitchQuality.Failure getFailure()
+    {
+        return quality.getFailure();
+    }
+
+    /**
+     * Returns the quality scores of the registration of the two images.
+     *
+     * @return The quality scores.
+     */
+    public StitchQuality getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * Renders the stitched images again from the given sources like render and writes the result
+     * as a Deep Zoom tile pyramid, see TilePyramidSink. The pyramid is built while the canvas is
+     * rendered, so neither the panorama nor any of its levels ever exists in memory as a whole.
+     *
+     * @param sourceL   The left image.
+     * @param sourceR   The right image.
+     * @param encoder   The encoder of the tiles, e.g. a JpegEncoder.
+     * @param directory The directory to write the manifest and the tiles to.
+     * @param name      The name of the pyramid.
+     * @throws IOException If the pyramid could not be written.
+     * @throws IllegalStateException If the images were not stitched or were projected.
+     * @throws IllegalArgumentException If the aspect ratio of a source does not match the image.
+     */
+    public void exportPyramid(ImageSource sourceL, ImageSource sourceR, ImageEncoder encoder,
+                              File directory, String name) throws IOException
+    {
+        TiledCompositor compositor = createCompositor(sourceL, sourceR);
+        TilePyramidSink sink = new TilePyramidSink(directory, name, encoder,
+                                                   compositor.getWidth(), compositor.getHeight());
+
+        try
+        {
+            compositor.render(sink);
+        }
+        finally
+        {
+            sink.finish();
+        }
+    }
+
+    /**
+     * Returns a project holding the registration of the images and the crop rectangle, gains and
+     * seam found while compositing them, so that they can be composited again later without
+     * registering them, see Stitcher(StitchProject, StitchSettings). The inputs of the project
+     * are set by the caller.
+     *
+     * @return The project, or null if the images were not stitched.
+     */
+    public StitchProject getProject()
+    {
+        if (registration == null)
+        {
+            return null;
+        }
+
+        StitchProject project = new StitchProject();
+        project.workingSize = workingSize.clone();
+        project.projection  = projected ? settings.getProjection()
+                                        : StitchSettings.Projection.PLANE;
+        project.focalLength = focalLength;
+        project.homography  = registration.clone();
+        project.inlierCount = quality.getInlierCount();
+        project.inlierRatio = quality.getInlierRatio();
+        project.rmse        = quality.getReprojectionError();
+        project.condition   = quality.getCondition();
+        project.inliers     = inliers == null ? new float[0] : inliers;
+        project.crop        = cropRect;
+        project.gains       = gains;
+        project.seam        = seam;
+
+        return project;
+    }
+
+    /**
+     * Renders the stitched images again from the given sources, typically at full resolution,
+     * and passes the tiles to the given sink. The registration found at the working resolution
+     * is scaled to the resolution of the sources, so the sources must show the same upright
+     * images as the bitmaps, e.g. as a RegionDecoderSource of the original files opened with
+     * their EXIF data.
+     *
+     * @param sourceL The left image.
+     * @param sourceR The right image.
+     * @param sink    The receiver of the finished tiles.
+     * @throws IllegalStateException If the images were not stitched or were projected.
+     * @throws IllegalArgumentException If the aspect ratio of a source does not match the image.
+     */
+    public void render(ImageSource sourceL, ImageSource sourceR, TiledCompositor.TileSink sink)
+    {
+        createCompositor(sourceL, sourceR).render(sink);
+    }
+
+    /**
+     * Renders the stitched images again from the given sources like render and writes the result
+     * to the given stream with the given encoder. The image is encoded band by band while later
+     * bands are rendered, so the whole panorama never exists in memory. To save it to the media
+     * store, pass the stream opened by ContentResolver.openOutputStream for the URI of the entry.
+     *
+     * @param sourceL The left image.
+     * @param sourceR The right image.
+     * @param encoder The encoder of the image, e.g. a JpegEncoder or a PngEncoder.
+     * @param output  The stream to write the image to; it is not closed.
+     * @throws IOException If the image could not be written.
+     * @throws IllegalStateException If the images were not stitched or were projected.
+     * @throws IllegalArgumentException If the aspect ratio of a source does not match the image.
+     */
+    public void export(ImageSource sourceL, ImageSource sourceR, ImageEncoder encoder,
+                       OutputStream output) throws IOException
+    {
+        TiledCompositor compositor = createCompositor(sourceL, sourceR);
+        ExportSink sink = new ExportSink(encoder, output,
+                                         compositor.getWidth(), compositor.getHeight());
+
+        try
+        {
+            compositor.render(sink);
+        }
+        finally
+        {
+            sink.finish();
+        }
+    }
+
     /**
      * Performs the stitching and creates NUM_STEPS bitmaps showing the intermediate steps as well
-     * as the end result.
+     * as the end result. The images are only merged if the registration passes the quality
+     * checks.
      */
     private void run()
     {
-        // Create colour and greyscale image matrices.
-        Mat colorImageL = createMatrix(bitmapL);
-        Mat colorImageR = createMatrix(bitmapR);
-        Mat grayImageL  = new Mat();
-        Mat grayImageR  = new Mat();
-        Imgproc.cvtColor(colorImageL, grayImageL, Imgproc.COLOR_RGB2GRAY);
-        Imgproc.cvtColor(colorImageR, grayImageR, Imgproc.COLOR_RGB2GRAY);
+        int allocations = matPool.getAllocationCount();
+        MatTracker.beginStage("register");
 
-        // Image for Step 1: Original Images.
-        steps[0] = createBitmap(mergeMatrices(colorImageL, colorImageR));
+        // Extract the luminance for the registration; colour is only loaded for compositing.
+        Mat grayImageL = LumaExtractor.extract(bitmapL, settings.getExifLeft(), MAX_DIMENSION,
+                                               matPool);
+        Mat grayImageR = LumaExtractor.extract(bitmapR, settings.getExifRight(), MAX_DIMENSION,
+                                               matPool);
+        Mat validL     = null;
+        Mat validR     = null;
+
+        // Fall back to the focal length from the EXIF data of the left image.
+        focalLength = settings.getFocalLength();
+
+        if (focalLength <= 0)
+        {
+            focalLength = settings.getExifLeft().getFocalLength(grayImageL.cols(),
+                                                                grayImageL.rows());
+        }
+
+        // Project the images onto the selected surface.
+        Warper warper = createWarper();
+
+        projected   = warper != null;
+        workingSize = new int[] {
+                grayImageL.cols(), grayImageL.rows(), grayImageR.cols(), grayImageR.rows() };
+
+        if (warper != null)
+        {
+            grayImageL = warpImage(warper, grayImageL);
+            grayImageR = warpImage(warper, grayImageR);
+            validL = matPool.lease(grayImageL.rows(), grayImageL.cols(), CvType.CV_8UC1);
+            validR = matPool.lease(grayImageR.rows(), grayImageR.cols(), CvType.CV_8UC1);
+            warper.getMask(grayImageL.cols(), grayImageL.rows(), validL);
+            warper.getMask(grayImageR.cols(), grayImageR.rows(), validR);
+        }
+
+        register(grayImageL, grayImageR, validL, validR, warper);
+
+        // The grey images and masks are only needed for the registration.
+        matPool.recycle(grayImageL);
+        matPool.recycle(grayImageR);
+        matPool.recycle(validL);
+        matPool.recycle(validR);
+
+        MatTracker.beginStage("composite");
+        composite(warper);
+
+        if (BuildConfig.DEBUG)
+        {
+            // Once the pool is warmed up, another stitch of the same size allocates nothing.
+            Log.d(TAG, "Pool misses " + (matPool.getAllocationCount() - allocations));
+        }
+
+        if (MatTracker.isEnabled())
+        {
+            Log.d(TAG, "Native memory " + MatTracker.report(5));
+        }
+    }
+
+    /**
+     * Registers the given grey images and stores the registration if it passes the quality
+     * checks. In rig mode, the registration of the calibrated rig is reused unless it has moved.
+     *
+     * @param grayImageL The left grey image.
+     * @param grayImageR The right grey image.
+     * @param validL     The mask of the valid part of the warped left image, or null.
+     * @param validR     The mask of the valid part of the warped right image, or null.
+     * @param warper     The warper the images were projected with, or null.
+     */
+    private void register(Mat grayImageL, Mat grayImageR, Mat validL, Mat validR, Warper warper)
+    {
+        // Skip the registration if the calibrated rig has not moved.
+        RigCalibration rig = settings.getRig();
+
+        if (rig != null && !rig.hasDrifted(grayImageL, grayImageR))
+        {
+            if (BuildConfig.DEBUG)
+            {
+                Log.d(TAG, "Rig unchanged");
+            }
+
+            quality      = rig.getQuality();
+            registration = rig.getHomography();
+            return;
+        }
 
-        // Detect features and extract the feature descriptors.
-        Mat           descriptorsL = new Mat();
-        Mat           descriptorsR = new Mat();
-        MatOfKeyPoint keyPointsL   = detectFeatures(grayImageL, descriptorsL, 0.5, 1.0);
-        MatOfKeyPoint keyPointsR   = detectFeatures(grayImageR, descriptorsR, 0.0, 0.5);
+        // Detect features and extract the feature descriptors into pooled buffers.
+        Mat           bufferL    = matPool.lease(MAX_FEATURES, DESCRIPTOR_SIZE, CvType.CV_8U);
+        Mat           bufferR    = matPool.lease(MAX_FEATURES, DESCRIPTOR_SIZE, CvType.CV_8U);
+        MatOfKeyPoint keyPointsL = detectFeatures(grayImageL, bufferL, 0.5, 1.0, validL);
+        MatOfKeyPoint keyPointsR = detectFeatures(grayImageR, bufferR, 0.0, 0.5, validR);
 
         // Image for Step 2: Feature Detection.
         steps[1] = drawFeatures(grayImageL, grayImageR, keyPointsL, keyPointsR);
 
         // Find matches between the detected features.
-        MatOfDMatch matches = matchFeatures(descriptorsL, descriptorsR);
+        Mat         descriptorsL = bufferL.rowRange(0, keyPointsL.rows());
+        Mat         descriptorsR = bufferR.rowRange(0, keyPointsR.rows());
+        MatOfDMatch matches      = matchFeatures(descriptorsL, descriptorsR);
+        descriptorsL.release();
+        descriptorsR.release();
+        matPool.recycle(bufferL);
+        matPool.recycle(bufferR);
 
         // Image for Step 3: Feature Matching.
         steps[2] = drawMatches(grayImageL, grayImageR, keyPointsL, keyPointsR, matches);
 
         // Find homography and the matches used for it.
-        MatOfByte   matchMask   = new MatOfByte();
-        Mat         homography  = findHomography(keyPointsL, keyPointsR, matches, matchMask);
+        MatOfPoint2f matchedPointsL = new MatOfPoint2f();
+        MatOfPoint2f matchedPointsR = new MatOfPoint2f();
+        MatOfByte    matchMask      = new MatOfByte();
+        findMatchedPoints(keyPointsL, keyPointsR, matches, matchedPointsL, matchedPointsR);
+
+        Mat homography = findHomography(matchedPointsL, matchedPointsR, matchMask,
+                                        createMotionModels(grayImageL, grayImageR, warper));
         MatOfDMatch usedMatches = filterMatches(matches, matchMask);
+        inliers = collectInliers(matchedPointsL, matchedPointsR, matchMask);
 
         // Image for Step 4: Matches for Homography.
         steps[3] = drawMatches(grayImageL, grayImageR, keyPointsL, keyPointsR, usedMatches);
 
+        // Stop before compositing if the registration is not good enough.
+        quality = new StitchQuality(homography, matchedPointsL, matchedPointsR, matchMask,
+                                    RANSAC_THRESHOLD, settings.getRmseFactor(), grayImageL,
+                                    grayImageR);
+
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "Quality " + quality);
+        }
+
+        if (!quality.isAcceptable())
+        {
+            return;
+        }
+
+        if (rig != null)
+        {
+            rig.calibrate(Homography.fromMat(homography), quality, grayImageL, grayImageR);
+        }
+
+        registration = Homography.fromMat(homography);
+    }
+
+    /**
+     * Loads the colour images and creates the steps that show them, i.e. the original images
+     * and, if the images were registered, the stitched images.
+     *
+     * @param warper The warper used for the registration, or null.
+     */
+    private void composite(Warper warper)
+    {
+        Mat colorImageL = loadColor(bitmapL, settings.getExifLeft(), warper);
+        Mat colorImageR = loadColor(bitmapR, settings.getExifRight(), warper);
+
+        // Image for Step 1: Original Images.
+        steps[0] = createBitmap(mergeMatrices(colorImageL, colorImageR));
+
         // Image for Step 5: Stitched Images.
-        steps[4] = mergeImages(colorImageL, colorImageR, homography);
+        if (registration != null)
+        {
+            steps[4] = mergeImages(colorImageL, colorImageR);
+        }
+
+        matPool.recycle(colorImageL);
+        matPool.recycle(colorImageR);
     }
 
     /**
-     * Creates and returns a bitmap from a matrix.
+     * Creates and returns a bitmap from a matrix, which is returned to the pool afterwards.
      *
      * @param matrix The matrix defining the bitmap.
      * @return The image created from the matrix.
      */
     private Bitmap createBitmap(Mat matrix)
     {
-        Bitmap bitmap = Bitmap.createBitmap(matrix.cols(), matrix.rows(), Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(matrix, bitmap);
+        Bitmap bitmap = settings.getConverter().toBitmap(matrix);
+        matPool.recycle(matrix);
         return bitmap;
     }
 
     /**
      * Creates and returns a matrix from a bitmap. If the bitmap has a width or height greater than
-     * MAX_DIMENSION, the matrix will be resized accordingly.
+     * MAX_DIMENSION or the EXIF orientation says that it is not upright, the matrix is scaled down
+     * and turned upright in a single pass, see BitmapConverter, so that it lines up exactly with
+     * the luminance from LumaExtractor.
      *
      * @param bitmap The bitmap to get the matrix from.
+     * @param exif   The EXIF data of the bitmap.
      * @return The matrix defining the bitmap.
      */
-    private Mat createMatrix(Bitmap bitmap)
+    private Mat createMatrix(Bitmap bitmap, ExifData exif)
     {
-        Mat matrix = new Mat();
-        Utils.bitmapToMat(bitmap, matrix);
+        int[] size = LumaExtractor.getWorkingSize(bitmap.getWidth(), bitmap.getHeight(),
+                                                  MAX_DIMENSION);
+
+        if (size[0] == bitmap.getWidth() && size[1] == bitmap.getHeight()
+                && exif.getOrientation() == ExifInterface.ORIENTATION_NORMAL)
+        {
+            return settings.getConverter().toMat(bitmap);
+        }
 
-        // Determine scale factor for too large images.
-        double scale = 1.0 * MAX_DIMENSION / Math.max(matrix.rows(), matrix.cols());
+        return settings.getConverter().toMat(bitmap, size[0], size[1], exif);
+    }
 
-        if (scale < 1.0)
+    /**
+     * Loads the colour matrix of a bitmap for compositing, projected like the luminance used for
+     * the registration.
+     *
+     * @param bitmap The bitmap to get the matrix from.
+     * @param exif   The EXIF data of the bitmap.
+     * @param warper The warper used for the registration, or null.
+     * @return The colour matrix at the working resolution.
+     */
+    private Mat loadColor(Bitmap bitmap, ExifData exif, Warper warper)
+    {
+        Mat matrix = createMatrix(bitmap, exif);
+        return warper == null ? matrix : warpImage(warper, matrix);
+    }
+
+    /**
+     * Creates and returns the warper for the projection selected in the settings.
+     *
+     * @return The warper, or null if the images are not to be projected or the focal length is
+     *         unknown.
+     */
+    private Warper createWarper()
+    {
+        if (focalLength <= 0)
         {
-            Imgproc.resize(matrix, matrix, new Size(), scale, scale, Imgproc.INTER_LINEAR);
+            return null;
         }
 
-        return matrix;
+        switch (settings.getProjection())
+        {
+            case CYLINDRICAL:
+
+                return new CylindricalWarper(focalLength);
+
+            case SPHERICAL:
+
+                return new SphericalWarper(focalLength);
+
+            default:
+
+                return null;
+        }
+    }
+
+    /**
+     * Warps the given image with the given warper and returns the original image to the pool.
+     *
+     * @param warper The warper to use.
+     * @param image  The image to warp.
+     * @return The warped image.
+     */
+    private Mat warpImage(Warper warper, Mat image)
+    {
+        Mat warped = matPool.lease(image.rows(), image.cols(), image.type());
+        warper.warp(image, warped);
+        matPool.recycle(image);
+        return warped;
     }
 
     /**
@@ -172,7 +582,7 @@ public final class Stitcher
      */
     private Mat mergeMatrices(Mat matrixL, Mat matrixR)
     {
-        Mat mergedMatrix = new Mat(
+        Mat mergedMatrix = matPool.lease(
                 Math.max(matrixL.rows(), matrixR.rows()),
                 matrixL.cols() + matrixR.cols(), matrixL.type());
 
@@ -182,8 +592,12 @@ public final class Stitcher
         Rect subRectL = new Rect(0,              0, matrixL.cols(), matrixL.rows());
         Rect subRectR = new Rect(matrixL.cols(), 0, matrixR.cols(), matrixR.rows());
 
-        matrixL.copyTo(new Mat(mergedMatrix, subRectL));
-        matrixR.copyTo(new Mat(mergedMatrix, subRectR));
+        Mat subMatrixL = new Mat(mergedMatrix, subRectL);
+        Mat subMatrixR = new Mat(mergedMatrix, subRectR);
+        matrixL.copyTo(subMatrixL);
+        matrixR.copyTo(subMatrixR);
+        subMatrixL.release();
+        subMatrixR.release();
 
         return mergedMatrix;
     }
@@ -191,6 +605,7 @@ public final class Stitcher
     /**
      * Creates and returns a mask for a matrix such that the values are 1 for all columns i where
      * min * n <= i < max * n and 0 otherwise, where n is the number of columns in the matrix.
+     * Pixels within FREAK_BORDER of the border of the matrix are 0 as well.
      *
      * @param matrix The matrix to create the mask for.
      * @param min    The lower bound as a fraction of the column number.
@@ -199,19 +614,26 @@ public final class Stitcher
      */
     private Mat createMask(Mat matrix, double min, double max)
     {
-        Mat mask = new Mat(matrix.size(), CvType.CV_8UC1);
-        int xMin = (int)(min * matrix.cols());
-        int xMax = (int)(max * matrix.cols());
+        Mat mask = matPool.lease(matrix.rows(), matrix.cols(), CvType.CV_8UC1);
+        int xMin = Math.max((int)(min * matrix.cols()), FREAK_BORDER);
+        int xMax = Math.min((int)(max * matrix.cols()), matrix.cols() - FREAK_BORDER);
+        int yMin = FREAK_BORDER;
+        int yMax = matrix.rows() - FREAK_BORDER;
+
+        mask.setTo(Scalar.all(0));
+
+        if (xMin >= xMax || yMin >= yMax)
+        {
+            return mask;
+        }
 
         List<MatOfPoint> points = new ArrayList<>();
 
         points.add(new MatOfPoint(
-                new Point(xMin,     0),
-                new Point(xMin,     matrix.rows() - 1),
-                new Point(xMax - 1, matrix.rows() - 1),
-                new Point(xMax - 1, 0)));
-
-        mask.setTo(Scalar.all(0));
+                new Point(xMin,     yMin),
+                new Point(xMin,     yMax - 1),
+                new Point(xMax - 1, yMax - 1),
+                new Point(xMax - 1, yMin)));
 
         Core.fillPoly(mask, points, new Scalar(255));
 
@@ -219,27 +641,91 @@ public final class Stitcher
     }
 
     /**
-     * Detects features in the given image and stores them in the given descriptors matrix. The area
+     * Detects features in the given image and stores them in the given descriptors buffer. The area
      * for feature detection is restricted to columns i where min * n <= i < max * n, where n is the
-     * number of columns in the image matrix. Returns the feature key points as a matrix.
+     * number of columns in the image matrix. Returns the feature key points as a matrix. If a
+     * feature cache is set, the features are loaded from it or stored in it.
      *
-     * @param image       The image to detect features in.
-     * @param min         The lower bound of the detection area as a fraction of the column number.
-     * @param max         The upper bound of the detection area as a fraction of the column number.
-     * @param descriptors The matrix that will contain the feature descriptors.
+     * @param image  The image to detect features in.
+     * @param buffer The buffer of MAX_FEATURES rows whose first rows will contain the feature
+     *               descriptors, one row per key point.
+     * @param min    The lower bound of the detection area as a fraction of the column number.
+     * @param max    The upper bound of the detection area as a fraction of the column number.
+     * @param valid  The mask of the valid part of a warped image, or null if all is valid.
      * @return The key points of the detected features.
      */
-    private MatOfKeyPoint detectFeatures(Mat image, Mat descriptors, double min, double max)
+    private MatOfKeyPoint detectFeatures(Mat image, Mat buffer, double min, double max, Mat valid)
     {
         Mat           mask      = createMask(image, min, max);
         MatOfKeyPoint keyPoints = new MatOfKeyPoint();
 
+        if (valid != null)
+        {
+            Core.bitwise_and(mask, valid, mask);
+        }
+
+        // Reuse the features of an image that was stitched before.
+        FeatureCache cache = settings.getFeatureCache();
+        String       key   = null;
+
+        if (cache != null)
+        {
+            key = FeatureCache.createKey(image, mask, DETECTOR_TYPE, EXTRACTOR_TYPE);
+
+            Mat loaded = new Mat();
+
+            if (cache.load(key, keyPoints, loaded))
+            {
+                if (BuildConfig.DEBUG)
+                {
+                    Log.d(TAG, "Features cached " + key);
+                }
+
+                copyDescriptors(loaded, buffer);
+                loaded.release();
+                matPool.recycle(mask);
+                return keyPoints;
+            }
+
+            loaded.release();
+        }
+
         featureDetector.detect(image, keyPoints, mask);
+        matPool.recycle(mask);
+
+        // The mask keeps the corners away from the border, so FREAK keeps all of them and fills
+        // exactly the rows of the buffer that the view covers.
+        Mat descriptors = buffer.rowRange(0, Math.min(keyPoints.rows(), buffer.rows()));
         descriptorExtractor.compute(image, keyPoints, descriptors);
+        copyDescriptors(descriptors, buffer);
+
+        if (cache != null)
+        {
+            cache.store(key, keyPoints, descriptors);
+        }
 
+        descriptors.release();
         return keyPoints;
     }
 
+    /**
+     * Copies descriptors into the first rows of the given buffer, unless they are already there.
+     *
+     * @param descriptors The descriptors, one per row.
+     * @param buffer      The buffer of MAX_FEATURES rows.
+     */
+    private static void copyDescriptors(Mat descriptors, Mat buffer)
+    {
+        if (descriptors.dataAddr() == buffer.dataAddr() || descriptors.empty())
+        {
+            return;
+        }
+
+        Mat rows = buffer.rowRange(0, descriptors.rows());
+        descriptors.copyTo(rows);
+        rows.release();
+    }
+
     /**
      * Draws the given key points onto the given images and returns the resulting images as one
      * combined bitmap.
@@ -253,11 +739,16 @@ public final class Stitcher
     private Bitmap drawFeatures(Mat imageL, Mat imageR,
                                 MatOfKeyPoint keyPointsL, MatOfKeyPoint keyPointsR)
     {
-        Mat newImageL = new Mat();
-        Mat newImageR = new Mat();
+        // The key points are drawn onto colour copies of the grey images.
+        Mat newImageL = matPool.lease(imageL.rows(), imageL.cols(), CvType.CV_8UC3);
+        Mat newImageR = matPool.lease(imageR.rows(), imageR.cols(), CvType.CV_8UC3);
         Features2d.drawKeypoints(imageL, keyPointsL, newImageL, COLOR_MATCH, 0);
         Features2d.drawKeypoints(imageR, keyPointsR, newImageR, COLOR_MATCH, 0);
-        return createBitmap(mergeMatrices(newImageL, newImageR));
+
+        Mat mergedImage = mergeMatrices(newImageL, newImageR);
+        matPool.recycle(newImageL);
+        matPool.recycle(newImageR);
+        return createBitmap(mergedImage);
     }
 
     /**
@@ -315,7 +806,9 @@ public final class Stitcher
     private Bitmap drawMatches(Mat imageL, Mat imageR, MatOfKeyPoint keyPointsL,
                                MatOfKeyPoint keyPointsR, MatOfDMatch matches)
     {
-        Mat newImage = new Mat();
+        // Both images are drawn side by side in colour.
+        Mat newImage = matPool.lease(Math.max(imageL.rows(), imageR.rows()),
+                                     imageL.cols() + imageR.cols(), CvType.CV_8UC3);
         Features2d.drawMatches(imageL, keyPointsL, imageR, keyPointsR, matches, newImage,
                                COLOR_MATCH, COLOR_MATCH, new MatOfByte(),
                                Features2d.NOT_DRAW_SINGLE_POINTS);
@@ -324,37 +817,146 @@ public final class Stitcher
     }
 
     /**
-     * Finds and returns the homography based on the given matches between the given key points
-     * using the RANSAC algorithm. Stores the mask of used matches in the given mask matrix.
+     * Creates and returns the candidate motion models according to the settings, ordered by
+     * increasing number of degrees of freedom. The rotation model is only included if the focal
+     * length is known and the images are not projected; a homography is used instead if it was
+     * the only model selected.
+     *
+     * @param imageL The left image.
+     * @param imageR The right image.
+     * @param warper The warper the images were projected with, or null.
+     * @return The candidate motion models.
+     */
+    private List<MotionModel> createMotionModels(Mat imageL, Mat imageR, Warper warper)
+    {
+        int[] sizeL = { imageL.cols(), imageL.rows() };
+        int[] sizeR = { imageR.cols(), imageR.rows() };
+
+        List<MotionModel> models = new ArrayList<>();
+
+        for (MotionModel.Type type : MotionModel.Type.values())
+        {
+            boolean selected = settings.getMotionModel() == null
+                    || settings.getMotionModel() == type;
+
+            // The rotation model assumes pinhole images, which projected images are not.
+            boolean usable = type != MotionModel.Type.ROTATION
+                    || (focalLength > 0 && warper == null);
+
+            if (selected && usable)
+            {
+                models.add(MotionModel.create(type, focalLength, sizeR, sizeL));
+            }
+        }
+
+        // Fall back to a homography if the selected model cannot be used.
+        if (models.isEmpty())
+        {
+            models.add(new HomographyModel());
+        }
+
+        return models;
+    }
+
+    /**
+     * Looks up the coordinates of the given matches between the given key points and stores them
+     * in the given point matrices.
      *
      * @param keyPointsL The key points for the left image.
      * @param keyPointsR The key points for the right image.
      * @param matches    The matches between the key points.
-     * @param mask       The matrix that will contain the mask of used matches.
-     * @return The homography between the two images based on their matched key points.
+     * @param pointsL    The matrix that will contain the matched points in the left image.
+     * @param pointsR    The matrix that will contain the matched points in the right image.
      */
-    private Mat findHomography(MatOfKeyPoint keyPointsL, MatOfKeyPoint keyPointsR,
-                               MatOfDMatch matches, MatOfByte mask)
+    private void findMatchedPoints(MatOfKeyPoint keyPointsL, MatOfKeyPoint keyPointsR,
+                                   MatOfDMatch matches, MatOfPoint2f pointsL, MatOfPoint2f pointsR)
     {
-        KeyPoint[]   keyPointsArrayL     = keyPointsL.toArray();
-        KeyPoint[]   keyPointsArrayR     = keyPointsR.toArray();
-        DMatch[]     matchesArray        = matches.toArray();
-        Point[]      matchedPointsArrayL = new Point[matchesArray.length];
-        Point[]      matchedPointsArrayR = new Point[matchesArray.length];
-        MatOfPoint2f matchedPointsL      = new MatOfPoint2f();
-        MatOfPoint2f matchedPointsR      = new MatOfPoint2f();
+        KeyPointBuffer bufferL       = new KeyPointBuffer(keyPointsL);
+        KeyPointBuffer bufferR       = new KeyPointBuffer(keyPointsR);
+        DMatch[]       matchesArray  = matches.toArray();
+        float[]        matchedArrayL = new float[2 * matchesArray.length];
+        float[]        matchedArrayR = new float[2 * matchesArray.length];
 
         for (int i = 0; i < matchesArray.length; ++i)
         {
-            matchedPointsArrayL[i] = keyPointsArrayL[matchesArray[i].queryIdx].pt;
-            matchedPointsArrayR[i] = keyPointsArrayR[matchesArray[i].trainIdx].pt;
+            int indexL = matchesArray[i].queryIdx;
+            int indexR = matchesArray[i].trainIdx;
+
+            matchedArrayL[2 * i]     = bufferL.getX(indexL);
+            matchedArrayL[2 * i + 1] = bufferL.getY(indexL);
+            matchedArrayR[2 * i]     = bufferR.getX(indexR);
+            matchedArrayR[2 * i + 1] = bufferR.getY(indexR);
+        }
+
+        if (matchesArray.length > 0)
+        {
+            pointsL.alloc(matchesArray.length);
+            pointsR.alloc(matchesArray.length);
+            pointsL.put(0, 0, matchedArrayL);
+            pointsR.put(0, 0, matchedArrayR);
         }
+    }
+
+    /**
+     * Finds and returns the homography based on the given matched points using the RANSAC
+     * algorithm. The simplest of the candidate motion models that explains the matches is used,
+     * see MotionEstimator. Stores the mask of used matches in the given mask matrix.
+     *
+     * @param matchedPointsL The matched points in the left image.
+     * @param matchedPointsR The matched points in the right image.
+     * @param mask           The matrix that will contain the mask of used matches.
+     * @param models         The candidate motion models.
+     * @return The homography between the two images based on their matched key points.
+     */
+    private Mat findHomography(MatOfPoint2f matchedPointsL, MatOfPoint2f matchedPointsR,
+                               MatOfByte mask, List<MotionModel> models)
+    {
+        Mat homography = motionEstimator.estimate(models, matchedPointsR, matchedPointsL, mask);
+
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "RANSAC " + motionEstimator);
+        }
+
+        return homography;
+    }
+
+    /**
+     * Returns the matched points that are inliers of the homography as one array holding left x,
+     * left y, right x and right y of each inlier.
+     *
+     * @param pointsL The matched points in the left image.
+     * @param pointsR The matched points in the right image.
+     * @param mask    The mask of inliers among the matches.
+     * @return The inlier points.
+     */
+    private float[] collectInliers(MatOfPoint2f pointsL, MatOfPoint2f pointsR, MatOfByte mask)
+    {
+        byte[]  maskArray = mask.empty() ? new byte[0] : mask.toArray();
+        float[] l         = new float[2 * (int) pointsL.total()];
+        float[] r         = new float[2 * (int) pointsR.total()];
+        int     count     = 0;
+
+        if (l.length > 0)
+        {
+            pointsL.get(0, 0, l);
+            pointsR.get(0, 0, r);
+        }
+
+        float[] result = new float[2 * Math.min(l.length, 2 * maskArray.length)];
 
-        matchedPointsL.fromArray(matchedPointsArrayL);
-        matchedPointsR.fromArray(matchedPointsArrayR);
+        for (int i = 0; i < maskArray.length && 2 * i < l.length; ++i)
+        {
+            if (maskArray[i] == 1)
+            {
+                result[count++] = l[2 * i];
+                result[count++] = l[2 * i + 1];
+                result[count++] = r[2 * i];
+                result[count++] = r[2 * i + 1];
+            }
+        }
 
-        return Calib3d.findHomography(matchedPointsR, matchedPointsL,
-                                      Calib3d.RANSAC, RANSAC_THRESHOLD, mask);
+        return Arrays.copyOf(result, count);
     }
 
     /**
@@ -385,23 +987,206 @@ public final class Stitcher
     }
 
     /**
-     * Merges the two given images by applying the given homography to the right image and returns
-     * the result as a bitmap.
+     * Merges the two given images by applying the registration to the right image and returns
+     * the result as a bitmap, see createCompositor.
      *
-     * @param imageL     The left image to merge.
-     * @param imageR     The right image to merge.
-     * @param homography The homography to apply to the right image.
+     * @param imageL The left image to merge.
+     * @param imageR The right image to merge.
      * @return The created bitmap of the merged images.
      */
-    private Bitmap mergeImages(Mat imageL, Mat imageR, Mat homography)
+    private Bitmap mergeImages(Mat imageL, Mat imageR)
     {
-        Mat newImage = new Mat();
+        MatImageSource sourceL = new MatImageSource(imageL, matPool);
+        MatImageSource sourceR = new MatImageSource(imageR, matPool);
 
-        Imgproc.warpPerspective(imageR, newImage, homography,
-                                new Size(imageL.cols() + imageR.cols(), imageL.rows()));
+        try
+        {
+            TiledCompositor compositor = createCompositor(sourceL, sourceR, registration, 1.0);
 
-        imageL.copyTo(new Mat(newImage, new Rect(0, 0, imageL.cols(), imageL.rows())));
+            BitmapTileSink sink = new BitmapTileSink(settings.getConverter().obtainBitmap(
+                    compositor.getWidth(), compositor.getHeight()));
+            compositor.render(sink);
 
-        return createBitmap(newImage);
+            return sink.getBitmap();
+        }
+        finally
+        {
+            sourceL.release();
+            sourceR.release();
+        }
+    }
+
+    /**
+     * Creates a compositor that merges the two given sources, scaling the registration found at
+     * the working resolution to the resolution of the sources.
+     *
+     * @param sourceL The left image.
+     * @param sourceR The right image.
+     * @return The compositor, ready to render.
+     * @throws IllegalStateException If the images were not stitched or were projected.
+     * @throws IllegalArgumentException If the aspect ratio of a source does not match the image.
+     */
+    private TiledCompositor createCompositor(ImageSource sourceL, ImageSource sourceR)
+    {
+        if (registration == null || projected)
+        {
+            throw new IllegalStateException("No plane registration to render");
+        }
+
+        double scaleL = 1.0 * sourceL.getWidth() / workingSize[0];
+        double scaleR = 1.0 * sourceR.getWidth() / workingSize[2];
+
+        // A source that is not upright, or not the stitched image, has a different aspect ratio.
+        if (Math.abs(sourceL.getHeight() / scaleL - workingSize[1]) > MAX_SOURCE_ERROR
+                || Math.abs(sourceR.getHeight() / scaleR - workingSize[3]) > MAX_SOURCE_ERROR)
+        {
+            throw new IllegalArgumentException("The sources do not match the stitched images");
+        }
+
+        // Map from the right source to the left working image and on to the left source.
+        double[] homography = Homography.multiply(
+                Homography.scaling(scaleL, scaleL),
+                Homography.multiply(registration, Homography.scaling(1 / scaleR, 1 / scaleR)));
+
+        return createCompositor(sourceL, sourceR, homography, scaleL);
+    }
+
+    /**
+     * Creates a compositor that merges the two given images by applying the given homography to
+     * the right image. The canvas is composited tile by tile, see TiledCompositor. Unless
+     * disabled in the settings, the canvas is cropped to the covered area, see CropFinder, the
+     * exposure of the images is matched, see GainCompensator, they are joined along an optimal
+     * seam, see SeamFinder, and their overlap is blended, see Blender.
+     *
+     * @param sourceL    The left image to merge.
+     * @param sourceR    The right image to merge.
+     * @param homography The homography to apply to the right image.
+     * @param scale      The scale of the canvas relative to the working resolution.
+     * @return The compositor, ready to render.
+     */
+    private TiledCompositor createCompositor(ImageSource sourceL, ImageSource sourceR,
+                                             double[] homography, double scale)
+    {
+        int width  = (int) Math.round((workingSize[0] + workingSize[2]) * scale);
+        int height = sourceL.getHeight();
+
+        TiledCompositor compositor = new TiledCompositor(width, height,
+                                                         TiledCompositor.DEFAULT_TILE_SIZE,
+                                                         matPool);
+        compositor.addLayer(sourceR, homography);
+        compositor.addLayer(sourceL, Homography.identity());
+
+        // Crop rectangle, gains and seam are found once and kept at the working resolution.
+        Rect crop = null;
+
+        if (settings.isAutoCrop())
+        {
+            if (cropRect != null)
+            {
+                crop = scaleRect(cropRect, scale, width, height);
+            }
+            else
+            {
+                crop = new CropFinder().find(compositor);
+
+                if (BuildConfig.DEBUG)
+                {
+                    Log.d(TAG, "Crop " + crop);
+                }
+
+                if (crop != null)
+                {
+                    cropRect = scaleRect(crop, 1 / scale, workingSize[0] + workingSize[2],
+                                         workingSize[1]);
+                }
+            }
+
+            if (crop != null)
+            {
+                compositor.crop(crop);
+            }
+        }
+
+        if (settings.isGainCompensation())
+        {
+            if (gains == null)
+            {
+                gains = new GainCompensator().compensate(compositor);
+
+                if (BuildConfig.DEBUG)
+                {
+                    Log.d(TAG, "Gains " + Arrays.toString(gains));
+                }
+            }
+            else
+            {
+                for (int i = 0; i < gains.length; ++i)
+                {
+                    compositor.setGain(i, gains[i]);
+                }
+            }
+        }
+
+        if (settings.isSeamFinding())
+        {
+            // The seam is kept on the uncropped canvas, so it survives changing the crop.
+            double dx = crop == null ? 0 : crop.x;
+            double dy = crop == null ? 0 : crop.y;
+
+            if (seam == null)
+            {
+                Seam found = new SeamFinder().find(compositor, 1, 0);
+                compositor.setSeam(found);
+
+                if (found != null)
+                {
+                    seam = found.transform(dx, dy, 1 / scale);
+                }
+            }
+            else
+            {
+                compositor.setSeam(seam.transform(-dx / scale, -dy / scale, scale));
+            }
+        }
+
+        switch (settings.getBlendMode())
+        {
+            case FEATHER:
+
+                // The feather keeps its width in the image content at any resolution.
+                compositor.setBlender(new FeatherBlender(
+                        (int) Math.round(FeatherBlender.DEFAULT_WIDTH * scale)), 0, 1);
+                break;
+
+            case MULTI_BAND:
+
+                compositor.setBlender(new MultiBandBlender(settings.getBlendBands()), 0, 1);
+                break;
+
+            default:
+
+                break;
+        }
+
+        return compositor;
+    }
+
+    /**
+     * Scales the given rectangle and clips it to the given canvas.
+     *
+     * @param rect   The rectangle to scale.
+     * @param scale  The scale factor.
+     * @param width  The width of the canvas.
+     * @param height The height of the canvas.
+     * @return The scaled rectangle.
+     */
+    private static Rect scaleRect(Rect rect, double scale, int width, int height)
+    {
+        int x = Math.min(width  - 1, (int) Math.round(rect.x * scale));
+        int y = Math.min(height - 1, (int) Math.round(rect.y * scale));
+
+        return new Rect(x, y,
+                        Math.max(1, Math.min(width  - x, (int) Math.round(rect.width  * scale))),
+                        Math.max(1, Math.min(height - y, (int) Math.round(rect.height * scale))));
     }
 }
\ No newline at end of file
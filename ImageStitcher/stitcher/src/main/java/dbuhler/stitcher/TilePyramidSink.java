@@ -0,0 +1,314 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * This tile sink writes the canvas as a Deep Zoom tile pyramid, which viewers display at any zoom
+ * level without decoding the whole image. Every level halves the size of the level above it down
+ * to a single pixel, and each level is cut into TILE_SIZE tiles without overlap. The pyramid is
+ * built while the canvas is rendered: every finished row of the canvas is added to the top level,
+ * each level averages pairs of its rows into the level below, and a level writes its tiles as
+ * soon as a row of tiles is complete. Only one row of tiles per level is held in memory.
+ *
+ * The files follow the Deep Zoom layout: name.dzi holds the manifest, and the tile in column c
+ * and row r of level l is stored as name_files/l/c_r with the extension of the encoder.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class TilePyramidSink implements TiledCompositor.TileSink
+{
+    public static final int TILE_SIZE = 256;
+
+    private File         directory;
+    private ImageEncoder encoder;
+    private int          width;
+    private Level        top;
+    private byte[]       band;
+    private int          bandRows;
+    private byte[]       pixels;
+    private IOException  error;
+
+    /**
+     * A level of the pyramid, which collects its rows into a row of tiles.
+     */
+    private final class Level
+    {
+        private int     index;
+        private int     width;
+        private int     height;
+        private byte[]  rows;
+        private int     rowCount;
+        private int     tileRow;
+        private int     rowsAdded;
+        private byte[]  pending;
+        private byte[]  reduced;
+        private boolean hasPending;
+        private Level   below;
+
+        private Level(int index, int width, int height)
+        {
+            this.index  = index;
+            this.width  = width;
+            this.height = height;
+            rows = new byte[4 * width * Math.min(TILE_SIZE, height)];
+
+            if (index > 0)
+            {
+                pending = new byte[4 * width];
+                reduced = new byte[4 * ((width + 1) / 2)];
+                below   = new Level(index - 1, (width + 1) / 2, (height + 1) / 2);
+            }
+        }
+
+        /**
+         * Adds the next row of this level.
+         *
+         * @param row    The array holding the RGBA pixels of the row.
+         * @param offset The offset of the row in the array.
+         * @throws IOException If a tile cannot be written.
+         */
+        private void addRow(byte[] row, int offset) throws IOException
+        {
+            System.arraycopy(row, offset, rows, 4 * width * rowCount, 4 * width);
+            ++rowCount;
+            ++rowsAdded;
+
+            if (rowCount == TILE_SIZE || rowsAdded == height)
+            {
+                writeTiles();
+            }
+
+            if (below == null)
+            {
+                return;
+            }
+
+            // Average pairs of rows into the level below; a last odd row is paired with itself.
+            if (!hasPending)
+            {
+                System.arraycopy(row, offset, pending, 0, 4 * width);
+                hasPending = true;
+
+                if (rowsAdded < height)
+                {
+                    return;
+                }
+
+                offset = 0;
+                row    = pending;
+            }
+
+            reduce(pending, row, offset);
+            below.addRow(reduced, 0);
+            hasPending = false;
+        }
+
+        /**
+         * Averages two rows into a row of half the width.
+         *
+         * @param upper  The upper row.
+         * @param lower  The array holding the lower row.
+         * @param offset The offset of the lower row in its array.
+         */
+        private void reduce(byte[] upper, byte[] lower, int offset)
+        {
+            for (int x = 0; x < reduced.length / 4; ++x)
+            {
+                int left  = 8 * x;
+                int right = 2 * x + 1 < width ? left + 4 : left;
+
+                for (int c = 0; c < 4; ++c)
+                {
+                    int sum = (upper[left + c] & 0xFF) + (upper[right + c] & 0xFF)
+                            + (lower[offset + left + c] & 0xFF)
+                            + (lower[offset + right + c] & 0xFF);
+
+                    reduced[4 * x + c] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+
+        /**
+         * Writes the collected row of tiles.
+         *
+         * @throws IOException If a tile cannot be written.
+         */
+        private void writeTiles() throws IOException
+        {
+            File levelDirectory = new File(directory, Integer.toString(index));
+
+            if (!levelDirectory.isDirectory() && !levelDirectory.mkdirs())
+            {
+                throw new IOException("Cannot create " + levelDirectory);
+            }
+
+            for (int column = 0; column * TILE_SIZE < width; ++column)
+            {
+                int    x         = column * TILE_SIZE;
+                int    tileWidth = Math.min(TILE_SIZE, width - x);
+                byte[] tile      = new byte[4 * tileWidth * rowCount];
+
+                for (int y = 0; y < rowCount; ++y)
+                {
+                    System.arraycopy(rows, 4 * (y * width + x), tile, 4 * y * tileWidth,
+                                     4 * tileWidth);
+                }
+
+                File file = new File(levelDirectory,
+                                     column + "_" + tileRow + "." + encoder.getExtension());
+                OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+
+                try
+                {
+                    encoder.begin(output, tileWidth, rowCount);
+                    encoder.writeRows(tile, rowCount);
+                    encoder.end();
+                }
+                finally
+                {
+                    output.close();
+                }
+            }
+
+            rowCount = 0;
+            ++tileRow;
+        }
+    }
+
+    /**
+     * Creates a new sink that writes the pyramid of a canvas of the given size.
+     *
+     * @param parent  The directory to write the manifest and the tiles to.
+     * @param name    The name of the pyramid.
+     * @param encoder The encoder of the tiles, e.g. a JpegEncoder.
+     * @param width   The width of the canvas.
+     * @param height  The height of the canvas.
+     * @throws IOException If the manifest cannot be written.
+     */
+    public TilePyramidSink(File parent, String name, ImageEncoder encoder, int width, int height)
+            throws IOException
+    {
+        this.directory = new File(parent, name + "_files");
+        this.encoder   = encoder;
+        this.width     = width;
+
+        // The top level has the size of the canvas; level 0 has a single pixel.
+        int levels = 1;
+
+        while (1 << levels - 1 < Math.max(width, height))
+        {
+            ++levels;
+        }
+
+        top = new Level(levels - 1, width, height);
+
+        writeManifest(new File(parent, name + ".dzi"), width, height);
+    }
+
+    /**
+     * Adds a tile to the band of the current row of tiles and, once the band is complete, adds
+     * its rows to the pyramid.
+     *
+     * @param rect The position and size of the tile in the canvas.
+     * @param tile The pixels of the tile.
+     * @throws IllegalStateException If a tile of the pyramid could not be written, which stops the
+     *                               rendering; finish() reports the cause.
+     */
+    @Override
+    public void onTile(Rect rect, Mat tile)
+    {
+        if (error != null)
+        {
+            throw new IllegalStateException("Writing the pyramid failed", error);
+        }
+
+        if (band == null || band.length < 4 * width * rect.height)
+        {
+            band = new byte[4 * width * rect.height];
+        }
+
+        int length = 4 * rect.width * rect.height;
+
+        if (pixels == null || pixels.length < length)
+        {
+            pixels = new byte[length];
+        }
+
+        tile.get(0, 0, pixels);
+
+        for (int y = 0; y < rect.height; ++y)
+        {
+            System.arraycopy(pixels, 4 * y * rect.width,
+                             band, 4 * (y * width + rect.x), 4 * rect.width);
+        }
+
+        bandRows = rect.height;
+
+        // The last tile of a row of tiles finishes the rows of the band.
+        if (rect.x + rect.width == width)
+        {
+            try
+            {
+                for (int y = 0; y < bandRows; ++y)
+                {
+                    top.addRow(band, 4 * width * y);
+                }
+            }
+            catch (IOException e)
+            {
+                error = e;
+                throw new IllegalStateException("Writing the pyramid failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reports whether all tiles were written. Call after rendering, also if it was stopped.
+     *
+     * @throws IOException If a tile could not be written.
+     */
+    public void finish() throws IOException
+    {
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+
+    /**
+     * Writes the Deep Zoom manifest.
+     *
+     * @param file   The manifest file.
+     * @param width  The width of the canvas.
+     * @param height The height of the canvas.
+     * @throws IOException If the file cannot be written.
+     */
+    private void writeManifest(File file, int width, int height) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try
+        {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\""
+                    + " TileSize=\"" + TILE_SIZE + "\" Overlap=\"0\""
+                    + " Format=\"" + encoder.getExtension() + "\">\n"
+                    + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                    + "</Image>\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
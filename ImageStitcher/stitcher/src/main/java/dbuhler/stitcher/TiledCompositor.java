@@ -0,0 +1,785 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class composites warped images into a canvas one fixed-size tile at a time. For every tile,
+ * the tile rectangle is mapped back into each source image and only the source region needed for
+ * the tile is read and warped. Finished tiles are handed to a sink, so the whole canvas never has
+ * to exist in memory at once, and with an ImageSource that decodes on demand neither do the
+ * source images.
+ *
+ * The overlap of two blended layers is blended one strip at a time as well: for every row of
+ * tiles, the rows of the overlap it covers are blended together with the blender's border above
+ * and below as context, which the blenders keep wide enough for the strip to come out like the
+ * whole overlap. Peak memory therefore stays proportional to the tile size and the canvas width.
+ *
+ * All matrices of a tile, of a strip and of the blender are leased from a MatPool for their exact
+ * size and type. Every strip has the same height and the tiles only differ along the right and
+ * bottom edges of the canvas, so a render only needs a few sizes, and a pool that is kept across
+ * renders of the same canvas size provides all of them.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class TiledCompositor
+{
+    /**
+     * The receiver of finished tiles, e.g. an encoder, a file writer or a viewer cache.
+     */
+    public interface TileSink
+    {
+        /**
+         * Called for every finished tile in row-major order. The tile matrix is reused for the
+         * next tile, so it must be copied if it is needed after this call returns.
+         *
+         * @param rect The position and size of the tile in the canvas.
+         * @param tile The pixels of the tile.
+         */
+        void onTile(Rect rect, Mat tile);
+    }
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    // Extra source pixels around each region so that interpolation never reads past its border.
+    private static final int MARGIN = 2;
+
+    // The alpha of a valid pixel of a warped layer.
+    private static final int OPAQUE = 255;
+
+    private int         width;
+    private int         height;
+    private int         tileSize;
+    private MatPool     matPool;
+    private List<Layer> layers;
+    private Seam        seam;
+    private Blender     blender;
+    private int[]       blendLayers;
+
+    // The blended overlap rectangle and the strip of it blended for the current row of tiles.
+    private Rect  blendRect;
+    private int   stripHeight;
+    private Rect  stripRect;
+    private Mat   stripImage;
+    private Mat   stripMask;
+    private Mat[] stripLayers;
+    private Mat[] stripValid;
+    private Mat[] stripMasks;
+
+    /**
+     * A source image together with the homography that maps it into the canvas.
+     */
+    private static final class Layer
+    {
+        private ImageSource source;
+        private double[]    homography;
+        private double[]    inverse;
+        private double      gain = 1.0;
+    }
+
+    /**
+     * Creates a new compositor for a canvas of the given size.
+     *
+     * @param width    The width of the canvas.
+     * @param height   The height of the canvas.
+     * @param tileSize The width and height of a tile.
+     * @param matPool  The pool the matrices of the tiles and strips are leased from.
+     */
+    public TiledCompositor(int width, int height, int tileSize, MatPool matPool)
+    {
+        this.width    = width;
+        this.height   = height;
+        this.tileSize = tileSize;
+        this.matPool  = matPool;
+        layers = new ArrayList<>();
+    }
+
+    /**
+     * Returns the width of the canvas.
+     *
+     * @return The canvas width.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Returns the height of the canvas.
+     *
+     * @return The canvas height.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the number of layers.
+     *
+     * @return The number of layers.
+     */
+    public int getLayerCount()
+    {
+        return layers.size();
+    }
+
+    /**
+     * Adds an image held in memory to the canvas, see addLayer(ImageSource, double[]).
+     *
+     * @param image      The RGBA image to add.
+     * @param homography The homography that maps the image into the canvas.
+     */
+    public void addLayer(Mat image, double[] homography)
+    {
+        addLayer(new MatImageSource(image, matPool), homography);
+    }
+
+    /**
+     * Adds an image to the canvas. Images added later are drawn over images added earlier, unless
+     * a seam between them says otherwise. The image is only read region by region while warping.
+     *
+     * @param source     The source of the image to add.
+     * @param homography The homography that maps the image into the canvas.
+     */
+    public void addLayer(ImageSource source, double[] homography)
+    {
+        Layer layer = new Layer();
+        layer.source     = source;
+        layer.homography = homography;
+        layer.inverse    = Homography.invert(homography);
+
+        if (layer.inverse != null)
+        {
+            layers.add(layer);
+        }
+    }
+
+    /**
+     * Crops the canvas to the given rectangle, so that pixels outside it are never warped. The
+     * origin of the canvas moves to the corner of the rectangle. Seams are in canvas coordinates,
+     * so the canvas must be cropped before a seam is searched.
+     *
+     * @param rect The rectangle to keep, inside the canvas.
+     */
+    public void crop(Rect rect)
+    {
+        double[] shift = Homography.translation(-rect.x, -rect.y);
+
+        for (Layer layer : layers)
+        {
+            layer.homography = Homography.multiply(shift, layer.homography);
+            layer.inverse    = Homography.invert(layer.homography);
+        }
+
+        width  = rect.width;
+        height = rect.height;
+    }
+
+    /**
+     * Sets the gain that the colour channels of a layer are multiplied with while warping.
+     *
+     * @param index The index of the layer.
+     * @param gain  The gain, 1 to keep the exposure of the layer.
+     */
+    public void setGain(int index, double gain)
+    {
+        layers.get(index).gain = gain;
+    }
+
+    /**
+     * Sets the seam that decides which of two overlapping layers is drawn where both are valid.
+     *
+     * @param seam The seam, or null to draw later layers over earlier ones everywhere.
+     */
+    public void setSeam(Seam seam)
+    {
+        this.seam = seam;
+    }
+
+    /**
+     * Sets the blender used in the overlap of two layers.
+     *
+     * @param blender The blender, or null to draw one layer over the other.
+     * @param a       The index of the first layer to blend.
+     * @param b       The index of the second layer to blend.
+     */
+    public void setBlender(Blender blender, int a, int b)
+    {
+        this.blender = blender;
+        blendLayers  = new int[] { a, b };
+    }
+
+    /**
+     * Renders the canvas tile by tile in row-major order and passes each tile to the given sink.
+     * Canvas pixels not covered by any image are transparent black. If a blender is set, the
+     * overlap of the blended layers is blended strip by strip for each row of tiles and copied
+     * into the tiles.
+     *
+     * @param sink The receiver of the finished tiles. An exception thrown by the sink stops the
+     *             rendering.
+     */
+    public void render(TileSink sink)
+    {
+        if (layers.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            if (blender != null)
+            {
+                prepareBlend();
+            }
+
+            for (int y = 0; y < height; y += tileSize)
+            {
+                if (blendRect != null)
+                {
+                    blendStrip(y, Math.min(tileSize, height - y));
+                }
+
+                for (int x = 0; x < width; x += tileSize)
+                {
+                    renderTile(new Rect(x, y, Math.min(tileSize, width - x),
+                                        Math.min(tileSize, height - y)), sink);
+                }
+            }
+        }
+        finally
+        {
+            if (blendRect != null)
+            {
+                releaseBlend();
+            }
+        }
+    }
+
+    /**
+     * Returns the bounding box of a layer in the canvas.
+     *
+     * @param index The index of the layer.
+     * @return The bounding box clipped to the canvas, or null if the layer is outside the canvas.
+     */
+    Rect findLayerBounds(int index)
+    {
+        Layer    layer = layers.get(index);
+        double[] xs    = { 0, layer.source.getWidth(), layer.source.getWidth(), 0 };
+        double[] ys    = { 0, 0, layer.source.getHeight(), layer.source.getHeight() };
+        double   minX  = Double.MAX_VALUE;
+        double   minY  = Double.MAX_VALUE;
+        double   maxX  = -Double.MAX_VALUE;
+        double   maxY  = -Double.MAX_VALUE;
+
+        for (int i = 0; i < 4; ++i)
+        {
+            double[] p = Homography.transform(layer.homography, xs[i], ys[i]);
+
+            if (p[2] <= 0)
+            {
+                // The image crosses the horizon, so it may cover any part of the canvas.
+                return new Rect(0, 0, width, height);
+            }
+
+            minX = Math.min(minX, p[0]);
+            minY = Math.min(minY, p[1]);
+            maxX = Math.max(maxX, p[0]);
+            maxY = Math.max(maxY, p[1]);
+        }
+
+        return clip(minX, minY, maxX, maxY, width, height, 0);
+    }
+
+    /**
+     * Returns the intersection of the bounding boxes of two layers in the canvas.
+     *
+     * @param a The index of the first layer.
+     * @param b The index of the second layer.
+     * @return The overlap rectangle, or null if the layers do not overlap.
+     */
+    Rect findOverlap(int a, int b)
+    {
+        Rect boundsA = findLayerBounds(a);
+        Rect boundsB = findLayerBounds(b);
+
+        if (boundsA == null || boundsB == null)
+        {
+            return null;
+        }
+
+        int x0 = Math.max(boundsA.x, boundsB.x);
+        int y0 = Math.max(boundsA.y, boundsB.y);
+        int x1 = Math.min(boundsA.x + boundsA.width,  boundsB.x + boundsB.width);
+        int y1 = Math.min(boundsA.y + boundsA.height, boundsB.y + boundsB.height);
+
+        return x0 < x1 && y0 < y1 ? new Rect(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+
+    /**
+     * Warps the part of a layer that covers the given canvas rectangle, scaled by the given
+     * factor, into the given matrix. Only the source region needed for the rectangle is read, and
+     * it is read subsampled if the result is much smaller than the region. The gain of the layer
+     * is applied to the result. Pixels outside the layer are transparent black.
+     *
+     * @param index The index of the layer.
+     * @param rect  The rectangle in the canvas.
+     * @param scale The scale factor of the result relative to the canvas.
+     * @param dst   The matrix that will contain the warped pixels.
+     * @return True if the layer covers the rectangle, false if the result is empty.
+     */
+    boolean warpLayer(int index, Rect rect, double scale, Mat dst)
+    {
+        Layer layer  = layers.get(index);
+        Rect  region = findSourceRegion(layer, rect);
+        Size  size   = new Size(Math.ceil(rect.width * scale), Math.ceil(rect.height * scale));
+
+        if (region == null)
+        {
+            dst.create(size, CvType.CV_8UC4);
+            dst.setTo(Scalar.all(0));
+            return false;
+        }
+
+        // Subsample by the largest power of two that keeps the region at least as large as the
+        // result, and align the region to it.
+        int sampleSize = 1;
+
+        while (2 * sampleSize * size.width <= region.width
+                && 2 * sampleSize * size.height <= region.height)
+        {
+            sampleSize *= 2;
+        }
+
+        if (sampleSize > 1)
+        {
+            int x0 = region.x - region.x % sampleSize;
+            int y0 = region.y - region.y % sampleSize;
+            region = new Rect(x0, y0, region.x + region.width - x0, region.y + region.height - y0);
+        }
+
+        // Map from the subsampled source region to the result:
+        // scale * translate(-rect) * homography * translate(region) * sampleSize.
+        double[] h = Homography.multiply(
+                Homography.multiply(Homography.scaling(scale, scale),
+                                    Homography.translation(-rect.x, -rect.y)),
+                Homography.multiply(layer.homography,
+                                    Homography.multiply(
+                                            Homography.translation(region.x, region.y),
+                                            Homography.scaling(sampleSize, sampleSize))));
+
+        Mat matrix = matPool.lease(3, 3, CvType.CV_64F);
+        matrix.put(0, 0, h);
+        Imgproc.warpPerspective(layer.source.read(region, sampleSize), dst, matrix, size,
+                                Imgproc.INTER_LINEAR, Imgproc.BORDER_CONSTANT, Scalar.all(0));
+        matPool.recycle(matrix);
+
+        if (layer.gain != 1.0)
+        {
+            Core.multiply(dst, new Scalar(layer.gain, layer.gain, layer.gain, 1.0), dst);
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes the mask of the valid pixels of a warped layer, i.e. of the pixels whose alpha is
+     * fully opaque. Warping interpolates the pixels along the edge of a layer with the transparent
+     * black outside it, so they are not valid; drawn at full weight they would darken the edge.
+     *
+     * @param warped The warped RGBA pixels.
+     * @param mask   The matrix that will contain 255 for valid pixels and 0 otherwise.
+     */
+    static void findValid(Mat warped, Mat mask)
+    {
+        Core.extractChannel(warped, mask, 3);
+        Imgproc.threshold(mask, mask, OPAQUE - 1, 255, Imgproc.THRESH_BINARY);
+    }
+
+    /**
+     * Returns whether a pixel of a warped layer is valid, see findValid.
+     *
+     * @param alpha The alpha of the pixel.
+     * @return True if the pixel is valid, false otherwise.
+     */
+    static boolean isValid(byte alpha)
+    {
+        return (alpha & 0xFF) == OPAQUE;
+    }
+
+    /**
+     * Leases a matrix from the pool of this compositor with the size of the result of warpLayer
+     * for the given rectangle and scale.
+     *
+     * @param rect  The rectangle in the canvas.
+     * @param scale The scale factor of the result relative to the canvas.
+     * @param type  The type of the matrix.
+     * @return The matrix, which should be returned with recycle when no longer needed.
+     */
+    Mat lease(Rect rect, double scale, int type)
+    {
+        return matPool.lease((int) Math.ceil(rect.height * scale),
+                             (int) Math.ceil(rect.width * scale), type);
+    }
+
+    /**
+     * Returns a matrix leased with lease to the pool of this compositor.
+     *
+     * @param matrix The matrix, or null.
+     */
+    void recycle(Mat matrix)
+    {
+        matPool.recycle(matrix);
+    }
+
+    /**
+     * Renders one tile and passes it to the given sink.
+     *
+     * @param rect The rectangle of the tile in the canvas.
+     * @param sink The receiver of the tile.
+     */
+    private void renderTile(Rect rect, TileSink sink)
+    {
+        int       n       = layers.size();
+        Mat       tile    = lease(rect, 1.0, CvType.CV_8UC4);
+        Mat       alpha   = lease(rect, 1.0, CvType.CV_8UC1);
+        Mat[]     warped  = new Mat[n];
+        Mat[]     masks   = new Mat[n];
+        boolean[] covered = new boolean[n];
+
+        for (int k = 0; k < n; ++k)
+        {
+            warped[k] = lease(rect, 1.0, CvType.CV_8UC4);
+            masks[k]  = lease(rect, 1.0, CvType.CV_8UC1);
+        }
+
+        try
+        {
+            // Warp each layer separately; its alpha channel tells where it is valid.
+            for (int k = 0; k < n; ++k)
+            {
+                covered[k] = warpLayer(k, rect, 1.0, warped[k]);
+
+                if (covered[k])
+                {
+                    findValid(warped[k], masks[k]);
+                }
+            }
+
+            if (seam != null && covered[seam.getLeftLayer()] && covered[seam.getRightLayer()])
+            {
+                applySeam(rect, masks, alpha);
+            }
+
+            tile.setTo(Scalar.all(0));
+
+            for (int k = 0; k < n; ++k)
+            {
+                if (covered[k])
+                {
+                    warped[k].copyTo(tile, masks[k]);
+                }
+            }
+
+            copyBlend(rect, tile);
+            sink.onTile(rect, tile);
+        }
+        finally
+        {
+            for (int k = 0; k < n; ++k)
+            {
+                matPool.recycle(warped[k]);
+                matPool.recycle(masks[k]);
+            }
+
+            matPool.recycle(alpha);
+            matPool.recycle(tile);
+        }
+    }
+
+    /**
+     * Finds the overlap rectangle of the blended layers plus the blender's border and the height
+     * of the strips. A strip covers a row of tiles with the border above and below, plus up to
+     * one more border because its top is aligned, see blendStrip.
+     */
+    private void prepareBlend()
+    {
+        Rect overlap = findOverlap(blendLayers[0], blendLayers[1]);
+
+        if (overlap == null)
+        {
+            return;
+        }
+
+        blendRect = clip(overlap.x, overlap.y, overlap.x + overlap.width,
+                         overlap.y + overlap.height, width, height, blender.getBorder());
+
+        if (blendRect == null)
+        {
+            return;
+        }
+
+        stripHeight = Math.min(blendRect.height, tileSize + 3 * blender.getBorder());
+        stripLayers = new Mat[2];
+        stripValid  = new Mat[2];
+        stripMasks  = new Mat[2];
+    }
+
+    /**
+     * Returns the matrices of the current strip to the pool and forgets the overlap rectangle.
+     */
+    private void releaseBlend()
+    {
+        recycleStrip();
+
+        blendRect   = null;
+        stripLayers = null;
+        stripValid  = null;
+        stripMasks  = null;
+    }
+
+    /**
+     * Returns the matrices of the current strip to the pool.
+     */
+    private void recycleStrip()
+    {
+        matPool.recycle(stripImage);
+        matPool.recycle(stripMask);
+
+        for (int i = 0; i < 2; ++i)
+        {
+            matPool.recycle(stripLayers[i]);
+            matPool.recycle(stripValid[i]);
+            matPool.recycle(stripMasks[i]);
+            stripLayers[i] = null;
+            stripValid[i]  = null;
+            stripMasks[i]  = null;
+        }
+
+        stripRect  = null;
+        stripImage = null;
+        stripMask  = null;
+    }
+
+    /**
+     * Warps and blends the strip of the overlap rectangle that the given row of tiles needs,
+     * together with the blender's border above and below it. The strip starts at a multiple of
+     * the border below the top of the overlap rectangle, so that the pyramid levels of a
+     * multi-band blend line up with those of the whole overlap. All strips have the same height,
+     * so the last one may reach past the overlap rectangle; the layers are warped there as well,
+     * which only adds context. The masks passed to the blender assign each pixel to one layer
+     * like the seam would.
+     *
+     * @param y    The top of the row of tiles.
+     * @param rows The height of the row of tiles.
+     */
+    private void blendStrip(int y, int rows)
+    {
+        recycleStrip();
+
+        int border = blender.getBorder();
+        int bottom = blendRect.y + blendRect.height;
+
+        if (y + rows <= blendRect.y || y >= bottom)
+        {
+            return;
+        }
+
+        int offset = Math.max(0, y - border - blendRect.y);
+        int top    = blendRect.y + offset - offset % border;
+        stripRect  = new Rect(blendRect.x, top, blendRect.width, stripHeight);
+        stripImage = lease(stripRect, 1.0, CvType.CV_8UC4);
+        stripMask  = lease(stripRect, 1.0, CvType.CV_8UC1);
+
+        Mat[] masks   = new Mat[layers.size()];
+        Mat   scratch = lease(stripRect, 1.0, CvType.CV_8UC1);
+
+        try
+        {
+            for (int i = 0; i < 2; ++i)
+            {
+                int k = blendLayers[i];
+                stripLayers[i] = lease(stripRect, 1.0, CvType.CV_8UC4);
+                stripValid[i]  = lease(stripRect, 1.0, CvType.CV_8UC1);
+                stripMasks[i]  = lease(stripRect, 1.0, CvType.CV_8UC1);
+                warpLayer(k, stripRect, 1.0, stripLayers[i]);
+                findValid(stripLayers[i], stripValid[i]);
+                stripValid[i].copyTo(stripMasks[i]);
+                masks[k] = stripMasks[i];
+            }
+
+            Core.bitwise_or(stripValid[0], stripValid[1], stripMask);
+
+            if (seam != null && masks[seam.getLeftLayer()] != null
+                    && masks[seam.getRightLayer()] != null)
+            {
+                applySeam(stripRect, masks, scratch);
+            }
+
+            // The lower layer gets the valid pixels the upper layer leaves to it.
+            int lower = Math.min(blendLayers[0], blendLayers[1]);
+            int upper = Math.max(blendLayers[0], blendLayers[1]);
+            Core.bitwise_not(masks[upper], scratch);
+            Core.bitwise_and(masks[lower], scratch, masks[lower]);
+
+            blender.blend(stripLayers, stripMasks, stripImage, matPool);
+        }
+        finally
+        {
+            matPool.recycle(scratch);
+        }
+    }
+
+    /**
+     * Copies the part of the blended strip that intersects the given tile into the tile.
+     *
+     * @param rect The rectangle of the tile in the canvas.
+     * @param tile The tile to draw into.
+     */
+    private void copyBlend(Rect rect, Mat tile)
+    {
+        if (stripRect == null)
+        {
+            return;
+        }
+
+        int x0 = Math.max(rect.x, stripRect.x);
+        int y0 = Math.max(rect.y, stripRect.y);
+        int x1 = Math.min(rect.x + rect.width,  stripRect.x + stripRect.width);
+        int y1 = Math.min(Math.min(rect.y + rect.height, stripRect.y + stripRect.height),
+                          blendRect.y + blendRect.height);
+
+        if (x0 >= x1 || y0 >= y1)
+        {
+            return;
+        }
+
+        Rect src = new Rect(x0 - stripRect.x, y0 - stripRect.y, x1 - x0, y1 - y0);
+        Rect dst = new Rect(x0 - rect.x, y0 - rect.y, x1 - x0, y1 - y0);
+
+        Mat from   = new Mat(stripImage, src);
+        Mat to     = new Mat(tile, dst);
+        Mat opaque = new Mat(stripMask, src);
+        from.copyTo(to, opaque);
+        from.release();
+        to.release();
+        opaque.release();
+    }
+
+    /**
+     * Restricts the masks of the two layers joined by the seam, so that the layer drawn later
+     * yields to the layer drawn earlier on the earlier layer's side of the seam wherever both are
+     * valid.
+     *
+     * @param rect    The rectangle of the tile in the canvas.
+     * @param masks   The validity masks of all layers for the tile.
+     * @param scratch A matrix to use as temporary storage.
+     */
+    private void applySeam(Rect rect, Mat[] masks, Mat scratch)
+    {
+        int     lower     = Math.min(seam.getLeftLayer(), seam.getRightLayer());
+        int     upper     = Math.max(seam.getLeftLayer(), seam.getRightLayer());
+        boolean upperLeft = upper == seam.getLeftLayer();
+        byte[]  yield     = new byte[rect.width * rect.height];
+
+        // Mark the pixels on the lower layer's side of the seam.
+        for (int y = 0; y < rect.height; ++y)
+        {
+            int column = seam.getColumn(rect.y + y);
+
+            if (column < 0)
+            {
+                continue;
+            }
+
+            int split = Math.max(0, Math.min(rect.width, column - rect.x));
+            int start = upperLeft ? split : 0;
+            int end   = upperLeft ? rect.width : split;
+
+            for (int x = start; x < end; ++x)
+            {
+                yield[y * rect.width + x] = (byte) 255;
+            }
+        }
+
+        scratch.create(rect.height, rect.width, CvType.CV_8UC1);
+        scratch.put(0, 0, yield);
+
+        // upper = upper AND NOT (lower AND yield)
+        Core.bitwise_and(scratch, masks[lower], scratch);
+        Core.bitwise_not(scratch, scratch);
+        Core.bitwise_and(masks[upper], scratch, masks[upper]);
+    }
+
+    /**
+     * Finds the region of a layer's image that is needed to render the given canvas rectangle.
+     *
+     * @param layer The layer to look up.
+     * @param rect  The rectangle in the canvas.
+     * @return The source region, or null if the layer does not cover the rectangle.
+     */
+    private static Rect findSourceRegion(Layer layer, Rect rect)
+    {
+        double[] xs = { rect.x, rect.x + rect.width, rect.x + rect.width, rect.x };
+        double[] ys = { rect.y, rect.y, rect.y + rect.height, rect.y + rect.height };
+
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+
+        for (int i = 0; i < 4; ++i)
+        {
+            double[] p = Homography.transform(layer.inverse, xs[i], ys[i]);
+
+            if (p[2] <= 0)
+            {
+                // The rectangle crosses the horizon of the image, so use all of it.
+                minX = minY = 0;
+                maxX = maxY = Double.MAX_VALUE;
+                break;
+            }
+
+            minX = Math.min(minX, p[0]);
+            minY = Math.min(minY, p[1]);
+            maxX = Math.max(maxX, p[0]);
+            maxY = Math.max(maxY, p[1]);
+        }
+
+        return clip(minX, minY, maxX, maxY, layer.source.getWidth(), layer.source.getHeight(),
+                    MARGIN);
+    }
+
+    /**
+     * Returns the integer rectangle that contains the given bounds extended by a margin, clipped
+     * to the given size.
+     *
+     * @param minX   The minimum x coordinate.
+     * @param minY   The minimum y coordinate.
+     * @param maxX   The maximum x coordinate.
+     * @param maxY   The maximum y coordinate.
+     * @param width  The width to clip to.
+     * @param height The height to clip to.
+     * @param margin The margin to add on each side.
+     * @return The clipped rectangle, or null if it is empty.
+     */
+    private static Rect clip(double minX, double minY, double maxX, double maxY,
+                             int width, int height, int margin)
+    {
+        int x0 = (int) Math.max(0, Math.floor(minX) - margin);
+        int y0 = (int) Math.max(0, Math.floor(minY) - margin);
+        int x1 = (int) Math.min(width,  Math.ceil(maxX) + margin);
+        int y1 = (int) Math.min(height, Math.ceil(maxY) + margin);
+
+        return x0 < x1 && y0 < y1 ? new Rect(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+}
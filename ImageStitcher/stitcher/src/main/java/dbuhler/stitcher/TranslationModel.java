@@ -0,0 +1,86 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * This motion model is a pure 2-DOF translation, e.g. for scanned documents. A single match
+ * defines it, so RANSAC needs only a handful of iterations.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public final class TranslationModel extends MotionModel
+{
+    @Override
+    public Type getType()
+    {
+        return Type.TRANSLATION;
+    }
+
+    @Override
+    public int getSampleSize()
+    {
+        return 1;
+    }
+
+    @Override
+    public boolean solve(float[] src, float[] dst, int[] sample, double[] h)
+    {
+        int i = sample[0];
+        setTranslation(h, dst[2 * i] - src[2 * i], dst[2 * i + 1] - src[2 * i + 1]);
+        return true;
+    }
+
+    /**
+     * Fits the translation to all inliers as their mean displacement.
+     *
+     * @param src     The coordinates of the source points.
+     * @param dst     The coordinates of the destination points.
+     * @param inliers The inlier mask.
+     * @param count   The number of inliers.
+     * @return The refined translation as 3x3 matrix.
+     */
+    @Override
+    public Mat refine(float[] src, float[] dst, byte[] inliers, int count)
+    {
+        double tx = 0;
+        double ty = 0;
+
+        for (int i = 0; i < inliers.length; ++i)
+        {
+            if (inliers[i] == 1)
+            {
+                tx += dst[2 * i]     - src[2 * i];
+                ty += dst[2 * i + 1] - src[2 * i + 1];
+            }
+        }
+
+        double[] h = new double[9];
+        Mat      m = new Mat(3, 3, CvType.CV_64F);
+        setTranslation(h, tx / count, ty / count);
+        m.put(0, 0, h);
+
+        return m;
+    }
+
+    /**
+     * Stores the homography of the given translation in the given array.
+     *
+     * @param h  The array that will contain the homography in row-major order.
+     * @param tx The horizontal translation.
+     * @param ty The vertical translation.
+     */
+    private static void setTranslation(double[] h, double tx, double ty)
+    {
+        h[0] = 1;
+        h[1] = 0;
+        h[2] = tx;
+        h[3] = 0;
+        h[4] = 1;
+        h[5] = ty;
+        h[6] = 0;
+        h[7] = 0;
+        h[8] = 1;
+    }
+}
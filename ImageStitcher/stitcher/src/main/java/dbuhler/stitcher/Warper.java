@@ -0,0 +1,245 @@
+package dbuhler.stitcher;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A warper projects an image from the image plane of a pinhole camera onto another surface, e.g.
+ * a cylinder, with Imgproc.remap. The remap tables depend only on the surface, the focal length
+ * and the image size, so they are converted once to the compact fixed-point form of
+ * Imgproc.convertMaps and cached for later stitches with the same camera. Cached tables are
+ * counted while a warp uses them, so that evicting them from the cache releases them as soon as
+ * the last warp is done.
+ *
+ * @author  Dan Buhler
+ * @version 2015-04-06
+ */
+public abstract class Warper
+{
+    private static final int MAX_CACHED_MAPS = 4;
+
+    // Keypoints closer than this to the border of the warped image would describe the border.
+    private static final int MASK_MARGIN = 16;
+
+    // Evicted tables that another stitch is still using are released when it is done with them.
+    private static final Map<String, Maps> cache = new LinkedHashMap<String, Maps>(
+            MAX_CACHED_MAPS, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Maps> eldest)
+        {
+            if (size() <= MAX_CACHED_MAPS)
+            {
+                return false;
+            }
+
+            eldest.getValue().evicted = true;
+            eldest.getValue().releaseIfUnused();
+            return true;
+        }
+    };
+
+    /**
+     * The remap tables and mask for one image size, with the number of warps using them. All
+     * fields are guarded by the cache.
+     */
+    private static final class Maps
+    {
+        private Mat     map1;
+        private Mat     map2;
+        private Mat     mask;
+        private int     users;
+        private boolean evicted;
+
+        /**
+         * Releases the matrices once they are evicted and no longer used.
+         */
+        private void releaseIfUnused()
+        {
+            if (evicted && users == 0)
+            {
+                map1.release();
+                map2.release();
+                mask.release();
+            }
+        }
+    }
+
+    protected double focalLength;
+
+    /**
+     * Creates a new warper.
+     *
+     * @param focalLength The focal length of the camera in pixels.
+     */
+    protected Warper(double focalLength)
+    {
+        this.focalLength = focalLength;
+    }
+
+    /**
+     * Warps the given image onto the surface. The result has the size of the source image, and
+     * pixels that do not map into the source image are transparent black.
+     *
+     * @param src The image to warp.
+     * @param dst The matrix that will contain the warped image; must not be src.
+     */
+    public void warp(Mat src, Mat dst)
+    {
+        Maps maps = acquireMaps(src.cols(), src.rows());
+
+        try
+        {
+            Imgproc.remap(src, dst, maps.map1, maps.map2, Imgproc.INTER_LINEAR,
+                          Imgproc.BORDER_CONSTANT, Scalar.all(0));
+        }
+        finally
+        {
+            releaseMaps(maps);
+        }
+    }
+
+    /**
+     * Copies the mask of the warped image of the given size that is 255 where the warped image is
+     * valid and at least MASK_MARGIN pixels away from its border, and 0 otherwise.
+     *
+     * @param width  The width of the source image.
+     * @param height The height of the source image.
+     * @param dst    The matrix that will contain the mask of the warped image.
+     */
+    public void getMask(int width, int height, Mat dst)
+    {
+        Maps maps = acquireMaps(width, height);
+
+        try
+        {
+            maps.mask.copyTo(dst);
+        }
+        finally
+        {
+            releaseMaps(maps);
+        }
+    }
+
+    /**
+     * Maps a point on the surface back onto the image plane. Both points are relative to the
+     * image centre and in units of the focal length.
+     *
+     * @param u     The horizontal surface coordinate.
+     * @param v     The vertical surface coordinate.
+     * @param point The array that will contain the x and y coordinate on the image plane.
+     * @return True if the point is in front of the camera, false otherwise.
+     */
+    protected abstract boolean unproject(double u, double v, double[] point);
+
+    /**
+     * Returns the cached remap tables and mask for an image of the given size, building them if
+     * they are not cached, and counts the caller as a user until it calls releaseMaps.
+     *
+     * @param width  The width of the source image.
+     * @param height The height of the source image.
+     * @return The fixed-point tables for Imgproc.remap and the mask of the warped image.
+     */
+    private Maps acquireMaps(int width, int height)
+    {
+        String key = getClass().getName() + " " + focalLength + " " + width + "x" + height;
+
+        synchronized (cache)
+        {
+            Maps maps = cache.get(key);
+
+            if (maps == null)
+            {
+                maps = buildMaps(width, height);
+                cache.put(key, maps);
+            }
+
+            ++maps.users;
+            return maps;
+        }
+    }
+
+    /**
+     * Stops counting the caller as a user of the given tables, releasing them if they were
+     * evicted in the meantime.
+     *
+     * @param maps The tables returned by acquireMaps.
+     */
+    private static void releaseMaps(Maps maps)
+    {
+        synchronized (cache)
+        {
+            --maps.users;
+            maps.releaseIfUnused();
+        }
+    }
+
+    /**
+     * Builds the remap tables and the mask for an image of the given size.
+     *
+     * @param width  The width of the source image.
+     * @param height The height of the source image.
+     * @return The fixed-point tables for Imgproc.remap and the mask of the warped image.
+     */
+    private Maps buildMaps(int width, int height)
+    {
+        float[]  mapX  = new float[width * height];
+        float[]  mapY  = new float[width * height];
+        double[] point = new double[2];
+        double   cx    = 0.5 * (width - 1);
+        double   cy    = 0.5 * (height - 1);
+
+        for (int y = 0; y < height; ++y)
+        {
+            for (int x = 0; x < width; ++x)
+            {
+                int i = y * width + x;
+
+                if (unproject((x - cx) / focalLength, (y - cy) / focalLength, point))
+                {
+                    mapX[i] = (float) (focalLength * point[0] + cx);
+                    mapY[i] = (float) (focalLength * point[1] + cy);
+                }
+                else
+                {
+                    mapX[i] = -1;
+                    mapY[i] = -1;
+                }
+            }
+        }
+
+        Mat floatX = new Mat(height, width, CvType.CV_32FC1);
+        Mat floatY = new Mat(height, width, CvType.CV_32FC1);
+        floatX.put(0, 0, mapX);
+        floatY.put(0, 0, mapY);
+
+        Mat map1 = new Mat();
+        Mat map2 = new Mat();
+        Imgproc.convertMaps(floatX, floatY, map1, map2, CvType.CV_16SC2);
+        floatX.release();
+        floatY.release();
+
+        // Warp a full mask the same way and keep away from its border.
+        Mat full = new Mat(height, width, CvType.CV_8UC1, Scalar.all(255));
+        Mat mask = new Mat();
+        Imgproc.remap(full, mask, map1, map2, Imgproc.INTER_NEAREST,
+                      Imgproc.BORDER_CONSTANT, Scalar.all(0));
+        Imgproc.erode(mask, mask, Imgproc.getStructuringElement(
+                Imgproc.MORPH_RECT, new Size(2 * MASK_MARGIN + 1, 2 * MASK_MARGIN + 1)),
+                new Point(-1, -1), 1, Imgproc.BORDER_CONSTANT, Scalar.all(0));
+        full.release();
+
+        Maps maps = new Maps();
+        maps.map1 = map1;
+        maps.map2 = map2;
+        maps.mask = mask;
+        return maps;
+    }
+}